@@ -0,0 +1,64 @@
+package uk.co.tigranetworks;
+
+/**
+ * Selects the engine that a StateMachine uses to serialise its transitions.
+ * The mode is fixed when the state machine is constructed.
+ */
+public enum ConcurrencyMode
+{
+    /**
+     * Transitions are serialised on a private monitor. A trigger that arrives
+     * while another transition is in progress waits for the monitor and is then
+     * re-validated against the new current state. OnExit and OnEnter actions run
+     * while the monitor is held, so an OnEnter action may trigger a further
+     * transition from the state it has just entered. This is the default mode.
+     */
+    SYNCHRONIZED,
+
+    /**
+     * As {@link #SYNCHRONIZED}, but transitions are serialised on a
+     * java.util.concurrent.locks.ReentrantLock instead of a monitor. A virtual
+     * thread that blocks inside an OnExit or OnEnter action, or while waiting for
+     * the lock, then unmounts from its carrier thread instead of pinning it.
+     */
+    REENTRANT_LOCK,
+
+    /**
+     * The current state is committed with a single compare-and-set and no monitor
+     * is ever taken. Exactly one of any number of competing triggers wins the
+     * compare-and-set. A trigger that loses to a transition still under way
+     * fails fast with an "armed, contended" outcome instead of waiting; one that
+     * loses to a transition that has already finished is decided again against
+     * the new current state, as if it had come after it.
+     * <p/>
+     * Action policy: the winning trigger runs the OnExit action of the old state
+     * and then the OnEnter action of the new state, on its own thread, while the
+     * state machine is parked in a private in-transition state. Every trigger
+     * raised during that time (including triggers raised from within the actions
+     * themselves) is disarmed. The new state becomes the current state once the
+     * OnEnter action has returned. If either action throws, the state machine
+     * still completes in the new state; an exception from OnExit means that the
+     * OnEnter action is not run, exactly as in {@link #SYNCHRONIZED} mode.
+     */
+    LOCK_FREE,
+
+    /**
+     * The state machine owns a lock-free multi-producer mailbox. Triggers and
+     * events are queued without blocking, and a single task at a time, submitted
+     * to the Executor that the state machine was constructed with, takes them
+     * from the mailbox in order and executes them with no locking at all.
+     * <p/>
+     * Because execution is asynchronous, trigger() returns before the trigger has
+     * been validated and fire() returns {@link TriggerOutcome#QUEUED}. A trigger
+     * or event raised from within an OnExit or OnEnter action is queued behind
+     * the transition in progress, so every transition runs to completion before
+     * the next one starts. An exception thrown by an action propagates to the
+     * executor; the transition still completes and the mailbox carries on.
+     * <p/>
+     * The executor may be dedicated to one state machine (for instance a
+     * virtual-thread-per-task executor) or shared by many; in the latter case a
+     * busy state machine yields the pool thread after each batch of messages.
+     * Mailbox mode is selected with the StateMachine(Executor) constructor.
+     */
+    MAILBOX
+}
@@ -0,0 +1,31 @@
+package uk.co.tigranetworks;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts instance context objects to and from the binary form stored in a
+ * snapshot. See {@link StateSnapshot}.
+ *
+ * @param <C> The type of the per-instance context object.
+ */
+public interface ContextCodec<C>
+{
+    /**
+     * Gets the number of bytes that encode() will write for the specified context.
+     */
+    public int encodedSize(C context);
+
+    /**
+     * Writes a context into the buffer, at its position. The buffer has at
+     * least encodedSize(context) bytes remaining.
+     */
+    public void encode(C context, ByteBuffer buffer);
+
+    /**
+     * Reads back a context written by encode(). The buffer's limit is set to the
+     * end of the encoded context. The buffer is only valid for the duration of
+     * the call, because its contents may be overwritten afterwards, so copy out
+     * any bytes that the context keeps rather than keeping the buffer.
+     */
+    public C decode(ByteBuffer buffer);
+}
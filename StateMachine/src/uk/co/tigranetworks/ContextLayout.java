@@ -0,0 +1,177 @@
+package uk.co.tigranetworks;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The extended-state variables - "money inserted" and the like - declared on
+ * a {@link StateMachineDefinition} with {@link StateMachineDefinition.Builder#addIntSlot}
+ * and its siblings. Each instance keeps its own values in an
+ * {@link ExtendedState}, which can serve as the instance's context object.
+ * <p/>
+ * A slot is identified by the handle returned when it was declared. The
+ * handle encodes both the slot's type and its position, so reading or
+ * writing a slot is a type check and an array access.
+ */
+public final class ContextLayout
+{
+    /**
+     * The type of value that a slot holds.
+     */
+    public enum SlotType
+    {
+        INT,
+        LONG,
+        DOUBLE,
+        REFERENCE
+    }
+
+    // A handle is the slot type's ordinal above the slot's position within its array.
+    static final int TYPE_SHIFT    = 24;
+    static final int POSITION_MASK = (1 << TYPE_SHIFT) - 1;
+
+    private static final SlotType[] SLOT_TYPES = SlotType.values();
+
+    private final String[] names;
+    private final int[]    handles;
+    private final int      primitiveCount;
+    private final int      referenceCount;
+
+    ContextLayout(List<String> names, List<SlotType> types)
+    {
+        this.names = names.toArray(new String[names.size()]);
+        handles = new int[this.names.length];
+        int primitives = 0;
+        int references = 0;
+        for (int index = 0; index < handles.length; index++)
+        {
+            final SlotType type = types.get(index);
+            final int position = type == SlotType.REFERENCE ? references++ : primitives++;
+            handles[index] = handle(type, position);
+        }
+        primitiveCount = primitives;
+        referenceCount = references;
+    }
+
+    static int handle(SlotType type, int position)
+    {
+        return (type.ordinal() << TYPE_SHIFT) | position;
+    }
+
+    /**
+     * Creates a fresh set of values for one instance. Primitive slots start at
+     * zero and reference slots at null.
+     */
+    public ExtendedState newExtendedState()
+    {
+        return new ExtendedState(this, new long[primitiveCount], referenceCount == 0 ? null : new Object[referenceCount]);
+    }
+
+    public int getSlotCount()
+    {
+        return names.length;
+    }
+
+    /**
+     * Gets the name of a slot, by declaration order.
+     */
+    public String getSlotName(int index)
+    {
+        return names[index];
+    }
+
+    /**
+     * Gets the handle of a slot, by declaration order.
+     */
+    public int getSlot(int index)
+    {
+        return handles[index];
+    }
+
+    /**
+     * Gets the type of value held by the slot with the specified handle.
+     */
+    public SlotType getSlotType(int slot)
+    {
+        return SLOT_TYPES[slot >>> TYPE_SHIFT];
+    }
+
+    /**
+     * Finds a slot by name.
+     *
+     * @return The slot's handle, or -1 if there is no slot with that name.
+     */
+    public int findSlot(String name)
+    {
+        for (int index = 0; index < names.length; index++)
+            if (names[index].equals(name))
+                return handles[index];
+        return -1;
+    }
+
+    /**
+     * Creates a codec that stores extended state in snapshots, for use with
+     * {@link StateSnapshot#writeInstances} and {@link StateSnapshot#readInstances}.
+     * Primitive slots are written as they are; reference slots are written with
+     * the supplied codec.
+     *
+     * @param referenceCodec Encodes the values of reference slots, which may be null.
+     *                       May itself be null only if the layout has no reference slots.
+     */
+    public ContextCodec<ExtendedState> newCodec(final ContextCodec<Object> referenceCodec)
+    {
+        if (referenceCount > 0 && referenceCodec == null)
+            throw new IllegalArgumentException("A codec is required for the reference slots");
+        return new ContextCodec<ExtendedState>()
+        {
+            @Override
+            public int encodedSize(ExtendedState context)
+            {
+                int size = primitiveCount * Long.BYTES;
+                for (int index = 0; index < referenceCount; index++)
+                {
+                    final Object value = context.references[index];
+                    size += 1 + (value == null ? 0 : Integer.BYTES + referenceCodec.encodedSize(value));
+                }
+                return size;
+            }
+
+            @Override
+            public void encode(ExtendedState context, ByteBuffer buffer)
+            {
+                for (long value : context.primitives)
+                    buffer.putLong(value);
+                for (int index = 0; index < referenceCount; index++)
+                {
+                    final Object value = context.references[index];
+                    buffer.put((byte) (value == null ? 0 : 1));
+                    if (value != null)
+                    {
+                        buffer.putInt(referenceCodec.encodedSize(value));
+                        referenceCodec.encode(value, buffer);
+                    }
+                }
+            }
+
+            @Override
+            public ExtendedState decode(ByteBuffer buffer)
+            {
+                final ExtendedState state = newExtendedState();
+                for (int index = 0; index < primitiveCount; index++)
+                    state.primitives[index] = buffer.getLong();
+                for (int index = 0; index < referenceCount; index++)
+                {
+                    if (buffer.get() == 0)
+                        continue;
+                    final int size = buffer.getInt();
+                    final int end = buffer.position() + size;
+                    final int limit = buffer.limit();
+                    buffer.limit(end);
+                    state.references[index] = referenceCodec.decode(buffer);
+                    buffer.limit(limit).position(end);
+                }
+                return state;
+            }
+        };
+    }
+}
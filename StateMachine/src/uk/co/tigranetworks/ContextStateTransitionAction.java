@@ -0,0 +1,13 @@
+package uk.co.tigranetworks;
+
+/**
+ * An OnEnter or OnExit action that can be shared by every instance of a
+ * {@link StateMachineDefinition}. The action is given the context object
+ * of the instance that is changing state.
+ *
+ * @param <C> The type of the per-instance context object.
+ */
+public interface ContextStateTransitionAction<C>
+{
+    public void action(C context);
+}
@@ -0,0 +1,15 @@
+package uk.co.tigranetworks;
+
+import java.util.EventListener;
+
+/**
+ * A transition validation rule that can be shared by every instance of a
+ * {@link StateMachineDefinition}. The rule is given the context object of
+ * the instance being triggered, rather than capturing any state of its own.
+ *
+ * @param <C> The type of the per-instance context object.
+ */
+public interface ContextTransitionRule<C> extends EventListener
+{
+    public boolean transitionIsAllowed(C context);
+}
@@ -0,0 +1,411 @@
+package uk.co.tigranetworks;
+
+import java.util.Arrays;
+
+/**
+ * Checks the graph of a {@link StateMachineDefinition} for mistakes that the
+ * builder cannot see: states that no instance can ever reach, reachable
+ * states that can never be left, transitions that can never be taken, and
+ * transitions whose rules compete for the same event.
+ * <p/>
+ * Rules are opaque, so the analysis assumes that any rule may succeed. A
+ * transition is reported as unused only when it certainly cannot be taken:
+ * because no state it leaves is reachable, or because a transition without a
+ * rule always wins the event first - an earlier one from the same state, or
+ * ones from inner states that cover every reachable state within it.
+ * Reachability follows every transition that is not certainly unused, so a
+ * state reported as reachable may still be unreachable in practice if the
+ * rules along every path to it are never satisfied.
+ * <p/>
+ * Two transitions from the same state that take the same event, both have
+ * rules, and lead to different states are reported as conflicting: if both
+ * rules can succeed at once, the one created first always wins, which is
+ * seldom what was meant. Transitions at different levels of nesting do not
+ * conflict, since the innermost state's always take precedence.
+ * <p/>
+ * The analysis takes time in proportion to the number of states, events and
+ * transitions, multiplied by the depth of nesting for the transitions that
+ * leaf states inherit, so it is practical to run it over
+ * definitions with tens of thousands of states, for example as a test over
+ * every definition that an application loads.
+ */
+public final class DefinitionAnalyzer
+{
+    private DefinitionAnalyzer()
+    {
+    }
+
+    /**
+     * The findings of an analysis. States and transitions are identified by
+     * their ids in the analysed definition.
+     */
+    public static final class Report
+    {
+        private final StateMachineDefinition<?> definition;
+        private final boolean[]                 reachable;
+        private final int[]                     unreachableStates;
+        private final int[]                     sinkStates;
+        private final int[]                     unusedTransitions;
+        private final int[]                     shadowedBy;         // -1, or the transition that always wins first
+        private final int[]                     conflictingTransitions;
+        private final int[]                     conflictsWith;      // -1, or the earlier competing transition
+
+        private Report(StateMachineDefinition<?> definition, boolean[] reachable, int[] sinkStates,
+                       boolean[] unused, int[] shadowedBy, int[] conflictsWith)
+        {
+            this.definition = definition;
+            this.reachable = reachable;
+            this.sinkStates = sinkStates;
+            this.shadowedBy = shadowedBy;
+            this.conflictsWith = conflictsWith;
+            unreachableStates = indicesOf(reachable, false);
+            unusedTransitions = indicesOf(unused, true);
+            int conflicts = 0;
+            for (int other : conflictsWith)
+                if (other >= 0)
+                    conflicts++;
+            conflictingTransitions = new int[conflicts];
+            for (int transition = 0, index = 0; transition < conflictsWith.length; transition++)
+                if (conflictsWith[transition] >= 0)
+                    conflictingTransitions[index++] = transition;
+        }
+
+        /**
+         * Determines whether an instance can ever be in (or within) a state.
+         */
+        public boolean isReachable(int stateId)
+        {
+            return reachable[stateId];
+        }
+
+        /**
+         * Gets the states, leaf or composite, that no instance can ever be in.
+         */
+        public int[] getUnreachableStates()
+        {
+            return unreachableStates.clone();
+        }
+
+        /**
+         * Gets the reachable leaf states that have no transitions, either their
+         * own or inherited; an instance that enters one never leaves it. These
+         * are often deliberate final states, so they are not counted as problems.
+         */
+        public int[] getSinkStates()
+        {
+            return sinkStates.clone();
+        }
+
+        /**
+         * Gets the transitions that can never be taken.
+         */
+        public int[] getUnusedTransitions()
+        {
+            return unusedTransitions.clone();
+        }
+
+        /**
+         * Gets the transition without a rule that always takes the event before
+         * the specified unused transition is tried, or -1 if it is unused only
+         * because it leaves an unreachable state (or it is not unused at all).
+         * When inner states cover the transition's state, this is one of theirs.
+         */
+        public int getShadowingTransition(int transition)
+        {
+            return shadowedBy[transition];
+        }
+
+        /**
+         * Gets the transitions that compete with an earlier transition from the
+         * same state for the same event.
+         */
+        public int[] getConflictingTransitions()
+        {
+            return conflictingTransitions.clone();
+        }
+
+        /**
+         * Gets the earlier transition that the specified transition competes with,
+         * or -1 if it does not conflict.
+         */
+        public int getConflictingTransition(int transition)
+        {
+            return conflictsWith[transition];
+        }
+
+        /**
+         * Determines whether the analysis found no unreachable states, unused
+         * transitions or conflicts. Sink states are not problems.
+         */
+        public boolean isClean()
+        {
+            return unreachableStates.length == 0 && unusedTransitions.length == 0 && conflictingTransitions.length == 0;
+        }
+
+        /**
+         * Describes the findings, one per line, by state and event name.
+         */
+        @Override
+        public String toString()
+        {
+            final StringBuilder text = new StringBuilder();
+            for (int stateId : unreachableStates)
+                text.append("Unreachable state ").append(definition.getStateName(stateId)).append('\n');
+            for (int stateId : sinkStates)
+                text.append("Sink state ").append(definition.getStateName(stateId)).append('\n');
+            for (int transition : unusedTransitions)
+            {
+                text.append("Unused transition ").append(describe(transition));
+                if (shadowedBy[transition] >= 0)
+                    text.append(", always preceded by ").append(describe(shadowedBy[transition]));
+                else
+                    text.append(", from an unreachable state");
+                text.append('\n');
+            }
+            for (int transition : conflictingTransitions)
+                text.append("Conflicting transition ").append(describe(transition))
+                    .append(", competes with ").append(describe(conflictsWith[transition])).append('\n');
+            return text.length() == 0 ? "No problems found\n" : text.toString();
+        }
+
+        private String describe(int transition)
+        {
+            final int eventId = definition.getTransitionEvent(transition);
+            final String eventName = definition.getEventName(eventId);
+            return transition + " (" + definition.getStateName(definition.getTransitionSource(transition))
+                + " on " + (eventName == null ? "event " + eventId : eventName)
+                + " to " + definition.getStateName(definition.getTransitionDestination(transition)) + ")";
+        }
+
+        private static int[] indicesOf(boolean[] flags, boolean value)
+        {
+            int count = 0;
+            for (boolean flag : flags)
+                if (flag == value)
+                    count++;
+            final int[] indices = new int[count];
+            for (int index = 0, next = 0; index < flags.length; index++)
+                if (flags[index] == value)
+                    indices[next++] = index;
+            return indices;
+        }
+    }
+
+    /**
+     * Analyses a definition.
+     *
+     * @param definition The definition (required; not null).
+     * @return The findings.
+     */
+    public static Report analyze(StateMachineDefinition<?> definition)
+    {
+        if (definition == null)
+            throw new IllegalArgumentException("Definition is required");
+        final int stateCount = definition.getStateCount();
+        final int eventCount = definition.getEventCount();
+        final int transitionCount = definition.getTransitionCount();
+
+        final int[] owned = groupBy(definition, stateCount, true);
+        final int[] byEvent = groupBy(definition, eventCount, false);
+        final boolean[] unused = new boolean[transitionCount];
+        final int[] shadowedBy = new int[transitionCount];
+        final int[] conflictsWith = new int[transitionCount];
+        Arrays.fill(shadowedBy, -1);
+        Arrays.fill(conflictsWith, -1);
+
+        // Within each state, the first transition without a rule for an event wins
+        // it before any later one is tried; earlier ones with rules compete.
+        final int[] stamp = new int[eventCount];
+        final int[] firstRuled = new int[eventCount];
+        final int[] firstUnruled = new int[eventCount];
+        Arrays.fill(stamp, -1);
+        for (int stateId = 0; stateId < stateCount; stateId++)
+        {
+            for (int index = owned[stateId]; index < owned[stateId + 1]; index++)
+            {
+                final int transition = owned[stateCount + 1 + index];
+                final int eventId = definition.getTransitionEvent(transition);
+                if (stamp[eventId] != stateId)
+                {
+                    stamp[eventId] = stateId;
+                    firstRuled[eventId] = -1;
+                    firstUnruled[eventId] = -1;
+                }
+                if (firstUnruled[eventId] >= 0)
+                {
+                    unused[transition] = true;
+                    shadowedBy[transition] = firstUnruled[eventId];
+                }
+                else if (definition.getTransitionRule(transition) == null)
+                    firstUnruled[eventId] = transition;
+                else if (firstRuled[eventId] < 0)
+                    firstRuled[eventId] = transition;
+                else if (definition.getTransitionDestination(firstRuled[eventId]) != definition.getTransitionDestination(transition))
+                    conflictsWith[transition] = firstRuled[eventId];
+            }
+        }
+
+        // Instances enter a composite state through its initial substates. A child
+        // always has a higher id than its parent, so this needs one backward pass.
+        final int[] entryLeaf = new int[stateCount];
+        for (int stateId = stateCount - 1; stateId >= 0; stateId--)
+            entryLeaf[stateId] = definition.isLeafState(stateId) ? stateId : entryLeaf[definition.getInitialSubstate(stateId)];
+
+        // Breadth-first over leaves from the initial leaf. From each leaf reached, the
+        // transitions of the leaf and of every state around it are followed, except the
+        // inherited ones that an inner state's transition without a rule always takes
+        // first from that leaf. Each transition is followed at most once.
+        final boolean[] reachable = new boolean[stateCount];
+        final int[] queue = new int[stateCount];
+        int head = 0;
+        int tail = 0;
+        if (stateCount > 0)
+        {
+            final int initialLeaf = entryLeaf[definition.getInitialState()];
+            queue[tail++] = initialLeaf;
+            reachable[initialLeaf] = true;
+        }
+        final boolean[] followed = new boolean[transitionCount];
+        final int[] unfollowed = new int[stateCount];
+        for (int transition = 0; transition < transitionCount; transition++)
+            if (!unused[transition])
+                unfollowed[definition.getTransitionSource(transition)]++;
+        final int[] takenFrom = new int[eventCount];        // the leaf for which an inner state takes the event
+        Arrays.fill(takenFrom, -1);
+        while (head < tail)
+        {
+            final int leaf = queue[head++];
+            for (int stateId = leaf; stateId != StateMachineDefinition.NO_PARENT; stateId = definition.getParentState(stateId))
+            {
+                reachable[stateId] = true;
+                for (int index = owned[stateId]; index < owned[stateId + 1] && unfollowed[stateId] > 0; index++)
+                {
+                    final int transition = owned[stateCount + 1 + index];
+                    if (unused[transition] || followed[transition] || takenFrom[definition.getTransitionEvent(transition)] == leaf)
+                        continue;
+                    followed[transition] = true;
+                    unfollowed[stateId]--;
+                    final int destination = entryLeaf[definition.getTransitionDestination(transition)];
+                    if (!reachable[destination])
+                    {
+                        reachable[destination] = true;
+                        queue[tail++] = destination;
+                    }
+                }
+                for (int index = owned[stateId]; index < owned[stateId + 1]; index++)
+                {
+                    final int transition = owned[stateCount + 1 + index];
+                    if (!unused[transition] && definition.getTransitionRule(transition) == null)
+                        takenFrom[definition.getTransitionEvent(transition)] = leaf;
+                }
+            }
+        }
+        for (int transition = 0; transition < transitionCount; transition++)
+        {
+            if (!reachable[definition.getTransitionSource(transition)])
+            {
+                unused[transition] = true;
+                shadowedBy[transition] = -1;
+                conflictsWith[transition] = -1;
+            }
+        }
+
+        final int[] reachableChildren = new int[stateCount];
+        final boolean[] inheritsTransitions = new boolean[stateCount];
+        int sinks = 0;
+        for (int stateId = 0; stateId < stateCount; stateId++)
+        {
+            final int parent = definition.getParentState(stateId);
+            if (parent != StateMachineDefinition.NO_PARENT && reachable[stateId])
+                reachableChildren[parent]++;
+            inheritsTransitions[stateId] = owned[stateId + 1] > owned[stateId]
+                || (parent != StateMachineDefinition.NO_PARENT && inheritsTransitions[parent]);
+            if (reachable[stateId] && definition.isLeafState(stateId) && !inheritsTransitions[stateId])
+                sinks++;
+        }
+        final int[] sinkStates = new int[sinks];
+        for (int stateId = 0, index = 0; stateId < stateCount; stateId++)
+            if (reachable[stateId] && definition.isLeafState(stateId) && !inheritsTransitions[stateId])
+                sinkStates[index++] = stateId;
+
+        findInheritedShadows(definition, byEvent, reachable, reachableChildren, unused, shadowedBy);
+        return new Report(definition, reachable, sinkStates, unused, shadowedBy, conflictsWith);
+    }
+
+    /**
+     * A transition from a composite state is never taken if, from every
+     * reachable state within it, an inner state's transition without a rule
+     * takes the event first. For each event, states are marked covered from
+     * the inner transitions upwards: a composite state is covered once all of
+     * its reachable children are, which needs only a count per state.
+     */
+    private static void findInheritedShadows(StateMachineDefinition<?> definition, int[] byEvent, boolean[] reachable,
+                                             int[] reachableChildren, boolean[] unused, int[] shadowedBy)
+    {
+        final int stateCount = definition.getStateCount();
+        final int eventCount = definition.getEventCount();
+        final int[] coveredStamp = new int[stateCount];     // event id + 1 once covered for that event
+        final int[] countStamp = new int[stateCount];       // event id + 1 once coveredChildren is counting for it
+        final int[] coveredChildren = new int[stateCount];
+        final int[] coveredBy = new int[stateCount];        // the inner transition that last covered a child
+        for (int eventId = 0; eventId < eventCount; eventId++)
+        {
+            final int mark = eventId + 1;
+            for (int index = byEvent[eventId]; index < byEvent[eventId + 1]; index++)
+            {
+                final int transition = byEvent[eventCount + 1 + index];
+                final int source = definition.getTransitionSource(transition);
+                if (unused[transition] || definition.getTransitionRule(transition) != null || coveredStamp[source] == mark)
+                    continue;
+                coveredStamp[source] = mark;
+                for (int parent = definition.getParentState(source); parent != StateMachineDefinition.NO_PARENT; parent = definition.getParentState(parent))
+                {
+                    if (countStamp[parent] != mark)
+                    {
+                        countStamp[parent] = mark;
+                        coveredChildren[parent] = 0;
+                    }
+                    coveredBy[parent] = transition;
+                    if (++coveredChildren[parent] < reachableChildren[parent] || coveredStamp[parent] == mark)
+                        break;
+                    coveredStamp[parent] = mark;
+                }
+            }
+            for (int index = byEvent[eventId]; index < byEvent[eventId + 1]; index++)
+            {
+                final int transition = byEvent[eventCount + 1 + index];
+                final int source = definition.getTransitionSource(transition);
+                if (!unused[transition] && reachable[source] && countStamp[source] == mark
+                        && coveredChildren[source] == reachableChildren[source])
+                {
+                    unused[transition] = true;
+                    shadowedBy[transition] = coveredBy[source];
+                }
+            }
+        }
+    }
+
+    /**
+     * Sorts the transitions into groups, by source state or by event, keeping
+     * creation order within each group. The result holds the start of each
+     * group, then one more entry for the end of the last, then the transitions.
+     */
+    private static int[] groupBy(StateMachineDefinition<?> definition, int groupCount, boolean bySource)
+    {
+        final int transitionCount = definition.getTransitionCount();
+        final int[] groups = new int[groupCount + 1 + transitionCount];
+        for (int transition = 0; transition < transitionCount; transition++)
+            groups[key(definition, transition, bySource) + 1]++;
+        for (int group = 0; group < groupCount; group++)
+            groups[group + 1] += groups[group];
+        final int[] next = Arrays.copyOf(groups, groupCount);
+        for (int transition = 0; transition < transitionCount; transition++)
+            groups[groupCount + 1 + next[key(definition, transition, bySource)]++] = transition;
+        return groups;
+    }
+
+    private static int key(StateMachineDefinition<?> definition, int transition, boolean bySource)
+    {
+        return bySource ? definition.getTransitionSource(transition) : definition.getTransitionEvent(transition);
+    }
+}
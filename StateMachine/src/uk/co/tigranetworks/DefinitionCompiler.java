@@ -0,0 +1,410 @@
+package uk.co.tigranetworks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+
+/**
+ * Compiles a finished {@link StateMachineDefinition} into a tree of method
+ * handles that is specific to that definition.
+ * <p/>
+ * An ordinary definition resolves an event by walking its dispatch tables
+ * and calling each rule and action through an interface. A compiled
+ * definition instead switches on the state id and then the event id, with
+ * {@link MethodHandles#tableSwitch}, down to a chain of tests whose rules are
+ * bound in as receivers; each route's OnExit and OnEnter actions are likewise
+ * folded into a single handle.
+ * <p/>
+ * Each compiled definition gets its own hidden class, defined with the two
+ * handle trees as its class data. The class loads them into static final
+ * fields and invokes them from there. The JIT treats a static final field of
+ * a hidden class as a constant, so it can inline through the handle tree
+ * into the rules and actions themselves. The definition calls the hidden
+ * class through the package-private {@link Compiled} interface.
+ * <p/>
+ * In FireBenchmark a compiled definition runs at about the same speed as the
+ * dispatch tables. With a single definition the JIT can already inline the
+ * tables' rule and action calls, so compilation can only help when many
+ * definitions share the tables' call sites.
+ * <p/>
+ * Compilation does not change behaviour: the compiled definition has the
+ * same states, transitions, ids and metrics as the original, and instances
+ * of either can be used interchangeably. The handle tree is built once, but
+ * takes rather longer to build than the dispatch tables.
+ */
+public final class DefinitionCompiler
+{
+    private static final MethodHandle TRANSITION_IS_ALLOWED;
+    private static final MethodHandle ACTION;
+
+    static
+    {
+        try
+        {
+            final MethodHandles.Lookup lookup = MethodHandles.lookup();
+            TRANSITION_IS_ALLOWED = lookup.findVirtual(ContextTransitionRule.class, "transitionIsAllowed", MethodType.methodType(boolean.class, Object.class));
+            ACTION = lookup.findVirtual(ContextStateTransitionAction.class, "action", MethodType.methodType(void.class, Object.class));
+        }
+        catch (ReflectiveOperationException ex)
+        {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    // (int stateId, int eventId, Object context)int
+    private static final MethodType RESOLVE_TYPE = MethodType.methodType(int.class, int.class, int.class, Object.class);
+    // (int eventId, Object context)int
+    private static final MethodType EVENT_TYPE   = MethodType.methodType(int.class, int.class, Object.class);
+    // (int route, Object context)void
+    private static final MethodType ACTIONS_TYPE = MethodType.methodType(void.class, int.class, Object.class);
+
+    /**
+     * The interface implemented by the hidden class of a compiled definition.
+     */
+    interface Compiled
+    {
+        /**
+         * As for StateMachineDefinition.resolve(), for an event id known to be in range.
+         */
+        int resolve(int stateId, int eventId, Object context);
+
+        /**
+         * As for StateMachineDefinition.runActions().
+         */
+        void runActions(int route, Object context);
+    }
+
+    private DefinitionCompiler()
+    {
+    }
+
+    /**
+     * Compiles a definition.
+     *
+     * @param definition The definition (required; not null). If it has already been
+     *                   compiled then it is returned as it is.
+     * @return An equivalent, compiled definition.
+     */
+    public static <C> StateMachineDefinition<C> compile(StateMachineDefinition<C> definition)
+    {
+        if (definition == null)
+            throw new IllegalArgumentException("Definition is required");
+        if (definition.isCompiled())
+            return definition;
+        return new StateMachineDefinition<>(definition, defineCompiled(compileResolve(definition), compileActions(definition)));
+    }
+
+    /**
+     * Defines a hidden class whose constants are the two handle trees, and
+     * creates its one instance.
+     */
+    private static Compiled defineCompiled(MethodHandle resolve, MethodHandle actions)
+    {
+        try
+        {
+            final MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClassWithClassData(COMPILED_CLASS, List.of(resolve, actions), true);
+            return (Compiled) lookup.lookupClass().getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException ex)
+        {
+            throw new IllegalStateException("Compiled definition class could not be defined", ex);
+        }
+    }
+
+    /**
+     * Builds a switch on the state id whose cases switch on the event id.
+     */
+    private static MethodHandle compileResolve(StateMachineDefinition<?> definition)
+    {
+        final MethodHandle disarmed = MethodHandles.dropArguments(MethodHandles.constant(int.class, StateMachineDefinition.DISARMED), 0, RESOLVE_TYPE.parameterList());
+        final MethodHandle eventDisarmed = MethodHandles.dropArguments(MethodHandles.constant(int.class, StateMachineDefinition.DISARMED), 0, EVENT_TYPE.parameterList());
+        final int stateCount = definition.getStateCount();
+        final int eventCount = definition.getEventCount();
+        final MethodHandle[] states = new MethodHandle[stateCount];
+        for (int stateId = 0; stateId < stateCount; stateId++)
+        {
+            final MethodHandle[] events = new MethodHandle[eventCount];
+            boolean takesEvents = false;
+            for (int eventId = 0; eventId < eventCount; eventId++)
+            {
+                final int route = definition.getFirstRoute(stateId, eventId);
+                events[eventId] = route < 0 ? eventDisarmed : compileAlternatives(definition, route);
+                takesEvents |= route >= 0;
+            }
+            states[stateId] = takesEvents ? MethodHandles.dropArguments(MethodHandles.tableSwitch(eventDisarmed, events), 0, int.class) : disarmed;
+        }
+        return stateCount == 0 ? disarmed : MethodHandles.tableSwitch(disarmed, states);
+    }
+
+    /**
+     * Builds the chain of rule tests for one state and event, innermost and
+     * earliest first, ending in REJECTED if every rule fails.
+     */
+    private static MethodHandle compileAlternatives(StateMachineDefinition<?> definition, int firstRoute)
+    {
+        int count = 0;
+        for (int route = firstRoute; route >= 0; route = definition.getNextAlternative(route))
+            count++;
+        final int[] routes = new int[count];
+        for (int index = 0, route = firstRoute; index < count; index++, route = definition.getNextAlternative(route))
+            routes[index] = route;
+
+        MethodHandle chain = eventConstant(StateMachineDefinition.REJECTED);
+        for (int index = count - 1; index >= 0; index--)
+        {
+            final ContextTransitionRule<?> rule = definition.getRouteRule(routes[index]);
+            final MethodHandle taken = eventConstant(routes[index]);
+            if (rule == null)
+                chain = taken;      // always succeeds, so nothing after it is ever tried
+            else
+                chain = MethodHandles.guardWithTest(MethodHandles.dropArguments(TRANSITION_IS_ALLOWED.bindTo(rule), 0, int.class), taken, chain);
+        }
+        return chain;
+    }
+
+    // The hidden class's constant pool. Its two fields are loaded from the class data
+    // by dynamic constants whose bootstrap method is MethodHandles.classDataAt().
+    private static final String[] COMPILED_CONSTANTS = {
+        /*  1 */ "Uuk/co/tigranetworks/CompiledDefinition",
+        /*  2 */ "C1",
+        /*  3 */ "Ujava/lang/Object",
+        /*  4 */ "C3",
+        /*  5 */ "Uuk/co/tigranetworks/DefinitionCompiler$Compiled",
+        /*  6 */ "C5",
+        /*  7 */ "URESOLVE",
+        /*  8 */ "ULjava/lang/invoke/MethodHandle;",
+        /*  9 */ "UACTIONS",
+        /* 10 */ "N7 8",
+        /* 11 */ "F2 10",
+        /* 12 */ "N9 8",
+        /* 13 */ "F2 12",
+        /* 14 */ "U<init>",
+        /* 15 */ "U()V",
+        /* 16 */ "N14 15",
+        /* 17 */ "M4 16",
+        /* 18 */ "UCode",
+        /* 19 */ "U<clinit>",
+        /* 20 */ "Uresolve",
+        /* 21 */ "U(IILjava/lang/Object;)I",
+        /* 22 */ "UrunActions",
+        /* 23 */ "U(ILjava/lang/Object;)V",
+        /* 24 */ "Ujava/lang/invoke/MethodHandle",
+        /* 25 */ "C24",
+        /* 26 */ "UinvokeExact",
+        /* 27 */ "N26 21",
+        /* 28 */ "M25 27",
+        /* 29 */ "N26 23",
+        /* 30 */ "M25 29",
+        /* 31 */ "Ujava/lang/invoke/MethodHandles",
+        /* 32 */ "C31",
+        /* 33 */ "UclassDataAt",
+        /* 34 */ "U(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;I)Ljava/lang/Object;",
+        /* 35 */ "N33 34",
+        /* 36 */ "M32 35",
+        /* 37 */ "H6 36",
+        /* 38 */ "I0",
+        /* 39 */ "I1",
+        /* 40 */ "U_",
+        /* 41 */ "N40 8",
+        /* 42 */ "D0 41",
+        /* 43 */ "D1 41",
+        /* 44 */ "UBootstrapMethods",
+    };
+
+    private static final byte[] COMPILED_CLASS = assembleCompiledClass();
+
+    /**
+     * Assembles the class file of the hidden class, which is the same for every
+     * definition. It is equivalent to:
+     * <pre>
+     * final class CompiledDefinition implements DefinitionCompiler.Compiled
+     * {
+     *     private static final MethodHandle RESOLVE = classDataAt(0);
+     *     private static final MethodHandle ACTIONS = classDataAt(1);
+     *
+     *     public int resolve(int stateId, int eventId, Object context)
+     *     {
+     *         return (int) RESOLVE.invokeExact(stateId, eventId, context);
+     *     }
+     *
+     *     public void runActions(int route, Object context)
+     *     {
+     *         ACTIONS.invokeExact(route, context);
+     *     }
+     * }
+     * </pre>
+     * None of the methods branches, so the class needs no stack map frames.
+     */
+    private static byte[] assembleCompiledClass()
+    {
+        try
+        {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(61);                                 // Java 17
+            out.writeShort(COMPILED_CONSTANTS.length + 1);
+            for (String constant : COMPILED_CONSTANTS)
+                writeConstant(out, constant);
+            out.writeShort(0x1030);                             // final, super, synthetic
+            out.writeShort(2);                                  // this class
+            out.writeShort(4);                                  // super class
+            out.writeShort(1);
+            out.writeShort(6);                                  // implements Compiled
+
+            out.writeShort(2);
+            for (int name : new int[] {7, 9})
+            {
+                out.writeShort(0x001A);                         // private static final
+                out.writeShort(name);
+                out.writeShort(8);
+                out.writeShort(0);
+            }
+
+            out.writeShort(4);
+            writeMethod(out, 0x0001, 14, 15, 1, 1, new byte[] {
+                0x2A,                                           // aload_0
+                (byte) 0xB7, 0, 17,                             // invokespecial Object.<init>
+                (byte) 0xB1                                     // return
+            });
+            writeMethod(out, 0x0008, 19, 15, 1, 0, new byte[] {
+                0x13, 0, 42,                                    // ldc_w classDataAt(0)
+                (byte) 0xB3, 0, 11,                             // putstatic RESOLVE
+                0x13, 0, 43,                                    // ldc_w classDataAt(1)
+                (byte) 0xB3, 0, 13,                             // putstatic ACTIONS
+                (byte) 0xB1                                     // return
+            });
+            writeMethod(out, 0x0001, 20, 21, 4, 4, new byte[] {
+                (byte) 0xB2, 0, 11,                             // getstatic RESOLVE
+                0x1B, 0x1C, 0x2D,                               // iload_1, iload_2, aload_3
+                (byte) 0xB6, 0, 28,                             // invokevirtual invokeExact
+                (byte) 0xAC                                     // ireturn
+            });
+            writeMethod(out, 0x0001, 22, 23, 3, 3, new byte[] {
+                (byte) 0xB2, 0, 13,                             // getstatic ACTIONS
+                0x1B, 0x2C,                                     // iload_1, aload_2
+                (byte) 0xB6, 0, 30,                             // invokevirtual invokeExact
+                (byte) 0xB1                                     // return
+            });
+
+            out.writeShort(1);
+            out.writeShort(44);                                 // BootstrapMethods
+            out.writeInt(14);
+            out.writeShort(2);
+            for (int index : new int[] {38, 39})
+            {
+                out.writeShort(37);                             // MethodHandles.classDataAt
+                out.writeShort(1);
+                out.writeShort(index);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }
+        catch (IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Writes a constant pool entry given as a tag letter and its operands:
+     * Utf8, Class, Integer, NameAndType, Fieldref, Methodref, method Handle
+     * or Dynamic.
+     */
+    private static void writeConstant(DataOutputStream out, String constant) throws IOException
+    {
+        final String value = constant.substring(1);
+        final String[] operands = value.split(" ");
+        switch (constant.charAt(0))
+        {
+            case 'U':
+                out.writeByte(1);
+                out.writeUTF(value);
+                break;
+            case 'I':
+                out.writeByte(3);
+                out.writeInt(Integer.parseInt(value));
+                break;
+            case 'C':
+                out.writeByte(7);
+                out.writeShort(Integer.parseInt(value));
+                break;
+            case 'H':
+                out.writeByte(15);
+                out.writeByte(Integer.parseInt(operands[0]));
+                out.writeShort(Integer.parseInt(operands[1]));
+                break;
+            default:
+                out.writeByte(pairTag(constant.charAt(0)));
+                out.writeShort(Integer.parseInt(operands[0]));
+                out.writeShort(Integer.parseInt(operands[1]));
+                break;
+        }
+    }
+
+    private static int pairTag(char letter)
+    {
+        switch (letter)
+        {
+            case 'F':
+                return 9;
+            case 'M':
+                return 10;
+            case 'N':
+                return 12;
+            case 'D':
+                return 17;
+            default:
+                throw new IllegalArgumentException("Unknown constant tag " + letter);
+        }
+    }
+
+    private static void writeMethod(DataOutputStream out, int access, int name, int descriptor, int maxStack, int maxLocals, byte[] code) throws IOException
+    {
+        out.writeShort(access);
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1);
+        out.writeShort(18);                                     // Code
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0);                                      // no exception handlers
+        out.writeShort(0);                                      // no attributes
+    }
+
+    private static MethodHandle eventConstant(int value)
+    {
+        return MethodHandles.dropArguments(MethodHandles.constant(int.class, value), 0, EVENT_TYPE.parameterList());
+    }
+
+    /**
+     * Builds a switch on the route whose cases run that route's actions in order.
+     */
+    private static MethodHandle compileActions(StateMachineDefinition<?> definition)
+    {
+        final MethodHandle none = MethodHandles.empty(ACTIONS_TYPE);
+        final int routeCount = definition.getRouteCount();
+        if (routeCount == 0)
+            return none;
+        final MethodHandle[] routes = new MethodHandle[routeCount];
+        for (int route = 0; route < routeCount; route++)
+        {
+            final ContextStateTransitionAction<?>[] actions = definition.getRouteActions(route);
+            // Fold from the last action back, so that the first action runs first.
+            MethodHandle sequence = none;
+            for (int index = actions.length - 1; index >= 0; index--)
+                sequence = MethodHandles.foldArguments(sequence, MethodHandles.dropArguments(ACTION.bindTo(actions[index]), 0, int.class));
+            routes[route] = sequence;
+        }
+        return MethodHandles.tableSwitch(none, routes);
+    }
+}
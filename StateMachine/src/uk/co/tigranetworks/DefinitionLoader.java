@@ -0,0 +1,672 @@
+package uk.co.tigranetworks;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads state machine definitions from a compact, line-oriented text format,
+ * binding the rules and actions that the text refers to by name.
+ * <p/>
+ * A file holds any number of machines. Each runs from a {@code machine} line
+ * to an {@code end} line; blank lines and anything after a {@code #} are
+ * ignored, and a name that contains spaces is written in double quotes:
+ * <pre>
+ * machine Turnstile
+ *     slot int money
+ *     state Locked enter resetMoney
+ *     state Unlocked exit countPass
+ *     state Broken
+ *     state Jammed in Broken initial
+ *     event Coin 0
+ *     transition Locked Coin -&gt; Unlocked when enoughMoney
+ *     transition Unlocked Push -&gt; Locked
+ *     initial Locked
+ *     metrics
+ * end
+ * </pre>
+ * <ul>
+ *     <li>{@code slot int|long|double|reference <name>} declares an extended-state slot.</li>
+ *     <li>{@code state <name> [in <parent>] [enter <action>] [exit <action>] [initial]}
+ *         declares a state; a parent must be declared before its substates, and
+ *         {@code initial} makes the state its parent's initial substate.</li>
+ *     <li>{@code event <name> <id>} gives an event a fixed id. Transitions may use
+ *         declared names, bare ids, or new names, which are given the ids after
+ *         the highest declared one in order of first use.</li>
+ *     <li>{@code transition <from> <event> -> <to> [when <rule>]} adds a transition.</li>
+ *     <li>{@code initial <state>} sets the state that instances start in.</li>
+ *     <li>{@code metrics} turns on {@link TransitionMetrics} for the machine.</li>
+ * </ul>
+ * Loading translates the text into a binary index, in which every name has
+ * been resolved to a state id, event id or slot type, and builds definitions
+ * from that index; rule and action names are looked up once, as each
+ * definition is built. {@link #load(Path, Path)} keeps the index in a cache
+ * file, so that on later starts the cache is memory-mapped and the text is
+ * not read at all unless it has changed since. A deployment with hundreds of
+ * machine types can therefore be ready in about the time it takes to call
+ * their builders.
+ *
+ * @param <C> The type of the per-instance context object of the machines loaded.
+ */
+public final class DefinitionLoader<C>
+{
+    private static final int   MAGIC       = 0x46534D44;     // "FSMD"
+    private static final short VERSION     = 1;
+    private static final int   HEADER_SIZE = Integer.BYTES + Short.BYTES + Long.BYTES + Long.BYTES;
+
+    private static final String[] SLOT_TYPE_NAMES = {"int", "long", "double", "reference"};
+
+    private final Map<String, ContextTransitionRule<C>>        rules   = new HashMap<>();
+    private final Map<String, ContextStateTransitionAction<C>> actions = new HashMap<>();
+    private       boolean                                      compiled;
+
+    /**
+     * Binds a name used after {@code when} to a rule.
+     */
+    public DefinitionLoader<C> bindRule(String name, ContextTransitionRule<C> rule)
+    {
+        if (name == null || name.isEmpty())
+            throw new IllegalArgumentException("Rule name must not be empty or null");
+        if (rule == null)
+            throw new IllegalArgumentException("Rule is required");
+        rules.put(name, rule);
+        return this;
+    }
+
+    /**
+     * Binds a name used after {@code enter} or {@code exit} to an action.
+     */
+    public DefinitionLoader<C> bindAction(String name, ContextStateTransitionAction<C> action)
+    {
+        if (name == null || name.isEmpty())
+            throw new IllegalArgumentException("Action name must not be empty or null");
+        if (action == null)
+            throw new IllegalArgumentException("Action is required");
+        actions.put(name, action);
+        return this;
+    }
+
+    /**
+     * Chooses whether loaded definitions are passed through {@link DefinitionCompiler}.
+     * They are not by default.
+     */
+    public DefinitionLoader<C> setCompiled(boolean compiled)
+    {
+        this.compiled = compiled;
+        return this;
+    }
+
+    /**
+     * Loads every machine described by some text.
+     *
+     * @param source The text. It is read to the end but not closed.
+     * @return The definitions, by machine name, in the order in which they appear.
+     * @throws IllegalArgumentException If the text is malformed, or refers to a rule or action that is not bound.
+     */
+    public Map<String, StateMachineDefinition<C>> load(Reader source) throws IOException
+    {
+        return buildAll(ByteBuffer.wrap(index(source)));
+    }
+
+    /**
+     * Loads every machine described by a file, through a cache of its index.
+     * If the cache was made from a file of the same size and modification time
+     * then it is memory-mapped and the file is not read; otherwise the file is
+     * read and the cache replaced. A cache that cannot be read back is
+     * likewise replaced.
+     *
+     * @param source The text file.
+     * @param cache  The cache file, which need not exist yet.
+     * @return The definitions, by machine name, in the order in which they appear.
+     * @throws IllegalArgumentException If the text is malformed, or refers to a rule or action that is not bound.
+     */
+    public Map<String, StateMachineDefinition<C>> load(Path source, Path cache) throws IOException
+    {
+        final BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+        final long size = attributes.size();
+        final long modified = attributes.lastModifiedTime().toMillis();
+        if (Files.isRegularFile(cache))
+        {
+            try (FileChannel channel = FileChannel.open(cache, StandardOpenOption.READ))
+            {
+                // The mapping stays valid after the channel is closed.
+                final ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (isCurrent(index, size, modified))
+                {
+                    try
+                    {
+                        return buildAll(index);
+                    }
+                    catch (StreamCorruptedException | IndexOutOfBoundsException | IllegalArgumentException | IllegalStateException ex)
+                    {
+                        // A damaged body under a current header: truncated, out-of-range ids or
+                        // names that are not bound. The cache is rebuilt from the text below,
+                        // which raises the same exception if the fault is its own.
+                    }
+                }
+            }
+        }
+
+        final byte[] index;
+        try (Reader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8))
+        {
+            index = index(reader);
+        }
+        writeCache(cache, index, size, modified);
+        return buildAll(ByteBuffer.wrap(index));
+    }
+
+    private static boolean isCurrent(ByteBuffer index, long size, long modified)
+    {
+        return index.remaining() >= HEADER_SIZE
+            && index.getInt() == MAGIC
+            && index.getShort() == VERSION
+            && index.getLong() == size
+            && index.getLong() == modified;
+    }
+
+    private static void writeCache(Path cache, byte[] index, long size, long modified) throws IOException
+    {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putShort(VERSION).putLong(size).putLong(modified).flip();
+        // Written alongside and moved into place, so that a concurrent start never maps half a cache.
+        final Path parent = cache.toAbsolutePath().getParent();
+        final Path temporary = Files.createTempFile(parent, cache.getFileName().toString(), ".tmp");
+        try
+        {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE))
+            {
+                final ByteBuffer body = ByteBuffer.wrap(index);
+                while (header.hasRemaining() || body.hasRemaining())
+                    channel.write(new ByteBuffer[] {header, body});
+            }
+            Files.move(temporary, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally
+        {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    // ---- Building definitions from the index ----
+
+    private Map<String, StateMachineDefinition<C>> buildAll(ByteBuffer index) throws IOException
+    {
+        try
+        {
+            final int machineCount = index.getInt();
+            final Map<String, StateMachineDefinition<C>> definitions = new LinkedHashMap<>();
+            for (int machine = 0; machine < machineCount; machine++)
+            {
+                final String name = getString(index);
+                final StateMachineDefinition<C> definition = build(index);
+                definitions.put(name, compiled ? DefinitionCompiler.compile(definition) : definition);
+            }
+            if (index.hasRemaining())
+                throw new StreamCorruptedException("Definition index has bytes after its last machine");
+            return Collections.unmodifiableMap(definitions);
+        }
+        catch (BufferUnderflowException ex)
+        {
+            throw new StreamCorruptedException("Definition index is truncated");
+        }
+    }
+
+    private StateMachineDefinition<C> build(ByteBuffer index)
+    {
+        final StateMachineDefinition.Builder<C> builder = StateMachineDefinition.builder();
+        final ContextLayout.SlotType[] slotTypes = ContextLayout.SlotType.values();
+        for (int count = index.getInt(); count > 0; count--)
+        {
+            final ContextLayout.SlotType type = slotTypes[index.get()];
+            final String name = getString(index);
+            switch (type)
+            {
+                case INT:
+                    builder.addIntSlot(name);
+                    break;
+                case LONG:
+                    builder.addLongSlot(name);
+                    break;
+                case DOUBLE:
+                    builder.addDoubleSlot(name);
+                    break;
+                default:
+                    builder.addReferenceSlot(name);
+                    break;
+            }
+        }
+        for (int count = index.getInt(); count > 0; count--)
+        {
+            final String name = getString(index);
+            final int parent = index.getInt();
+            final ContextStateTransitionAction<C> onEnter = action(getString(index));
+            final ContextStateTransitionAction<C> onExit = action(getString(index));
+            builder.addState(name, parent, onEnter, onExit);
+        }
+        for (int count = index.getInt(); count > 0; count--)
+            builder.setInitialSubstate(index.getInt(), index.getInt());
+        for (int count = index.getInt(); count > 0; count--)
+        {
+            final String name = getString(index);
+            builder.nameEvent(name, index.getInt());
+        }
+        for (int count = index.getInt(); count > 0; count--)
+        {
+            final int from = index.getInt();
+            final int event = index.getInt();
+            final int to = index.getInt();
+            builder.addTransition(from, event, to, rule(getString(index)));
+        }
+        builder.setInitialState(index.getInt());
+        builder.setMetricsEnabled(index.get() != 0);
+        return builder.build();
+    }
+
+    private ContextTransitionRule<C> rule(String name)
+    {
+        if (name.isEmpty())
+            return null;
+        final ContextTransitionRule<C> rule = rules.get(name);
+        if (rule == null)
+            throw new IllegalArgumentException("No rule is bound to the name " + name);
+        return rule;
+    }
+
+    private ContextStateTransitionAction<C> action(String name)
+    {
+        if (name.isEmpty())
+            return null;
+        final ContextStateTransitionAction<C> action = actions.get(name);
+        if (action == null)
+            throw new IllegalArgumentException("No action is bound to the name " + name);
+        return action;
+    }
+
+    private static String getString(ByteBuffer index)
+    {
+        final byte[] bytes = new byte[index.getShort() & 0xFFFF];
+        index.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // ---- Translating the text into the index ----
+
+    private static byte[] index(Reader source) throws IOException
+    {
+        final BufferedReader reader = new BufferedReader(source);
+        final List<MachineSpec> machines = new ArrayList<>();
+        MachineSpec machine = null;
+        int lineNumber = 0;
+        for (String line = reader.readLine(); line != null; line = reader.readLine())
+        {
+            lineNumber++;
+            final List<String> tokens = tokenize(line, lineNumber);
+            if (tokens.isEmpty())
+                continue;
+            final String keyword = tokens.get(0);
+            if (keyword.equals("machine"))
+            {
+                if (machine != null)
+                    throw syntax(lineNumber, "Machine " + machine.name + " has no end");
+                expect(tokens, 2, lineNumber);
+                machine = new MachineSpec(tokens.get(1));
+                continue;
+            }
+            if (machine == null)
+                throw syntax(lineNumber, "Expected a machine line");
+            if (keyword.equals("end"))
+            {
+                expect(tokens, 1, lineNumber);
+                machine.resolve(lineNumber);
+                machines.add(machine);
+                machine = null;
+            }
+            else
+                machine.add(tokens, lineNumber);
+        }
+        if (machine != null)
+            throw syntax(lineNumber, "Machine " + machine.name + " has no end");
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(machines.size());
+        for (MachineSpec spec : machines)
+            spec.write(output);
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    private static List<String> tokenize(String line, int lineNumber)
+    {
+        final List<String> tokens = new ArrayList<>();
+        int position = 0;
+        while (position < line.length())
+        {
+            final char ch = line.charAt(position);
+            if (ch == '#')
+                break;
+            if (Character.isWhitespace(ch))
+            {
+                position++;
+                continue;
+            }
+            if (ch == '"')
+            {
+                final int close = line.indexOf('"', position + 1);
+                if (close < 0)
+                    throw syntax(lineNumber, "Unterminated quoted name");
+                if (close == position + 1)
+                    throw syntax(lineNumber, "Quoted name is empty");
+                tokens.add(line.substring(position + 1, close));
+                position = close + 1;
+                continue;
+            }
+            int end = position;
+            while (end < line.length() && !Character.isWhitespace(line.charAt(end)) && line.charAt(end) != '#')
+                end++;
+            tokens.add(line.substring(position, end));
+            position = end;
+        }
+        return tokens;
+    }
+
+    private static void expect(List<String> tokens, int count, int lineNumber)
+    {
+        if (tokens.size() != count)
+            throw syntax(lineNumber, "Expected " + (count - 1) + " argument(s) to " + tokens.get(0));
+    }
+
+    private static IllegalArgumentException syntax(int lineNumber, String message)
+    {
+        return new IllegalArgumentException("Line " + lineNumber + ": " + message);
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException
+    {
+        final byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF)
+            throw new IllegalArgumentException("Name is too long: " + value.substring(0, 32) + "...");
+        output.writeShort(bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * One machine as written in the text, until its names are resolved to ids.
+     */
+    private static final class MachineSpec
+    {
+        final String                name;
+        final List<String>          slotNames        = new ArrayList<>();
+        final List<Integer>         slotTypes        = new ArrayList<>();
+        final Map<String, Integer>  states           = new HashMap<>();
+        final List<String>          stateNames       = new ArrayList<>();
+        final List<Integer>         parents          = new ArrayList<>();
+        final List<String>          enterActions     = new ArrayList<>();
+        final List<String>          exitActions      = new ArrayList<>();
+        final List<Integer>         initialSubstates = new ArrayList<>();
+        final Map<String, Integer>  events           = new LinkedHashMap<>();
+        final List<String[]>        transitions      = new ArrayList<>();
+        final List<Integer>         transitionLines  = new ArrayList<>();
+        final List<int[]>           resolved         = new ArrayList<>();
+        final List<String>          transitionRules  = new ArrayList<>();
+        String                      initialName;
+        int                         initialLine;
+        int                         initialState     = -1;
+        boolean                     metrics;
+
+        MachineSpec(String name)
+        {
+            this.name = name;
+        }
+
+        void add(List<String> tokens, int lineNumber)
+        {
+            final String keyword = tokens.get(0);
+            switch (keyword)
+            {
+                case "slot":
+                    expect(tokens, 3, lineNumber);
+                    addSlot(tokens.get(1), tokens.get(2), lineNumber);
+                    break;
+                case "state":
+                    addState(tokens, lineNumber);
+                    break;
+                case "event":
+                    expect(tokens, 3, lineNumber);
+                    addEvent(tokens.get(1), tokens.get(2), lineNumber);
+                    break;
+                case "transition":
+                    if ((tokens.size() != 5 && tokens.size() != 7) || !tokens.get(3).equals("->")
+                            || (tokens.size() == 7 && !tokens.get(5).equals("when")))
+                        throw syntax(lineNumber, "Expected transition <from> <event> -> <to> [when <rule>]");
+                    transitions.add(new String[] {tokens.get(1), tokens.get(2), tokens.get(4)});
+                    transitionLines.add(lineNumber);
+                    transitionRules.add(tokens.size() == 7 ? tokens.get(6) : null);
+                    break;
+                case "initial":
+                    expect(tokens, 2, lineNumber);
+                    initialName = tokens.get(1);
+                    initialLine = lineNumber;
+                    break;
+                case "metrics":
+                    expect(tokens, 1, lineNumber);
+                    metrics = true;
+                    break;
+                default:
+                    throw syntax(lineNumber, "Unknown keyword " + keyword);
+            }
+        }
+
+        private void addSlot(String type, String slotName, int lineNumber)
+        {
+            int ordinal = -1;
+            for (int index = 0; index < SLOT_TYPE_NAMES.length; index++)
+                if (SLOT_TYPE_NAMES[index].equals(type))
+                    ordinal = index;
+            if (ordinal < 0)
+                throw syntax(lineNumber, "Unknown slot type " + type);
+            if (slotNames.contains(slotName))
+                throw syntax(lineNumber, "Duplicate slot " + slotName);
+            slotNames.add(slotName);
+            slotTypes.add(ordinal);
+        }
+
+        private void addState(List<String> tokens, int lineNumber)
+        {
+            if (tokens.size() < 2)
+                throw syntax(lineNumber, "Expected a state name");
+            final String stateName = tokens.get(1);
+            if (states.containsKey(stateName))
+                throw syntax(lineNumber, "Duplicate state " + stateName);
+            int parent = StateMachineDefinition.NO_PARENT;
+            String enter = null;
+            String exit = null;
+            boolean initial = false;
+            for (int index = 2; index < tokens.size(); index++)
+            {
+                final String option = tokens.get(index);
+                if (option.equals("initial"))
+                {
+                    initial = true;
+                    continue;
+                }
+                if (index + 1 == tokens.size())
+                    throw syntax(lineNumber, "Expected a name after " + option);
+                final String value = tokens.get(++index);
+                switch (option)
+                {
+                    case "in":
+                        final Integer parentId = states.get(value);
+                        if (parentId == null)
+                            throw syntax(lineNumber, "Parent state " + value + " must be declared before " + stateName);
+                        parent = parentId;
+                        break;
+                    case "enter":
+                        enter = value;
+                        break;
+                    case "exit":
+                        exit = value;
+                        break;
+                    default:
+                        throw syntax(lineNumber, "Unknown state option " + option);
+                }
+            }
+            if (initial && parent == StateMachineDefinition.NO_PARENT)
+                throw syntax(lineNumber, "Only a substate can be its parent's initial substate");
+            final int stateId = stateNames.size();
+            states.put(stateName, stateId);
+            stateNames.add(stateName);
+            parents.add(parent);
+            enterActions.add(enter);
+            exitActions.add(exit);
+            if (initial)
+            {
+                initialSubstates.add(parent);
+                initialSubstates.add(stateId);
+            }
+        }
+
+        private void addEvent(String eventName, String id, int lineNumber)
+        {
+            final int eventId;
+            try
+            {
+                eventId = Integer.parseInt(id);
+            }
+            catch (NumberFormatException ex)
+            {
+                throw syntax(lineNumber, "Event id " + id + " is not a number");
+            }
+            if (eventId < 0)
+                throw syntax(lineNumber, "Event id must not be negative");
+            if (events.containsKey(eventName) || events.containsValue(eventId))
+                throw syntax(lineNumber, "Duplicate event " + eventName + " or id " + eventId);
+            events.put(eventName, eventId);
+        }
+
+        /**
+         * Resolves the names used by the transitions and initial state, once
+         * every state and event of the machine has been seen.
+         */
+        void resolve(int endLine)
+        {
+            // Names not declared by an event line are given ids after every declared
+            // id and every id that a transition uses as a bare number.
+            int nextEvent = 0;
+            for (int eventId : events.values())
+                nextEvent = Math.max(nextEvent, eventId + 1);
+            for (int index = 0; index < transitions.size(); index++)
+            {
+                final String eventName = transitions.get(index)[1];
+                if (!events.containsKey(eventName) && isNumber(eventName))
+                    nextEvent = Math.max(nextEvent, eventNumber(eventName, transitionLines.get(index)) + 1);
+            }
+            for (int index = 0; index < transitions.size(); index++)
+            {
+                final String[] names = transitions.get(index);
+                final int lineNumber = transitionLines.get(index);
+                Integer eventId = events.get(names[1]);
+                if (eventId == null)
+                {
+                    if (isNumber(names[1]))
+                        eventId = eventNumber(names[1], lineNumber);
+                    else
+                    {
+                        eventId = nextEvent++;
+                        events.put(names[1], eventId);
+                    }
+                }
+                resolved.add(new int[] {state(names[0], lineNumber), eventId, state(names[2], lineNumber)});
+            }
+            if (initialName == null)
+                throw syntax(endLine, "Machine " + name + " has no initial state");
+            initialState = state(initialName, initialLine);
+        }
+
+        private int state(String stateName, int lineNumber)
+        {
+            final Integer stateId = states.get(stateName);
+            if (stateId == null)
+                throw syntax(lineNumber, "Unknown state " + stateName);
+            return stateId;
+        }
+
+        private static int eventNumber(String value, int lineNumber)
+        {
+            try
+            {
+                return Integer.parseInt(value);
+            }
+            catch (NumberFormatException ex)
+            {
+                throw syntax(lineNumber, "Event id " + value + " is out of range");
+            }
+        }
+
+        private static boolean isNumber(String value)
+        {
+            if (value.isEmpty())
+                return false;
+            for (int index = 0; index < value.length(); index++)
+                if (!Character.isDigit(value.charAt(index)))
+                    return false;
+            return true;
+        }
+
+        void write(DataOutputStream output) throws IOException
+        {
+            writeString(output, name);
+            output.writeInt(slotNames.size());
+            for (int index = 0; index < slotNames.size(); index++)
+            {
+                output.writeByte(slotTypes.get(index));
+                writeString(output, slotNames.get(index));
+            }
+            output.writeInt(stateNames.size());
+            for (int index = 0; index < stateNames.size(); index++)
+            {
+                writeString(output, stateNames.get(index));
+                output.writeInt(parents.get(index));
+                writeString(output, enterActions.get(index));
+                writeString(output, exitActions.get(index));
+            }
+            output.writeInt(initialSubstates.size() / 2);
+            for (int value : initialSubstates)
+                output.writeInt(value);
+            output.writeInt(events.size());
+            for (Map.Entry<String, Integer> event : events.entrySet())
+            {
+                writeString(output, event.getKey());
+                output.writeInt(event.getValue());
+            }
+            output.writeInt(resolved.size());
+            for (int index = 0; index < resolved.size(); index++)
+            {
+                for (int value : resolved.get(index))
+                    output.writeInt(value);
+                writeString(output, transitionRules.get(index));
+            }
+            output.writeInt(initialState);
+            output.writeByte(metrics ? 1 : 0);
+        }
+    }
+}
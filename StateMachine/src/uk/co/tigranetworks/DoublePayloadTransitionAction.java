@@ -0,0 +1,9 @@
+package uk.co.tigranetworks;
+
+/**
+ * A {@link PayloadTransitionAction} for double payloads, which are delivered without boxing.
+ */
+public interface DoublePayloadTransitionAction
+{
+    public void action(double payload);
+}
@@ -0,0 +1,11 @@
+package uk.co.tigranetworks;
+
+import java.util.EventListener;
+
+/**
+ * A {@link PayloadTransitionRule} for double payloads, which are delivered without boxing.
+ */
+public interface DoublePayloadTransitionRule extends EventListener
+{
+    public boolean transitionIsAllowed(double payload);
+}
@@ -0,0 +1,129 @@
+package uk.co.tigranetworks;
+
+import java.util.Arrays;
+
+/**
+ * The values of the extended-state slots of one instance, laid out as
+ * described by a {@link ContextLayout}: one long per int, long or double
+ * slot and one reference per reference slot, in two flat arrays.
+ * <p/>
+ * An ExtendedState is meant to be the context object of a
+ * {@link StateMachineInstance} (or of an instance in a
+ * {@link StateMachinePopulation}), so that rules and actions read and write
+ * it under the instance's own guarantees rather than behind a lock of their
+ * own. An event claims the instance before its rules are evaluated, and
+ * releases it only after the actions have finished, so rules and actions
+ * run one transition at a time while every other event is disarmed. Rules
+ * therefore always see the slots as the last action left them, and the
+ * actions' writes are visible to every rule evaluated after them.
+ * Code outside the rules and actions should only write slots before the
+ * instance is created, or while no events are being fired.
+ */
+public final class ExtendedState
+{
+    private static final int INT       = ContextLayout.SlotType.INT.ordinal();
+    private static final int LONG      = ContextLayout.SlotType.LONG.ordinal();
+    private static final int DOUBLE    = ContextLayout.SlotType.DOUBLE.ordinal();
+    private static final int REFERENCE = ContextLayout.SlotType.REFERENCE.ordinal();
+
+    private final ContextLayout layout;
+    final         long[]        primitives;     // doubles are held as their raw bits
+    final         Object[]      references;     // null if there are no reference slots
+
+    ExtendedState(ContextLayout layout, long[] primitives, Object[] references)
+    {
+        this.layout = layout;
+        this.primitives = primitives;
+        this.references = references;
+    }
+
+    public ContextLayout getLayout()
+    {
+        return layout;
+    }
+
+    public int getInt(int slot)
+    {
+        return (int) primitives[position(slot, INT)];
+    }
+
+    public void setInt(int slot, int value)
+    {
+        primitives[position(slot, INT)] = value;
+    }
+
+    /**
+     * Adds to an int slot and returns the new value.
+     */
+    public int addInt(int slot, int delta)
+    {
+        final int position = position(slot, INT);
+        final int value = (int) primitives[position] + delta;
+        primitives[position] = value;
+        return value;
+    }
+
+    public long getLong(int slot)
+    {
+        return primitives[position(slot, LONG)];
+    }
+
+    public void setLong(int slot, long value)
+    {
+        primitives[position(slot, LONG)] = value;
+    }
+
+    /**
+     * Adds to a long slot and returns the new value.
+     */
+    public long addLong(int slot, long delta)
+    {
+        final int position = position(slot, LONG);
+        final long value = primitives[position] + delta;
+        primitives[position] = value;
+        return value;
+    }
+
+    public double getDouble(int slot)
+    {
+        return Double.longBitsToDouble(primitives[position(slot, DOUBLE)]);
+    }
+
+    public void setDouble(int slot, double value)
+    {
+        primitives[position(slot, DOUBLE)] = Double.doubleToRawLongBits(value);
+    }
+
+    /**
+     * Gets the value of a reference slot.
+     *
+     * @param <T> The type of the value; the caller is responsible for asking for the right one.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getReference(int slot)
+    {
+        return (T) references[position(slot, REFERENCE)];
+    }
+
+    public void setReference(int slot, Object value)
+    {
+        references[position(slot, REFERENCE)] = value;
+    }
+
+    /**
+     * Sets every slot back to zero or null.
+     */
+    public void clear()
+    {
+        Arrays.fill(primitives, 0);
+        if (references != null)
+            Arrays.fill(references, null);
+    }
+
+    private static int position(int slot, int type)
+    {
+        if ((slot >>> ContextLayout.TYPE_SHIFT) != type)
+            throw new IllegalArgumentException("Slot " + slot + " does not hold " + ContextLayout.SlotType.values()[type] + " values");
+        return slot & ContextLayout.POSITION_MASK;
+    }
+}
@@ -0,0 +1,9 @@
+package uk.co.tigranetworks;
+
+/**
+ * A {@link PayloadTransitionAction} for int payloads, which are delivered without boxing.
+ */
+public interface IntPayloadTransitionAction
+{
+    public void action(int payload);
+}
@@ -0,0 +1,11 @@
+package uk.co.tigranetworks;
+
+import java.util.EventListener;
+
+/**
+ * A {@link PayloadTransitionRule} for int payloads, which are delivered without boxing.
+ */
+public interface IntPayloadTransitionRule extends EventListener
+{
+    public boolean transitionIsAllowed(int payload);
+}
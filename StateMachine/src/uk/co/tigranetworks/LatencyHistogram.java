@@ -0,0 +1,121 @@
+package uk.co.tigranetworks;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent histogram of durations in nanoseconds, in the style of
+ * HdrHistogram: values are counted in log-linear buckets, sixteen to each
+ * power of two, so that every recorded value is accurate to within about 6%
+ * from one nanosecond up to centuries, in a fixed 8KB of counters.
+ * <p/>
+ * Recording is thread-safe, allocation-free and wait-free apart from the
+ * occasional compare-and-set of a new maximum. Reads are not atomic with
+ * respect to concurrent recording, which is fine for monitoring.
+ */
+public final class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS     = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS         = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts     = new AtomicLongArray(BUCKETS);
+    private final LongAdder       totalNanos = new LongAdder();
+    private final AtomicLong      maxNanos   = new AtomicLong();
+
+    /**
+     * Records a duration. Negative durations, which System.nanoTime() can
+     * produce on some platforms, are recorded as zero.
+     */
+    public void record(long nanos)
+    {
+        if (nanos < 0)
+            nanos = 0;
+        counts.incrementAndGet(bucketOf(nanos));
+        totalNanos.add(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+            max = maxNanos.get();
+    }
+
+    public long getCount()
+    {
+        long count = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++)
+            count += counts.get(bucket);
+        return count;
+    }
+
+    public long getTotalNanos()
+    {
+        return totalNanos.sum();
+    }
+
+    public long getMaxNanos()
+    {
+        return maxNanos.get();
+    }
+
+    /**
+     * Gets the mean duration, or zero if nothing has been recorded.
+     */
+    public long getMeanNanos()
+    {
+        final long count = getCount();
+        return count == 0 ? 0 : getTotalNanos() / count;
+    }
+
+    /**
+     * Gets the duration that the specified percentage of recorded values are at
+     * or below, to the precision of the buckets.
+     *
+     * @param percentile The percentile, from 0 to 100.
+     * @return The highest value in the bucket holding the percentile, or zero if nothing has been recorded.
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        final long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++)
+        {
+            snapshot[bucket] = counts.get(bucket);
+            count += snapshot[bucket];
+        }
+        if (count == 0)
+            return 0;
+        final long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++)
+        {
+            seen += snapshot[bucket];
+            if (seen >= target)
+                return Math.min(highestValueIn(bucket), getMaxNanos());
+        }
+        return getMaxNanos();
+    }
+
+    static int bucketOf(long value)
+    {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long lowestValueIn(int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    static long highestValueIn(int bucket)
+    {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : lowestValueIn(bucket + 1) - 1;
+    }
+}
@@ -0,0 +1,9 @@
+package uk.co.tigranetworks;
+
+/**
+ * A {@link PayloadTransitionAction} for long payloads, which are delivered without boxing.
+ */
+public interface LongPayloadTransitionAction
+{
+    public void action(long payload);
+}
@@ -0,0 +1,11 @@
+package uk.co.tigranetworks;
+
+import java.util.EventListener;
+
+/**
+ * A {@link PayloadTransitionRule} for long payloads, which are delivered without boxing.
+ */
+public interface LongPayloadTransitionRule extends EventListener
+{
+    public boolean transitionIsAllowed(long payload);
+}
@@ -0,0 +1,130 @@
+package uk.co.tigranetworks;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A lock-free multi-producer, single-consumer message queue that drains itself
+ * on an Executor. Any number of threads may post messages without blocking;
+ * the messages are handed to the consumer one at a time, in the order in
+ * which they were posted, by at most one executor task at a time.
+ * <p/>
+ * Each message is a pair of objects and an int, so that integer event ids
+ * can be posted without boxing. With an executor that runs tasks on the
+ * calling thread, the mailbox becomes a caller-runs queue: whichever thread
+ * finds it idle drains it, and every other thread just leaves its message.
+ */
+final class Mailbox implements Runnable
+{
+    /**
+     * Receives the messages, always on a task submitted to the executor.
+     */
+    interface Consumer
+    {
+        void accept(Object message, Object argument, int value);
+    }
+
+    // The most messages handled by one executor task before it gives other tasks on a shared pool a turn.
+    private static final int BATCH_SIZE = 256;
+
+    private final Executor              executor;
+    private final Consumer              consumer;
+    private final AtomicReference<Node> tail;
+    private final AtomicBoolean         scheduled = new AtomicBoolean();
+    private       Node                  head;       // the last message consumed; touched only by the draining task
+
+    Mailbox(Executor executor, Consumer consumer)
+    {
+        this.executor = executor;
+        this.consumer = consumer;
+        head = new Node(null, null, 0);
+        tail = new AtomicReference<>(head);
+    }
+
+    /**
+     * Queues a message and makes sure that a task is scheduled to drain it.
+     * Never blocks, although the executor may reject the task.
+     */
+    void post(Object message, int value)
+    {
+        enqueue(message, null, value);
+        flush();
+    }
+
+    /**
+     * Queues a message without scheduling a task to drain it; the caller must
+     * call flush() once it is ready for the message to be handled.
+     */
+    void enqueue(Object message, Object argument, int value)
+    {
+        final Node node = new Node(message, argument, value);
+        final Node previous = tail.getAndSet(node);
+        previous.next = node;
+    }
+
+    /**
+     * Makes sure that a task is scheduled to drain any queued messages.
+     */
+    void flush()
+    {
+        if (!scheduled.compareAndSet(false, true))
+            return;
+        try
+        {
+            executor.execute(this);
+        }
+        catch (RuntimeException ex)
+        {
+            scheduled.set(false);
+            throw ex;
+        }
+    }
+
+    /**
+     * Drains up to a batch of messages. Anything still queued afterwards is left to a
+     * fresh task. An exception thrown by the consumer ends the batch and propagates
+     * to the executor, but the remaining messages are still drained by a fresh task.
+     */
+    @Override
+    public void run()
+    {
+        try
+        {
+            for (int count = 0; count < BATCH_SIZE; count++)
+            {
+                final Node next = head.next;
+                if (next == null)
+                    break;
+                head = next;
+                final Object message = next.message;
+                final Object argument = next.argument;
+                next.message = null;
+                next.argument = null;
+                consumer.accept(message, argument, next.value);
+            }
+        }
+        finally
+        {
+            scheduled.set(false);
+            // A producer that linked its message after we stopped looking will schedule a task itself.
+            if (head.next != null)
+                flush();
+        }
+    }
+
+    private static final class Node
+    {
+        Object        message;
+        Object        argument;
+        final int     value;
+        volatile Node next;
+
+        Node(Object message, Object argument, int value)
+        {
+            this.message = message;
+            this.argument = argument;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package uk.co.tigranetworks;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Wraps an expensive {@link TransitionRule} and remembers its last result for
+ * as long as its {@link RuleVersion} is unchanged, so that repeated triggers
+ * against unchanged inputs do not evaluate the rule at all.
+ * <p/>
+ * The cached result and the version it was computed at are packed into a
+ * single volatile long, so a lookup is two volatile reads and no locking.
+ * If the version changes while the rule is being evaluated, the result is
+ * stored against the old version and the next trigger evaluates it again.
+ */
+public final class MemoizingTransitionRule implements TransitionRule
+{
+    // The cache before the first evaluation: matches no version.
+    private static final long EMPTY = -1L;
+
+    private final    TransitionRule rule;
+    private final    RuleVersion    version;
+    private final    LongAdder      hits   = new LongAdder();
+    private final    LongAdder      misses = new LongAdder();
+    private volatile long           cached = EMPTY;       // (version << 1) | result
+
+    /**
+     * Memoizes a rule against the specified version.
+     *
+     * @param rule    The rule to memoize (required; not null).
+     * @param version Invalidated whenever the rule's inputs change (required; not null).
+     */
+    public MemoizingTransitionRule(TransitionRule rule, RuleVersion version)
+    {
+        if (rule == null)
+            throw new IllegalArgumentException("Rule is required");
+        if (version == null)
+            throw new IllegalArgumentException("Rule version is required");
+        this.rule = rule;
+        this.version = version;
+    }
+
+    @Override
+    public boolean transitionIsAllowed()
+    {
+        final long current = version.get();
+        final long entry = cached;
+        if (entry != EMPTY && entry >>> 1 == current)
+        {
+            hits.increment();
+            return (entry & 1) != 0;
+        }
+        misses.increment();
+        final boolean allowed = rule.transitionIsAllowed();
+        cached = current << 1 | (allowed ? 1 : 0);
+        return allowed;
+    }
+
+    /**
+     * Discards the cached result of this rule alone.
+     */
+    public void invalidate()
+    {
+        cached = EMPTY;
+    }
+
+    public RuleVersion getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Gets the number of triggers answered from the cache.
+     */
+    public long getHitCount()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of triggers for which the wrapped rule was evaluated.
+     */
+    public long getMissCount()
+    {
+        return misses.sum();
+    }
+}
@@ -0,0 +1,306 @@
+package uk.co.tigranetworks;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A state machine made up of orthogonal regions - independent concerns such
+ * as power, connectivity and job status - each of which follows its own
+ * {@link StateMachineDefinition} and is always in exactly one of its states.
+ * All of the regions share one context object.
+ * <p/>
+ * Every event is dispatched to every region. The transitions are resolved on
+ * the calling thread, and then the OnExit and OnEnter actions of the regions
+ * that take the event are run, by default one region after another in region
+ * order. A caller whose regions are truly independent can supply a
+ * {@link ForkJoinPool}, and the actions of the regions then run in parallel on
+ * it, so an event that moves several regions takes about as long as the
+ * slowest of them rather than the sum. Either way fire() finishes every
+ * region's transition before it returns, so every region sees every event,
+ * and sees the events in the same order.
+ * <p/>
+ * Firing events is thread-safe and follows the same lock-free policy as
+ * StateMachineInstance, but for the machine as a whole: an event that arrives
+ * while another is still being applied fails fast with
+ * {@link TriggerOutcome#CONTENDED}. This includes events fired by the actions
+ * themselves.
+ * <p/>
+ * Only supply a pool if the actions of each region touch nothing but the
+ * parts of the context that belong to their own region, because with a pool
+ * the actions of different regions run at the same time.
+ *
+ * @param <C> The type of the context object shared by the regions.
+ */
+public final class OrthogonalStateMachine<C>
+{
+    private static final VarHandle FIRING;
+
+    static
+    {
+        try
+        {
+            FIRING = MethodHandles.lookup().findVarHandle(OrthogonalStateMachine.class, "firing", boolean.class);
+        }
+        catch (ReflectiveOperationException ex)
+        {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    // The state reported for every region while an event is being applied.
+    private static final int IN_TRANSITION = -1;
+
+    private final    StateMachineDefinition<C>[] regions;
+    private final    int[]                       currentStates;
+    private final    C                           context;
+    private final    ForkJoinPool                pool;      // null to run the regions in turn
+    private volatile boolean                     firing = true;
+
+    /**
+     * Creates a machine whose regions run their actions one after another on
+     * the thread that fires the event, and enters the initial state of each
+     * region in turn.
+     *
+     * @param context The context handed to every rule and action (may be null).
+     * @param regions The definition of each region (at least one).
+     */
+    public OrthogonalStateMachine(C context, List<StateMachineDefinition<C>> regions)
+    {
+        this(context, regions, null);
+    }
+
+    /**
+     * Creates a machine and enters the initial state of each region in turn.
+     * The OnEnter actions of the initial states are run, one region after
+     * another, before the constructor returns.
+     *
+     * @param context The context handed to every rule and action (may be null).
+     * @param regions The definition of each region (at least one).
+     * @param pool    Runs the actions of the regions in parallel, or null to run
+     *                them in turn. Supplying a pool declares that the regions'
+     *                actions are independent of one another.
+     */
+    public OrthogonalStateMachine(C context, List<StateMachineDefinition<C>> regions, ForkJoinPool pool)
+    {
+        if (regions == null || regions.isEmpty())
+            throw new IllegalArgumentException("At least one region is required");
+        this.regions = newRegionArray(regions.size());
+        for (int region = 0; region < this.regions.length; region++)
+        {
+            this.regions[region] = regions.get(region);
+            if (this.regions[region] == null)
+                throw new IllegalArgumentException("Region definitions must not be null");
+        }
+        this.context = context;
+        this.pool = pool;
+        currentStates = new int[this.regions.length];
+        try
+        {
+            for (int region = 0; region < this.regions.length; region++)
+            {
+                currentStates[region] = this.regions[region].getInitialState();
+                this.regions[region].enterInitialState(context);
+            }
+        }
+        finally
+        {
+            firing = false;
+        }
+    }
+
+    // Java cannot create an array of a generic type, so this helper creates a raw array.
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <C> StateMachineDefinition<C>[] newRegionArray(int length)
+    {
+        return new StateMachineDefinition[length];
+    }
+
+    public C getContext()
+    {
+        return context;
+    }
+
+    public int getRegionCount()
+    {
+        return regions.length;
+    }
+
+    public StateMachineDefinition<C> getRegion(int region)
+    {
+        return regions[region];
+    }
+
+    /**
+     * Gets the id of a region's current state, or -1 while an event is being applied.
+     */
+    public int getCurrentState(int region)
+    {
+        if (firing)
+            return IN_TRANSITION;
+        return currentStates[region];
+    }
+
+    /**
+     * Gets the name of a region's current state, or null while an event is being applied.
+     */
+    public String getCurrentStateName(int region)
+    {
+        final int stateId = getCurrentState(region);
+        return stateId == IN_TRANSITION ? null : regions[region].getStateName(stateId);
+    }
+
+    /**
+     * Fires an event at every region.
+     *
+     * @param eventId The event id.
+     * @return EXECUTED if any region executed a transition; otherwise REJECTED if
+     *         any region's rules all failed; otherwise DISARMED; or CONTENDED if
+     *         another event was still being applied.
+     */
+    public TriggerOutcome fire(int eventId)
+    {
+        return fire(eventId, null);
+    }
+
+    /**
+     * Fires an event at every region and writes the outcome for each region into
+     * a caller-supplied array, which can be reused from event to event.
+     *
+     * @param eventId  The event id.
+     * @param outcomes Receives the outcome of each region, indexed by region; must
+     *                 be at least as long as the number of regions (or null).
+     * @return The combined outcome, as for {@link #fire(int)}.
+     */
+    public TriggerOutcome fire(int eventId, TriggerOutcome[] outcomes)
+    {
+        if (outcomes != null && outcomes.length < regions.length)
+            throw new IllegalArgumentException("Outcome array is shorter than the number of regions");
+        if (!FIRING.compareAndSet(this, false, true))
+        {
+            if (outcomes != null)
+                for (int region = 0; region < regions.length; region++)
+                    outcomes[region] = TriggerOutcome.CONTENDED;
+            return TriggerOutcome.CONTENDED;
+        }
+        try
+        {
+            return apply(eventId, outcomes);
+        }
+        finally
+        {
+            firing = false;
+        }
+    }
+
+    private TriggerOutcome apply(int eventId, TriggerOutcome[] outcomes)
+    {
+        TriggerOutcome combined = TriggerOutcome.DISARMED;
+        RegionTransition first = null;
+        RegionTransition last = null;
+        for (int region = 0; region < regions.length; region++)
+        {
+            final int route = regions[region].resolve(currentStates[region], eventId, context);
+            final TriggerOutcome outcome = route == StateMachineDefinition.DISARMED ? TriggerOutcome.DISARMED
+                    : route == StateMachineDefinition.REJECTED ? TriggerOutcome.REJECTED
+                    : TriggerOutcome.EXECUTED;
+            if (outcomes != null)
+                outcomes[region] = outcome;
+            final TransitionMetrics metrics = regions[region].getMetrics();
+            if (metrics != null)
+                metrics.recordOutcome(outcome);
+            if (outcome == TriggerOutcome.EXECUTED)
+            {
+                combined = outcome;
+                final RegionTransition transition = new RegionTransition(region, route);
+                if (first == null)
+                    first = transition;
+                else
+                {
+                    last.next = transition;
+                    // With a pool, the first region runs on this thread and the rest are forked as they are found.
+                    if (pool != null)
+                        transition.start(pool);
+                }
+                last = transition;
+            }
+            else if (outcome == TriggerOutcome.REJECTED)
+                combined = outcome;
+        }
+        if (first == null)
+            return combined;
+
+        // Finish every region's transition before the next event, even if an action has thrown.
+        Throwable failure = null;
+        for (RegionTransition transition = first; transition != null; transition = transition.next)
+        {
+            try
+            {
+                if (transition == first || pool == null)
+                    transition.compute();
+                else
+                    transition.join();
+            }
+            catch (Throwable ex)
+            {
+                if (failure == null)
+                    failure = ex;
+            }
+        }
+        // Neither compute() nor join() throws a checked exception.
+        if (failure instanceof Error)
+            throw (Error) failure;
+        if (failure != null)
+            throw (RuntimeException) failure;
+        return combined;
+    }
+
+    /**
+     * Runs the actions of one region's transition and then commits its new state.
+     * The transitions of an event are chained together in region order.
+     */
+    private final class RegionTransition extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int              region;
+        private final int              route;
+        private       RegionTransition next;
+
+        RegionTransition(int region, int route)
+        {
+            this.region = region;
+            this.route = route;
+        }
+
+        void start(ForkJoinPool pool)
+        {
+            // Outside the pool, fork() would submit to the common pool rather than ours.
+            if (ForkJoinTask.inForkJoinPool() && ForkJoinTask.getPool() == pool)
+                fork();
+            else
+                pool.execute(this);
+        }
+
+        @Override
+        protected void compute()
+        {
+            final StateMachineDefinition<C> definition = regions[region];
+            try
+            {
+                final TransitionMetrics metrics = definition.getMetrics();
+                final long actionStart = metrics == null ? 0 : System.nanoTime();
+                definition.runActions(route, context);
+                if (metrics != null)
+                    metrics.recordActions(definition.getRouteTransition(route), System.nanoTime() - actionStart);
+            }
+            finally
+            {
+                currentStates[region] = definition.getRouteDestination(route);
+            }
+        }
+    }
+}
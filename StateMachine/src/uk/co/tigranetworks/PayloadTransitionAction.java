@@ -0,0 +1,14 @@
+package uk.co.tigranetworks;
+
+/**
+ * An action that is run when a transition is executed, between the OnExit
+ * action of its source state and the OnEnter action of its destination, and
+ * is given the payload of the trigger that executed it.
+ * See {@link StateMachine.State.Transition#trigger(Object)}.
+ *
+ * @param <P> The payload type.
+ */
+public interface PayloadTransitionAction<P>
+{
+    public void action(P payload);
+}
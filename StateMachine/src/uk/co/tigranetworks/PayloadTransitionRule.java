@@ -0,0 +1,15 @@
+package uk.co.tigranetworks;
+
+import java.util.EventListener;
+
+/**
+ * A transition validation rule that is given the payload of the trigger being
+ * validated, so that the payload need not be passed through shared fields.
+ * See {@link StateMachine.State.Transition#trigger(Object)}.
+ *
+ * @param <P> The payload type.
+ */
+public interface PayloadTransitionRule<P> extends EventListener
+{
+    public boolean transitionIsAllowed(P payload);
+}
@@ -0,0 +1,33 @@
+package uk.co.tigranetworks;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A version stamp for the inputs of one or more {@link MemoizingTransitionRule}s.
+ * Whatever changes those inputs calls {@link #invalidate()}, and every rule
+ * that depends on this version re-evaluates on its next trigger. Each state
+ * machine has one, from {@link StateMachine#getRuleVersion()}, and rules that
+ * depend on something finer-grained can be given a version of their own.
+ */
+public final class RuleVersion
+{
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * Gets the current version.
+     */
+    public long get()
+    {
+        return version.get();
+    }
+
+    /**
+     * Marks the results of every rule that depends on this version as stale.
+     *
+     * @return The new version.
+     */
+    public long invalidate()
+    {
+        return version.incrementAndGet();
+    }
+}
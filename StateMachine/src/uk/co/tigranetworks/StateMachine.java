@@ -4,6 +4,13 @@ package uk.co.tigranetworks; /**
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A flexible, general purpose Finite State Machine.
@@ -35,16 +42,317 @@ import java.awt.event.ActionListener;
  * rule must return true. The default validation action is to simply
  * return true, but this can be overridden as needed to perform
  * arbitrary validation logic.
+ * <p/>
+ * By default transitions are serialised on a private monitor; a
+ * lock-free engine can be selected instead by constructing the state
+ * machine with {@link ConcurrencyMode#LOCK_FREE}, or each state machine
+ * can own a mailbox that is drained by an Executor
+ * ({@link ConcurrencyMode#MAILBOX}), in which case triggers never block.
+ * With the lock-based engines the OnExit and OnEnter actions can be moved
+ * out of the critical section altogether; see {@link #setActionsOutsideLock}.
+ * <p/>
+ * Transitions may also be given an integer event id, in which case they
+ * can be fired by event with {@link #fire(int)} instead of by reference.
+ * The event ids of all transitions are compiled into a dense dispatch
+ * table when the state machine is started, so that firing an event is a
+ * pair of array lookups.
+ * <p/>
+ * A transition can also be given a payload rule and a payload action, which
+ * are handed the payload passed to one of the trigger(payload) overloads;
+ * int, long and double payloads are delivered without boxing.
  */
 public class StateMachine
 {
-    private final    State  hiddenStateWithNoTransitions = new State("State Machine Paused");
-    private volatile State  currentState                 = hiddenStateWithNoTransitions;
-    private final    Object transitionLock               = new Object();   // protects against simultaneous transitions
+    private static final VarHandle CURRENT_STATE;
+
+    static
+    {
+        try
+        {
+            CURRENT_STATE = MethodHandles.lookup().findVarHandle(StateMachine.class, "currentState", State.class);
+        }
+        catch (ReflectiveOperationException ex)
+        {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    /**
+     * The event id of a transition that can only be triggered by reference.
+     */
+    public static final int NO_EVENT = -1;
+
+    // Drains deferred actions on whichever thread finds the queue idle.
+    private static final Executor CALLER_RUNS = new Executor()
+    {
+        @Override
+        public void execute(Runnable command)
+        {
+            command.run();
+        }
+    };
+
+    // The kinds of payload that a transition can take; see Transition.setPayloadRule().
+    private static final int      PAYLOAD_NONE   = 0;
+    private static final int      PAYLOAD_OBJECT = 1;
+    private static final int      PAYLOAD_INT    = 2;
+    private static final int      PAYLOAD_LONG   = 3;
+    private static final int      PAYLOAD_DOUBLE = 4;
+    private static final String[] PAYLOAD_NAMES  = {"no", "an object", "an int", "a long", "a double"};
+
+    private static final String STATE_CHANGED_FORMAT = "State transition [%s]->[%s]";
+    private static final String TRIGGER_FORMAT       = "Triggered transition from [%s] to [%s] outcome: %s";
+
+    private final    List<State>            states                       = new ArrayList<>();
+    private final    List<State.Transition> transitions                  = new ArrayList<>();
+    private final    State                  hiddenStateWithNoTransitions = new State(-1, "State Machine Paused");
+    private final    State                  hiddenStateInTransition      = new State(-1, "State Machine In Transition");
+    private volatile State                  currentState                 = hiddenStateWithNoTransitions;
+    private final    Object                 transitionLock               = new Object();   // protects against simultaneous transitions
+    private final    ConcurrencyMode        concurrencyMode;
+    private final    ReentrantLock          lock;                                            // reentrant lock mode only
+    private final    Mailbox                mailbox;                                         // mailbox mode only
+    private volatile Mailbox                deferredActions;                                 // when actions run outside the lock
+
+    // Compiled once by start(); indexed by state id, then by event id.
+    private volatile int[][]            dispatchTable;
+    private          int[]              nextAlternative;      // next transition for the same state and event, or -1
+    private          State.Transition[] compiledTransitions;
 
     // Event sources that produce information about the inner workings of the state machine.
-    private TraceListener onStateChanged;
-    private TraceListener onTrigger;
+    private          TraceListener           onStateChanged;
+    private          TraceListener           onTrigger;
+    private volatile TransitionTraceListener transitionTraceListener;
+
+    // Disarmed triggers and events are rejected before any trace, metrics or rule work.
+    private volatile boolean fastReject;
+
+    // Stamps the inputs of memoized validation rules.
+    private final RuleVersion ruleVersion = new RuleVersion();
+
+    // Counters and histograms, if enabled.
+    private volatile TransitionMetrics metrics;
+
+    // Durable record of committed transitions, if one is attached.
+    private volatile TransitionJournal transitionJournal;
+    private          long              journalMachineId;
+
+    /**
+     * Creates a state machine that serialises its transitions on a private monitor.
+     */
+    public StateMachine()
+    {
+        this(ConcurrencyMode.SYNCHRONIZED);
+    }
+
+    /**
+     * Creates a state machine that uses the specified engine to serialise its transitions.
+     *
+     * @param concurrencyMode The transition engine (required; not null).
+     */
+    public StateMachine(ConcurrencyMode concurrencyMode)
+    {
+        this(concurrencyMode, null);
+    }
+
+    /**
+     * Creates a state machine in {@link ConcurrencyMode#MAILBOX} mode. Triggers and
+     * events are queued in the state machine's mailbox, and the transitions
+     * are executed one at a time by tasks submitted to the executor.
+     *
+     * @param executor The executor that drains the mailbox (required; not null).
+     *                 It may be shared by many state machines.
+     */
+    public StateMachine(Executor executor)
+    {
+        this(ConcurrencyMode.MAILBOX, executor);
+    }
+
+    private StateMachine(ConcurrencyMode concurrencyMode, Executor executor)
+    {
+        if (concurrencyMode == null)
+            throw new IllegalArgumentException("Concurrency mode is required");
+        if (concurrencyMode == ConcurrencyMode.MAILBOX && executor == null)
+            throw new IllegalArgumentException("Mailbox mode requires an executor");
+        this.concurrencyMode = concurrencyMode;
+        lock = concurrencyMode == ConcurrencyMode.REENTRANT_LOCK ? new ReentrantLock() : null;
+        if (concurrencyMode != ConcurrencyMode.MAILBOX)
+        {
+            mailbox = null;
+            return;
+        }
+        mailbox = new Mailbox(executor, new Mailbox.Consumer()
+        {
+            @Override
+            public void accept(Object message, Object argument, int value)
+            {
+                processMessage(message, argument, value);
+            }
+        });
+    }
+
+    /**
+     * Chooses whether OnExit and OnEnter actions run inside or outside the critical
+     * section. Applies only to the lock-based engines, SYNCHRONIZED and REENTRANT_LOCK,
+     * and must be called before the state machine is started.
+     * <p/>
+     * Inside (the default), the lock is held for the whole transition, actions
+     * included. Outside, only the change of state is made under the lock, so a slow
+     * or blocking action never holds up other triggers. The ordering contract is then:
+     * <ul>
+     * <li>transitions are committed one at a time, under the lock, and the state
+     * machine is already in the destination state when the actions run, so triggers
+     * are validated against the new state straight away;</li>
+     * <li>the actions of committed transitions run after the lock is released,
+     * strictly in commit order: the OnExit and then the OnEnter action of one
+     * transition complete before those of the next transition begin;</li>
+     * <li>the actions run on whichever triggering thread finds no actions already
+     * running, so a call to trigger() may return before the actions of its own
+     * transition have run, when another thread is still running earlier ones;</li>
+     * <li>a trigger raised from within an action is committed immediately but its
+     * actions are queued behind those in progress;</li>
+     * <li>if an OnExit action throws, the OnEnter action of the same transition is
+     * not run and the exception propagates to the thread that was running the actions.</li>
+     * </ul>
+     *
+     * @param outsideLock true to run actions outside the critical section.
+     * @throws IllegalStateException if the state machine has already been started,
+     *                               or does not use a lock-based engine.
+     */
+    public void setActionsOutsideLock(boolean outsideLock)
+    {
+        if (concurrencyMode != ConcurrencyMode.SYNCHRONIZED && concurrencyMode != ConcurrencyMode.REENTRANT_LOCK)
+            throw new IllegalStateException("Actions can only be moved outside the lock of a lock-based engine");
+        synchronized (transitionLock)
+        {
+            // The dispatch table is compiled under this lock by start(), so it marks a started machine
+            // even while a transition has the current state parked on the hidden state.
+            if (dispatchTable != null)
+                throw new IllegalStateException("Actions can only be moved outside the lock before the state machine is started");
+            deferredActions = outsideLock ? newDeferredActions() : null;
+        }
+    }
+
+    private Mailbox newDeferredActions()
+    {
+        return new Mailbox(CALLER_RUNS, new Mailbox.Consumer()
+        {
+            @Override
+            public void accept(Object message, Object argument, int value)
+            {
+                final TransitionMetrics metrics = StateMachine.this.metrics;
+                final long actionStart = metrics == null ? 0 : System.nanoTime();
+                if (message instanceof Payload)
+                {
+                    final Payload payload = (Payload) message;
+                    runOnExit(payload.transition.getSourceState());
+                    payload.transition.runPayloadAction(payload.reference, payload.bits);
+                }
+                else
+                    runOnExit((State) message);
+                runOnEnter((State) argument);
+                if (metrics != null)
+                    metrics.recordActions(value, System.nanoTime() - actionStart);
+            }
+        });
+    }
+
+    /**
+     * Gets whether OnExit and OnEnter actions run outside the critical section.
+     */
+    public boolean getActionsOutsideLock()
+    {
+        return deferredActions != null;
+    }
+
+    /**
+     * Turns on metrics collection. Must be called before the state machine is
+     * started, because that is when a latency histogram is created for each
+     * transition; transitions created afterwards are counted, but their action
+     * times are not recorded.
+     *
+     * @return The metrics, which accumulate from now on.
+     * @throws IllegalStateException if the state machine has already been started.
+     */
+    public TransitionMetrics enableMetrics()
+    {
+        synchronized (transitionLock)
+        {
+            if (dispatchTable != null || currentState != hiddenStateWithNoTransitions)
+                throw new IllegalStateException("Metrics can only be enabled before the state machine is started");
+            if (metrics == null)
+                metrics = new TransitionMetrics();
+            return metrics;
+        }
+    }
+
+    /**
+     * Turns fast-reject mode on or off. In fast-reject mode a trigger whose owning
+     * state is not the current state, or an event that the current state does not
+     * take, is rejected straight away as DISARMED, at the cost of one volatile
+     * read and a comparison or a bit test in a per-state event mask. Nothing is
+     * traced, counted or recorded for it. Armed triggers are unaffected.
+     * <p/>
+     * Fast reject is off by default, so that the detailed disarmed trace is
+     * available while debugging. It has no effect in mailbox mode, where triggers
+     * are only validated once they reach the front of the mailbox.
+     */
+    public void setFastReject(boolean enabled)
+    {
+        fastReject = enabled;
+    }
+
+    public boolean getFastReject()
+    {
+        return fastReject;
+    }
+
+    /**
+     * Gets the version stamp that this state machine's memoized rules can depend
+     * on. See {@link MemoizingTransitionRule}.
+     */
+    public RuleVersion getRuleVersion()
+    {
+        return ruleVersion;
+    }
+
+    /**
+     * Wraps a validation rule so that its result is remembered until
+     * {@link #invalidateRules()} is called.
+     *
+     * @param rule The rule to memoize (required; not null).
+     * @return The memoizing rule, to pass to a Transition constructor.
+     */
+    public MemoizingTransitionRule memoize(TransitionRule rule)
+    {
+        return new MemoizingTransitionRule(rule, ruleVersion);
+    }
+
+    /**
+     * Marks the remembered results of every rule memoized against this state
+     * machine's rule version as stale. Call this whenever anything that those
+     * rules depend on changes.
+     */
+    public void invalidateRules()
+    {
+        ruleVersion.invalidate();
+    }
+
+    /**
+     * Gets the metrics, or null if they have not been enabled.
+     */
+    public TransitionMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Gets the transition engine that this state machine was constructed with.
+     */
+    public ConcurrencyMode getConcurrencyMode()
+    {
+        return concurrencyMode;
+    }
 
     public State getCurrentState()
     {
@@ -64,14 +372,308 @@ public class StateMachine
      * destroyed and re-created.
      *
      * @param initialState The initial state for the state machine.
+     * In mailbox mode the initial state is entered asynchronously, by the
+     * executor, before any trigger or event that is queued after this call.
+     *
      * @throws FalseStartException Thrown if the start() method is
      *                             called more than once on an instance.
      */
     public void start(State initialState) throws FalseStartException
     {
-        if (currentState != hiddenStateWithNoTransitions)
-            throw new FalseStartException();
-        transitionToNewState(hiddenStateWithNoTransitions, initialState);
+        if (concurrencyMode == ConcurrencyMode.MAILBOX)
+        {
+            synchronized (transitionLock)
+            {
+                if (dispatchTable != null)
+                    throw new FalseStartException();
+                compileDispatchTable();
+            }
+            mailbox.post(initialState, NO_EVENT);
+            return;
+        }
+
+        synchronized (transitionLock)
+        {
+            if (dispatchTable != null)
+                throw new FalseStartException();
+            compileDispatchTable();
+        }
+        if (!transitionToNewState(hiddenStateWithNoTransitions, initialState, null, null, 0))
+            throw new FalseStartException();   // lost a race with a concurrent call to start()
+    }
+
+    /**
+     * Starts the state machine directly in the specified state, as an alternative
+     * to {@link #start(State)} when resuming from a snapshot. No OnEnter action is
+     * run and no state change is traced; the state machine is simply in the state
+     * when this method returns, in every concurrency mode.
+     *
+     * @param state The state to resume in; must belong to this state machine.
+     * @throws FalseStartException Thrown if the state machine has already been started or restored.
+     */
+    public void restore(State state) throws FalseStartException
+    {
+        if (state == null || getState(state.getId()) != state)
+            throw new IllegalArgumentException("State does not belong to this state machine");
+        synchronized (transitionLock)
+        {
+            if (dispatchTable != null || currentState != hiddenStateWithNoTransitions)
+                throw new FalseStartException();
+            compileDispatchTable();
+        }
+        if (!CURRENT_STATE.compareAndSet(this, hiddenStateWithNoTransitions, state))
+            throw new FalseStartException();   // lost a race with a concurrent call to start()
+    }
+
+    /**
+     * Gets a state by its ordinal id.
+     *
+     * @param stateId The state id, as returned by {@link State#getId()}.
+     * @return The state, or null if this state machine has no state with that id.
+     */
+    public State getState(int stateId)
+    {
+        synchronized (states)
+        {
+            return stateId >= 0 && stateId < states.size() ? states.get(stateId) : null;
+        }
+    }
+
+    /**
+     * Fires an event at the state machine. The transition that takes the event
+     * from the current state is found in the dispatch table compiled by start()
+     * and triggered exactly as if its trigger() method had been called.
+     * <p/>
+     * If several transitions from the same state take the same event then they
+     * are tried in the order in which they were created, and the first one whose
+     * validation rule succeeds is executed.
+     *
+     * @param eventId The event id.
+     * @return The outcome. DISARMED if the state machine has not been started
+     *         or no transition from the current state takes the event; QUEUED
+     *         in mailbox mode.
+     */
+    public TriggerOutcome fire(int eventId)
+    {
+        if (concurrencyMode == ConcurrencyMode.MAILBOX)
+        {
+            mailbox.post(null, eventId);
+            return TriggerOutcome.QUEUED;
+        }
+        return dispatch(eventId);
+    }
+
+    /**
+     * Looks up the transition that takes an event from the current state and triggers it.
+     */
+    private TriggerOutcome dispatch(int eventId)
+    {
+        State state = currentState;
+        if (fastReject && !state.takesEvent(eventId))
+            return TriggerOutcome.DISARMED;
+        TriggerOutcome outcome = dispatchFrom(state, eventId);
+        // In lock-free mode a state machine can settle in another state while the event is
+        // being tried, which disarms it; it is then dispatched again from the new state.
+        while (outcome == TriggerOutcome.DISARMED && concurrencyMode == ConcurrencyMode.LOCK_FREE)
+        {
+            final State now = currentState;
+            if (now == state || now == hiddenStateInTransition)
+                break;
+            state = now;
+            outcome = dispatchFrom(state, eventId);
+        }
+        // One outcome per event, however many alternatives were tried.
+        final TransitionMetrics metrics = this.metrics;
+        if (metrics != null)
+            metrics.recordOutcome(outcome);
+        return outcome;
+    }
+
+    /**
+     * Tries, in order, the transitions that take an event from a state, without
+     * counting the outcome.
+     */
+    private TriggerOutcome dispatchFrom(State state, int eventId)
+    {
+        final int[][] table = dispatchTable;
+        final int stateId = state.id;
+        // States created after start() have no row and take no events.
+        if (table == null || stateId < 0 || stateId >= table.length || eventId < 0)
+            return TriggerOutcome.DISARMED;
+        final int[] row = table[stateId];
+        if (eventId >= row.length || row[eventId] < 0)
+            return TriggerOutcome.DISARMED;
+
+        TriggerOutcome outcome = TriggerOutcome.DISARMED;
+        for (int index = row[eventId]; index >= 0; index = nextAlternative[index])
+        {
+            outcome = compiledTransitions[index].decide(null, 0);
+            if (outcome != TriggerOutcome.REJECTED)
+                break;
+        }
+        return outcome;
+    }
+
+    /**
+     * Fires a batch of events at the state machine, in order, as if fire() had been
+     * called for each one. In the lock-based modes the transition lock is taken once
+     * for the whole batch, so no other thread's transition can interleave with it;
+     * in LOCK_FREE mode there is no lock to hold, and each event is committed
+     * with its own compare-and-set; and in MAILBOX mode the events are simply
+     * queued, in order.
+     *
+     * @param eventIds The event ids, in the order in which they are to be fired.
+     * @return The outcome of each event, indexed as eventIds.
+     */
+    public TriggerOutcome[] fireAll(int[] eventIds)
+    {
+        final TriggerOutcome[] outcomes = new TriggerOutcome[eventIds.length];
+        fireAll(eventIds, outcomes);
+        return outcomes;
+    }
+
+    /**
+     * Fires a batch of events at the state machine, in order, and writes the outcome
+     * of each one into a caller-supplied array, which can be reused from batch to batch.
+     *
+     * @param eventIds The event ids, in the order in which they are to be fired.
+     * @param outcomes Receives the outcome of each event, indexed as eventIds;
+     *                 must be at least as long as eventIds.
+     * @see #fireAll(int[])
+     */
+    public void fireAll(int[] eventIds, TriggerOutcome[] outcomes)
+    {
+        if (outcomes.length < eventIds.length)
+            throw new IllegalArgumentException("Outcome array is shorter than the batch");
+        switch (concurrencyMode)
+        {
+            case SYNCHRONIZED:
+            {
+                final TransitionMetrics metrics = this.metrics;
+                final StateMachineEvents.LockWait lockWait = beginLockWait();
+                final long waitStart = metrics == null ? 0 : System.nanoTime();
+                // Each transition re-enters the lock, which is cheap because this thread already owns it.
+                synchronized (transitionLock)
+                {
+                    lockAcquired(lockWait, metrics, waitStart);
+                    fireEach(eventIds, outcomes);
+                }
+                break;
+            }
+            case REENTRANT_LOCK:
+                acquireLock();
+                try
+                {
+                    fireEach(eventIds, outcomes);
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+                break;
+            default:
+                fireEach(eventIds, outcomes);
+                return;
+        }
+        // Actions deferred by the batch could not run while we held the lock.
+        final Mailbox deferred = deferredActions;
+        if (deferred != null)
+            deferred.flush();
+    }
+
+    private void fireEach(int[] eventIds, TriggerOutcome[] outcomes)
+    {
+        for (int index = 0; index < eventIds.length; index++)
+            outcomes[index] = fire(eventIds[index]);
+    }
+
+    /**
+     * Mailbox mode only. Handles one message from the mailbox; this is the only
+     * place that transitions are executed, so they need no locking.
+     *
+     * @param message  A Transition to trigger, an initial State to start in, or
+     *                 null to fire the event.
+     * @param argument The payload of the trigger, if it has one.
+     * @param eventId  The event to fire, when message is null.
+     */
+    private void processMessage(Object message, Object argument, int eventId)
+    {
+        if (message instanceof State.Transition)
+        {
+            final Payload payload = (Payload) argument;
+            if (payload == null)
+                ((State.Transition) message).attempt(null, 0);
+            else
+                ((State.Transition) message).attempt(payload.reference, payload.bits);
+        }
+        else if (message instanceof State)
+            transitionToNewState(hiddenStateWithNoTransitions, (State) message, null, null, 0);
+        else
+            dispatch(eventId);
+    }
+
+    /**
+     * Builds the dispatch table for {@link #fire(int)} from the transitions that
+     * have been given event ids. Called once, by start().
+     */
+    private void compileDispatchTable()
+    {
+        final State.Transition[] compiled;
+        synchronized (transitions)
+        {
+            compiled = transitions.toArray(new State.Transition[transitions.size()]);
+        }
+        final State[] compiledStates;
+        synchronized (states)
+        {
+            compiledStates = states.toArray(new State[states.size()]);
+        }
+        final int stateCount = compiledStates.length;
+        int eventCount = 0;
+        for (State.Transition transition : compiled)
+            eventCount = Math.max(eventCount, transition.eventId + 1);
+
+        final int[] next = new int[compiled.length];
+        final int[][] table = new int[stateCount][];
+        for (int stateId = 0; stateId < table.length; stateId++)
+        {
+            table[stateId] = new int[eventCount];
+            Arrays.fill(table[stateId], -1);
+        }
+
+        // Walk backwards so that each chain of alternatives ends up in creation order.
+        for (int index = compiled.length - 1; index >= 0; index--)
+        {
+            final State.Transition transition = compiled[index];
+            if (transition.eventId == NO_EVENT)
+                continue;
+            final int[] row = table[transition.getSourceState().id];
+            next[index] = row[transition.eventId];
+            row[transition.eventId] = index;
+        }
+
+        // Each state's event mask, for fast reject.
+        for (int stateId = 0; stateId < table.length; stateId++)
+        {
+            final long[] mask = new long[(eventCount + 63) >>> 6];
+            for (int eventId = 0; eventId < eventCount; eventId++)
+                if (table[stateId][eventId] >= 0)
+                    mask[eventId >>> 6] |= 1L << eventId;
+            compiledStates[stateId].eventMask = mask;
+        }
+
+        final TransitionMetrics metrics = this.metrics;
+        if (metrics != null)
+        {
+            final String[] names = new String[compiled.length];
+            for (int index = 0; index < names.length; index++)
+                names[index] = compiled[index].getSourceState().getName() + " -> " + compiled[index].destinationState.getName();
+            metrics.bindTransitions(names);
+        }
+
+        compiledTransitions = compiled;
+        nextAlternative = next;
+        dispatchTable = table;      // volatile write publishes the other two fields
     }
 
     /**
@@ -83,58 +685,363 @@ public class StateMachine
      * but we do guarantee that once the transition starts, it will complete
      * with the state machine in toState.
      *
-     * @param fromState The state that the transition is associated with
-     * @param toState   The destination state (the new current state).
+     * @param fromState  The state that the transition is associated with
+     * @param toState    The destination state (the new current state).
+     * @param transition The transition being executed, or null when the state machine is started.
+     * @param payload    The object payload of the trigger, if any.
+     * @param bits       The primitive payload of the trigger, if any, as for {@link Payload#bits}.
+     * @return true if the transition was committed; false if the state machine
+     *         was no longer in fromState (or, in lock-free mode, if another
+     *         transition claimed it first).
+     */
+    private boolean transitionToNewState(State fromState, State toState, State.Transition transition, Object payload, long bits)
+    {
+        switch (concurrencyMode)
+        {
+            case LOCK_FREE:
+                if (!claimTransition(fromState))
+                    return false;
+                completeClaimedTransition(fromState, toState, transition, payload, bits);
+                return true;
+            case MAILBOX:
+                // Only ever called from the mailbox, one message at a time.
+                return performTransition(fromState, toState, transition, payload, bits);
+            default:
+                break;
+        }
+
+        final Mailbox deferred = deferredActions;
+        final boolean committed;
+        if (concurrencyMode == ConcurrencyMode.REENTRANT_LOCK)
+        {
+            acquireLock();
+            try
+            {
+                committed = deferred == null ? performTransition(fromState, toState, transition, payload, bits) : commitTransition(fromState, toState, transition, deferred, payload, bits);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+        else
+        {
+            // A batch or an enclosing transition that already holds the lock has been counted once.
+            final boolean reentered = Thread.holdsLock(transitionLock);
+            final TransitionMetrics metrics = this.metrics;
+            final StateMachineEvents.LockWait lockWait = beginLockWait();
+            final long waitStart = metrics == null ? 0 : System.nanoTime();
+            synchronized (transitionLock)
+            {
+                if (!reentered)
+                    lockAcquired(lockWait, metrics, waitStart);
+                committed = deferred == null ? performTransition(fromState, toState, transition, payload, bits) : commitTransition(fromState, toState, transition, deferred, payload, bits);
+            }
+        }
+        // Run the deferred actions now, unless a batch (or an enclosing transition) still holds the lock.
+        if (committed && deferred != null && !holdsTransitionLock())
+            deferred.flush();
+        return committed;
+    }
+
+    /**
+     * Reentrant lock mode only. Takes the lock, timing the wait if metrics are
+     * enabled or the flight recorder is recording lock waits. Re-entering a lock
+     * that this thread already holds, as the transitions of a batch do, is
+     * neither timed nor counted.
+     */
+    private void acquireLock()
+    {
+        if (lock.isHeldByCurrentThread())
+        {
+            lock.lock();
+            return;
+        }
+        final TransitionMetrics metrics = this.metrics;
+        final StateMachineEvents.LockWait lockWait = beginLockWait();
+        final long waitStart = metrics == null ? 0 : System.nanoTime();
+        lock.lock();
+        lockAcquired(lockWait, metrics, waitStart);
+    }
+
+    /**
+     * Starts timing a wait for the transition lock for the flight recorder, or
+     * returns null if the LockWait event is not being recorded.
+     */
+    private static StateMachineEvents.LockWait beginLockWait()
+    {
+        if (!StateMachineEvents.LOCK_WAIT.isEnabled())
+            return null;
+        final StateMachineEvents.LockWait lockWait = new StateMachineEvents.LockWait();
+        lockWait.begin();
+        return lockWait;
+    }
+
+    /**
+     * Reports the time taken to acquire the transition lock to the metrics and the flight recorder.
+     */
+    private void lockAcquired(StateMachineEvents.LockWait lockWait, TransitionMetrics metrics, long waitStart)
+    {
+        if (metrics != null)
+            metrics.recordLockWait(System.nanoTime() - waitStart);
+        if (lockWait == null)
+            return;
+        lockWait.end();
+        if (lockWait.shouldCommit())
+        {
+            lockWait.concurrencyMode = concurrencyMode.name();
+            lockWait.commit();
+        }
+    }
+
+    /**
+     * Runs a state's OnExit action, timed by the flight recorder.
+     */
+    private static void runOnExit(State state)
+    {
+        runAction(state, state.onExit, "OnExit");
+    }
+
+    /**
+     * Runs a state's OnEnter action, timed by the flight recorder.
+     */
+    private static void runOnEnter(State state)
+    {
+        runAction(state, state.onEnter, "OnEnter");
+    }
+
+    private static void runAction(State state, StateTransitionAction action, String kind)
+    {
+        if (!StateMachineEvents.ACTION.isEnabled())
+        {
+            action.action();
+            return;
+        }
+
+        final StateMachineEvents.Action event = new StateMachineEvents.Action();
+        event.begin();
+        try
+        {
+            action.action();
+        }
+        finally
+        {
+            event.end();
+            if (event.shouldCommit())
+            {
+                event.state = state.name;
+                event.kind = kind;
+                event.commit();
+            }
+        }
+    }
+
+    private boolean holdsTransitionLock()
+    {
+        return concurrencyMode == ConcurrencyMode.REENTRANT_LOCK ? lock.isHeldByCurrentThread() : Thread.holdsLock(transitionLock);
+    }
+
+    /**
+     * Changes state without running any actions, and queues the actions to be run
+     * once the lock has been released. The caller holds the transition lock.
+     */
+    private boolean commitTransition(State fromState, State toState, State.Transition transition, Mailbox deferred, Object payload, long bits)
+    {
+        if (fromState != currentState)
+            return false;
+        journalTransition(fromState, toState, transition);
+        currentState = toState;
+        traceStateChanged(fromState, toState);
+        // A payload action has to be queued along with its payload.
+        final Object exit = transition != null && transition.payloadAction != null ? new Payload(transition, payload, bits) : fromState;
+        deferred.enqueue(exit, toState, transition == null ? -1 : transition.index);
+        return true;
+    }
+
+    /**
+     * Performs a transition. The caller guarantees that no other transition
+     * can be in progress at the same time.
+     */
+    private boolean performTransition(State fromState, State toState, State.Transition transition, Object payload, long bits)
+    {
+        // Avoid the race condition where currentState has changed since the transition started.
+        if (fromState != currentState)
+            return false;
+        // The state machine temporarily goes into a private state so that
+        // all transitions are rendered invalid (except the one in progress).
+
+        final TransitionMetrics metrics = this.metrics;
+        final long actionStart = metrics == null ? 0 : System.nanoTime();
+        currentState = hiddenStateWithNoTransitions;
+        try
+        {
+            journalTransition(fromState, toState, transition);
+            if (fromState != null)
+                runOnExit(fromState);
+            if (transition != null)
+                transition.runPayloadAction(payload, bits);
+        }
+        finally
+        {
+            currentState = toState;
+            traceStateChanged(fromState, toState);
+        }
+        runOnEnter(toState);
+        if (metrics != null && transition != null)
+            metrics.recordActions(transition.index, System.nanoTime() - actionStart);
+        return true;
+    }
+
+    /**
+     * Lock-free mode only. Atomically moves the state machine out of fromState and
+     * parks it in the private in-transition state, so that every other trigger is
+     * disarmed until the transition has completed.
+     *
+     * @param fromState The state that the transition is associated with.
+     * @return true if this caller now owns the transition; false if the state
+     *         machine was not in fromState when the compare-and-set was attempted.
+     */
+    private boolean claimTransition(State fromState)
+    {
+        return CURRENT_STATE.compareAndSet(this, fromState, hiddenStateInTransition);
+    }
+
+    /**
+     * Lock-free mode only. Runs the OnExit and OnEnter actions of a transition
+     * previously claimed by {@link #claimTransition(State)} and then publishes the
+     * destination state. See {@link ConcurrencyMode#LOCK_FREE} for the action policy.
+     *
+     * @param fromState  The state that the transition is associated with.
+     * @param toState    The destination state (the new current state).
+     * @param transition The transition being executed, or null when the state machine is started.
+     * @param payload    The object payload of the trigger, if any.
+     * @param bits       The primitive payload of the trigger, if any.
+     */
+    private void completeClaimedTransition(State fromState, State toState, State.Transition transition, Object payload, long bits)
+    {
+        try
+        {
+            journalTransition(fromState, toState, transition);
+            final TransitionMetrics metrics = this.metrics;
+            final long actionStart = metrics == null ? 0 : System.nanoTime();
+            runOnExit(fromState);
+            if (transition != null)
+                transition.runPayloadAction(payload, bits);
+            runOnEnter(toState);
+            if (metrics != null && transition != null)
+                metrics.recordActions(transition.index, System.nanoTime() - actionStart);
+        }
+        finally
+        {
+            currentState = toState;
+            traceStateChanged(fromState, toState);
+        }
+    }
+
+    /**
+     * Appends a committed transition to the journal, if one is attached. Called
+     * while the transition is still exclusively owned, so that the journal
+     * records each state machine's transitions in commit order.
+     */
+    private void journalTransition(State fromState, State toState, State.Transition transition)
+    {
+        final TransitionJournal journal = transitionJournal;
+        if (journal != null)
+            journal.append(journalMachineId, fromState == null ? -1 : fromState.getId(), toState.getId(), transition == null ? NO_EVENT : transition.eventId);
+    }
+
+    /**
+     * Fires the specified trance event and provides the descriptive text
+     * to the listener.
+     *
+     * @param listener    The event being raised
+     * @param description Trace output text.
+     */
+    private void raiseTraceEvent(TraceListener listener, String description)
+    {
+        try
+        {
+            if (listener != null)
+            {
+                listener.trace(description);
+            }
+        }
+        catch (Exception ex)
+        {
+            // Trace is not allowed to throw any exceptions.
+        }
+    }
+
+    /**
+     * Reports a trigger to the typed listener and the OnTrigger listener. When
+     * neither is installed this costs two field reads and allocates nothing.
      */
-    private void transitionToNewState(State fromState, State toState)
+    private void traceTrigger(State fromState, State toState, TriggerOutcome outcome)
     {
-        synchronized (transitionLock)
+        final TransitionTraceListener listener = transitionTraceListener;
+        if (listener != null)
         {
-            // Avoid the race condition where currentState has changed since the transition started.
-            if (fromState != currentState)
-                return;
-            // The state machine temporarily goes into a private state so that
-            // all transitions are rendered invalid (except the one in progress).
-
-            currentState = hiddenStateWithNoTransitions;
             try
             {
-                if (fromState != null)
-                    fromState.onExit.action();
+                listener.triggered(fromState, toState, outcome);
             }
-            finally
+            catch (Exception ex)
             {
-                currentState = toState;
-                raiseOnStateChanged(fromState.getName(), toState.getName());
+                // Trace is not allowed to throw any exceptions.
             }
-            toState.onEnter.action();
         }
+        if (onTrigger != null)
+            raiseOnTrigger(fromState.getName(), toState.getName(), outcome.getDescription());
     }
 
     /**
-     * Fires the specified trance event and provides the descriptive text
-     * to the listener.
-     *
-     * @param listener    The event being raised
-     * @param description Trace output text.
+     * Reports a state change to the typed listener and the OnStateChanged listener.
+     * When neither is installed this costs two field reads and allocates nothing.
      */
-    private void raiseTraceEvent(TraceListener listener, String description)
+    private void traceStateChanged(State fromState, State toState)
     {
-        try
+        final TransitionTraceListener listener = transitionTraceListener;
+        if (listener != null)
         {
-            if (listener != null)
+            try
             {
-                listener.trace(description);
+                listener.stateChanged(fromState, toState);
+            }
+            catch (Exception ex)
+            {
+                // Trace is not allowed to throw any exceptions.
             }
         }
-        catch (Exception ex)
-        {
-            // Trace is not allowed to throw any exceptions.
-        }
+        if (onStateChanged != null)
+            raiseOnStateChanged(fromState.getName(), toState.getName());
+    }
+
+    /**
+     * Formats a state change in the same way as the OnStateChanged trace event.
+     *
+     * @param fromState The original state.
+     * @param toState   The new current state.
+     */
+    public static String describeStateChange(State fromState, State toState)
+    {
+        return String.format(STATE_CHANGED_FORMAT, fromState.getName(), toState.getName());
+    }
+
+    /**
+     * Formats a trigger in the same way as the OnTrigger trace event.
+     *
+     * @param fromState The state that owns the transition.
+     * @param toState   The destination state of the transition.
+     * @param outcome   What the trigger did.
+     */
+    public static String describeTrigger(State fromState, State toState, TriggerOutcome outcome)
+    {
+        return String.format(TRIGGER_FORMAT, fromState.getName(), toState.getName(), outcome.getDescription());
     }
 
     /**
      * Raises the OnStateChanged trace event.
+     * Only called when an OnStateChanged listener has been set.
      *
      * @param fromState The name of the original state.
      * @param toState   The name of the destination state.
@@ -143,7 +1050,7 @@ public class StateMachine
     {
         try
         {
-            String description = String.format("State transition [%s]->[%s]", fromState, toState);
+            String description = String.format(STATE_CHANGED_FORMAT, fromState, toState);
             raiseTraceEvent(onStateChanged, description);
         }
         catch (Exception ex)
@@ -153,6 +1060,7 @@ public class StateMachine
 
     /**
      * Raises the OnTrigger trace event.
+     * Only called when an OnTrigger listener has been set.
      *
      * @param fromState The name of the original state.
      * @param toState   The name of the destination state.
@@ -161,7 +1069,7 @@ public class StateMachine
     {
         try
         {
-            String description = String.format("Triggered transition from [%s] to [%s] outcome: %s", fromState, toState, outcome);
+            String description = String.format(TRIGGER_FORMAT, fromState, toState, outcome);
             raiseTraceEvent(onTrigger, description);
         }
         catch (Exception ex)
@@ -189,6 +1097,50 @@ public class StateMachine
         onTrigger = listener;
     }
 
+    /**
+     * Sets a typed listener for both trigger and state change events. This can
+     * be used instead of, or as well as, the text-based listeners.
+     *
+     * @param listener The listener, or null to remove it. There can be only one.
+     */
+    public void setTransitionTraceListener(TransitionTraceListener listener)
+    {
+        transitionTraceListener = listener;
+    }
+
+    /**
+     * Attaches a journal, to which every transition committed from now on is
+     * appended, including the one into the initial state made by start(). A
+     * state restored with restore() is not a transition and is not journalled.
+     *
+     * @param journal   The journal, or null to detach the current one.
+     * @param machineId The id that identifies this state machine in the journal's records.
+     */
+    public void setTransitionJournal(TransitionJournal journal, long machineId)
+    {
+        journalMachineId = machineId;
+        transitionJournal = journal;    // volatile write publishes the machine id
+    }
+
+    /**
+     * A trigger's payload, carried through a mailbox along with its transition.
+     * On the direct paths the payload is passed as a pair of arguments instead,
+     * so that nothing is allocated.
+     */
+    private static final class Payload
+    {
+        final State.Transition transition;
+        final Object           reference;   // an object payload
+        final long             bits;        // an int or long payload, or the raw bits of a double one
+
+        Payload(State.Transition transition, Object reference, long bits)
+        {
+            this.transition = transition;
+            this.reference = reference;
+            this.bits = bits;
+        }
+    }
+
     /**
      * Represents a state that the state machine can be in.
      */
@@ -196,6 +1148,8 @@ public class StateMachine
     {
 
         private final String name;
+        private final int    id;
+        private       long[] eventMask;     // bit per event id taken from this state; set by start()
         /**
          * The OnEnter action for the state, with a default null implementation.
          * Can be overridden to provide a custom OnEnter action.
@@ -227,6 +1181,17 @@ public class StateMachine
         public State(String name)
         {
             this.name = name;
+            this.id = register();
+        }
+
+        /**
+         * Constructs one of the state machine's private states, which have
+         * no id and so never appear in the dispatch table.
+         */
+        private State(int id, String name)
+        {
+            this.name = name;
+            this.id = id;
         }
 
         /**
@@ -242,6 +1207,7 @@ public class StateMachine
             if (name.isEmpty())
                 throw new IllegalArgumentException("State name must not be empty or null");
             this.name = name;
+            this.id = register();
             if (onEnter != null)
                 this.onEnter = onEnter;
             if (onExit != null)
@@ -256,6 +1222,34 @@ public class StateMachine
             return name;
         }
 
+        /**
+         * Gets the ordinal id of the state. Ids are assigned in order of
+         * construction, starting at zero, and index the dispatch table.
+         */
+        public int getId()
+        {
+            return id;
+        }
+
+        /**
+         * Tests the event mask compiled by start(). States created after start()
+         * have no mask and take no events.
+         */
+        private boolean takesEvent(int eventId)
+        {
+            final long[] mask = eventMask;
+            return mask != null && eventId >= 0 && (eventId >>> 6) < mask.length && (mask[eventId >>> 6] & (1L << eventId)) != 0;
+        }
+
+        private int register()
+        {
+            synchronized (states)
+            {
+                states.add(this);
+                return states.size() - 1;
+            }
+        }
+
         /**
          * Represents a transition to another state and a method of triggering
          * the transition, plus a rule for validating whether the transition
@@ -274,7 +1268,12 @@ public class StateMachine
                     return true;
                 }
             };
-            private State destinationState;
+            private       State  destinationState;
+            private final int    eventId;
+            private final int    index;         // position in creation order
+            private       Object payloadRule;   // one of the payload rule interfaces, or null
+            private       Object payloadAction; // one of the payload action interfaces, or null
+            private       int    payloadKind;   // PAYLOAD_NONE unless a payload rule or action is set
 
             /**
              * Represents a transition to another state and the
@@ -287,14 +1286,55 @@ public class StateMachine
              *                         then the default rule (which always succeeds) is used.
              */
             public Transition(State destinationState, TransitionRule rule)
+            {
+                this(NO_EVENT, destinationState, rule);
+            }
+
+            /**
+             * Represents a transition to another state that can be fired by event id,
+             * and the validation rule that must be satisfied before the transition
+             * can occur. Transitions with event ids must be created before the state
+             * machine is started, because that is when the dispatch table is compiled.
+             *
+             * @param eventId          The event that fires this transition from the owning
+             *                         state (zero or greater), or NO_EVENT if the transition
+             *                         can only be triggered by reference.
+             * @param destinationState The destination state of the transition.
+             * @param rule             The validation rule that must be satisfied
+             *                         for the transition to occur. If this argument is null,
+             *                         then the default rule (which always succeeds) is used.
+             */
+            public Transition(int eventId, State destinationState, TransitionRule rule)
             {
                 if (destinationState == null)
                     throw new IllegalArgumentException("Destination state is required");
+                if (eventId < NO_EVENT)
+                    throw new IllegalArgumentException("Event id must not be negative");
+                if (eventId != NO_EVENT && dispatchTable != null)
+                    throw new IllegalStateException("Transitions with event ids must be created before the state machine is started");
                 this.destinationState = destinationState;
+                this.eventId = eventId;
                 if (rule != null)
                 {
                     this.rule = rule;
                 }
+                synchronized (transitions)
+                {
+                    index = transitions.size();
+                    transitions.add(this);
+                }
+            }
+
+            /**
+             * Creates a state transition, fired by the specified event id, to the
+             * specified state and uses the default validation rule, which always succeeds.
+             *
+             * @param eventId          The event that fires this transition from the owning state.
+             * @param destinationState The new state after the transition has completed.
+             */
+            public Transition(int eventId, State destinationState)
+            {
+                this(eventId, destinationState, null);
             }
 
             /**
@@ -312,23 +1352,427 @@ public class StateMachine
              * Triggers the state transition, provided that the validation
              * rule succeeds and the owning state is the current state;
              * otherwise the trigger is silently ignored.
+             * <p/>
+             * In mailbox mode the trigger is queued, and is validated and
+             * executed later by the state machine's executor.
              */
             public void trigger()
             {
-                // Triggers are only valid if the state machine is in the correct state, otherwise they are ignored.
-                if (StateMachine.this.currentState != State.this)
+                trigger(PAYLOAD_NONE, null, 0);
+            }
+
+            /**
+             * Triggers the state transition with a payload, which is handed to the
+             * payload rule and the payload action, if the transition has them.
+             * The payload travels with the trigger, so nothing needs to be shared
+             * between the caller and the rule or action.
+             *
+             * @param payload The payload.
+             * @param <P>     The payload type, which must match the payload rule and action.
+             * @throws IllegalArgumentException if the transition takes a primitive payload.
+             */
+            public <P> void trigger(P payload)
+            {
+                trigger(PAYLOAD_OBJECT, payload, 0);
+            }
+
+            /**
+             * Triggers the state transition with an int payload, which is delivered
+             * without boxing.
+             *
+             * @param payload The payload.
+             * @throws IllegalArgumentException if the transition takes some other kind of payload.
+             */
+            public void trigger(int payload)
+            {
+                trigger(PAYLOAD_INT, null, payload);
+            }
+
+            /**
+             * Triggers the state transition with a long payload, which is delivered
+             * without boxing.
+             *
+             * @param payload The payload.
+             * @throws IllegalArgumentException if the transition takes some other kind of payload.
+             */
+            public void trigger(long payload)
+            {
+                trigger(PAYLOAD_LONG, null, payload);
+            }
+
+            /**
+             * Triggers the state transition with a double payload, which is delivered
+             * without boxing.
+             *
+             * @param payload The payload.
+             * @throws IllegalArgumentException if the transition takes some other kind of payload.
+             */
+            public void trigger(double payload)
+            {
+                trigger(PAYLOAD_DOUBLE, null, Double.doubleToRawLongBits(payload));
+            }
+
+            private void trigger(int kind, Object payload, long bits)
+            {
+                if (payloadKind != PAYLOAD_NONE && kind != payloadKind)
+                    throw new IllegalArgumentException("Transition takes " + PAYLOAD_NAMES[payloadKind] + " payload, not " + PAYLOAD_NAMES[kind]);
+                if (concurrencyMode != ConcurrencyMode.MAILBOX)
+                    attempt(payload, bits);
+                else if (payloadKind == PAYLOAD_NONE)
+                    mailbox.post(this, NO_EVENT);       // nothing would look at the payload
+                else
+                {
+                    mailbox.enqueue(this, new Payload(this, payload, bits), NO_EVENT);
+                    mailbox.flush();
+                }
+            }
+
+            /**
+             * Sets a validation rule that is given the payload of each trigger. A
+             * payload rule is used instead of the plain rule. Setting a payload rule
+             * or action means that the transition must be triggered with a payload
+             * of the same kind; a transition that is fired by event id is given a
+             * null payload. Payload rules and actions should be set before the
+             * transition is first triggered.
+             *
+             * @param rule The rule, or null to remove the payload rule.
+             * @param <P>  The payload type.
+             * @throws IllegalArgumentException if the payload action takes some other kind of payload.
+             */
+            public <P> void setPayloadRule(PayloadTransitionRule<P> rule)
+            {
+                setPayloadRule(rule, PAYLOAD_OBJECT);
+            }
+
+            /**
+             * Sets a validation rule that is given the int payload of each trigger;
+             * see {@link #setPayloadRule(PayloadTransitionRule)}. A transition that
+             * is fired by event id is given a zero payload.
+             */
+            public void setIntPayloadRule(IntPayloadTransitionRule rule)
+            {
+                setPayloadRule(rule, PAYLOAD_INT);
+            }
+
+            /**
+             * Sets a validation rule that is given the long payload of each trigger;
+             * see {@link #setPayloadRule(PayloadTransitionRule)}. A transition that
+             * is fired by event id is given a zero payload.
+             */
+            public void setLongPayloadRule(LongPayloadTransitionRule rule)
+            {
+                setPayloadRule(rule, PAYLOAD_LONG);
+            }
+
+            /**
+             * Sets a validation rule that is given the double payload of each trigger;
+             * see {@link #setPayloadRule(PayloadTransitionRule)}. A transition that
+             * is fired by event id is given a zero payload.
+             */
+            public void setDoublePayloadRule(DoublePayloadTransitionRule rule)
+            {
+                setPayloadRule(rule, PAYLOAD_DOUBLE);
+            }
+
+            /**
+             * Sets an action that is given the payload of the trigger that executed
+             * the transition. It is run between the OnExit action of the source state
+             * and the OnEnter action of the destination, under the same policy as
+             * they are; see {@link #setPayloadRule(PayloadTransitionRule)} for the
+             * rules on payload kinds.
+             *
+             * @param action The action, or null to remove the payload action.
+             * @param <P>    The payload type.
+             * @throws IllegalArgumentException if the payload rule takes some other kind of payload.
+             */
+            public <P> void setPayloadAction(PayloadTransitionAction<P> action)
+            {
+                setPayloadAction(action, PAYLOAD_OBJECT);
+            }
+
+            /**
+             * Sets an action that is given the int payload of the trigger that executed
+             * the transition; see {@link #setPayloadAction(PayloadTransitionAction)}.
+             */
+            public void setIntPayloadAction(IntPayloadTransitionAction action)
+            {
+                setPayloadAction(action, PAYLOAD_INT);
+            }
+
+            /**
+             * Sets an action that is given the long payload of the trigger that executed
+             * the transition; see {@link #setPayloadAction(PayloadTransitionAction)}.
+             */
+            public void setLongPayloadAction(LongPayloadTransitionAction action)
+            {
+                setPayloadAction(action, PAYLOAD_LONG);
+            }
+
+            /**
+             * Sets an action that is given the double payload of the trigger that executed
+             * the transition; see {@link #setPayloadAction(PayloadTransitionAction)}.
+             */
+            public void setDoublePayloadAction(DoublePayloadTransitionAction action)
+            {
+                setPayloadAction(action, PAYLOAD_DOUBLE);
+            }
+
+            private void setPayloadRule(Object rule, int kind)
+            {
+                checkPayloadKind(rule, payloadAction, kind);
+                payloadRule = rule;
+                payloadKind = rule != null ? kind : payloadAction != null ? payloadKind : PAYLOAD_NONE;
+            }
+
+            private void setPayloadAction(Object action, int kind)
+            {
+                checkPayloadKind(action, payloadRule, kind);
+                payloadAction = action;
+                payloadKind = action != null ? kind : payloadRule != null ? payloadKind : PAYLOAD_NONE;
+            }
+
+            private void checkPayloadKind(Object handler, Object other, int kind)
+            {
+                if (handler != null && other != null && kind != payloadKind)
+                    throw new IllegalArgumentException("Transition already takes " + PAYLOAD_NAMES[payloadKind] + " payload");
+            }
+
+            /**
+             * Evaluates the payload rule.
+             */
+            @SuppressWarnings("unchecked")
+            private boolean payloadIsAllowed(Object rule, Object payload, long bits)
+            {
+                switch (payloadKind)
+                {
+                    case PAYLOAD_INT:
+                        return ((IntPayloadTransitionRule) rule).transitionIsAllowed((int) bits);
+                    case PAYLOAD_LONG:
+                        return ((LongPayloadTransitionRule) rule).transitionIsAllowed(bits);
+                    case PAYLOAD_DOUBLE:
+                        return ((DoublePayloadTransitionRule) rule).transitionIsAllowed(Double.longBitsToDouble(bits));
+                    default:
+                        return ((PayloadTransitionRule<Object>) rule).transitionIsAllowed(payload);
+                }
+            }
+
+            /**
+             * Runs the payload action, if there is one, timed by the flight recorder.
+             */
+            private void runPayloadAction(Object payload, long bits)
+            {
+                final Object action = payloadAction;
+                if (action == null)
+                    return;
+                if (!StateMachineEvents.ACTION.isEnabled())
                 {
-                    raiseOnTrigger(State.this.getName(), destinationState.getName(), "disarmed");
+                    invokePayloadAction(action, payload, bits);
                     return;
                 }
 
-                if (rule.transitionIsAllowed())
+                final StateMachineEvents.Action event = new StateMachineEvents.Action();
+                event.begin();
+                try
                 {
-                    raiseOnTrigger(State.this.getName(), destinationState.getName(), "armed, executing");
-                    StateMachine.this.transitionToNewState(State.this, destinationState);
+                    invokePayloadAction(action, payload, bits);
                 }
-                else
-                    raiseOnTrigger(State.this.getName(), destinationState.getName(), "armed, rejected");
+                finally
+                {
+                    event.end();
+                    if (event.shouldCommit())
+                    {
+                        event.state = State.this.name;
+                        event.kind = "Payload";
+                        event.commit();
+                    }
+                }
+            }
+
+            @SuppressWarnings("unchecked")
+            private void invokePayloadAction(Object action, Object payload, long bits)
+            {
+                switch (payloadKind)
+                {
+                    case PAYLOAD_INT:
+                        ((IntPayloadTransitionAction) action).action((int) bits);
+                        break;
+                    case PAYLOAD_LONG:
+                        ((LongPayloadTransitionAction) action).action(bits);
+                        break;
+                    case PAYLOAD_DOUBLE:
+                        ((DoublePayloadTransitionAction) action).action(Double.longBitsToDouble(bits));
+                        break;
+                    default:
+                        ((PayloadTransitionAction<Object>) action).action(payload);
+                        break;
+                }
+            }
+
+            /**
+             * Triggers the state transition, counts the outcome if metrics are
+             * enabled, and reports what happened.
+             */
+            private TriggerOutcome attempt(Object payload, long bits)
+            {
+                if (fastReject && StateMachine.this.currentState != State.this)
+                    return TriggerOutcome.DISARMED;
+                final TriggerOutcome outcome = decide(payload, bits);
+                final TransitionMetrics metrics = StateMachine.this.metrics;
+                if (metrics != null)
+                    metrics.recordOutcome(outcome);
+                return outcome;
+            }
+
+            /**
+             * Triggers the state transition and reports what happened, without
+             * counting the outcome, so that fire() can count one outcome per event
+             * however many alternatives it tries.
+             */
+            private TriggerOutcome decide(Object payload, long bits)
+            {
+                if (!StateMachineEvents.TRIGGER.isEnabled())
+                    return evaluate(payload, bits);
+
+                final StateMachineEvents.Trigger event = new StateMachineEvents.Trigger();
+                event.begin();
+                final TriggerOutcome outcome = evaluate(payload, bits);
+                event.end();
+                if (event.shouldCommit())
+                {
+                    event.fromState = State.this.name;
+                    event.toState = destinationState.name;
+                    event.outcome = outcome.getDescription();
+                    event.commit();
+                }
+                return outcome;
+            }
+
+            /**
+             * Triggers the state transition and reports what happened.
+             */
+            private TriggerOutcome evaluate(Object payload, long bits)
+            {
+                while (true)
+                {
+                    // Triggers are only valid if the state machine is in the correct state, otherwise they are ignored.
+                    if (StateMachine.this.currentState != State.this)
+                    {
+                        traceTrigger(State.this, destinationState, TriggerOutcome.DISARMED);
+                        return TriggerOutcome.DISARMED;
+                    }
+
+                    if (!evaluateRule(payload, bits))
+                    {
+                        traceTrigger(State.this, destinationState, TriggerOutcome.REJECTED);
+                        return TriggerOutcome.REJECTED;
+                    }
+
+                    if (concurrencyMode != ConcurrencyMode.LOCK_FREE)
+                        break;
+                    if (claimTransition(State.this))
+                    {
+                        traceTrigger(State.this, destinationState, TriggerOutcome.EXECUTED);
+                        final StateMachineEvents.Transition event = beginTransitionEvent();
+                        completeClaimedTransition(State.this, destinationState, this, payload, bits);
+                        commitTransitionEvent(event, true);
+                        return TriggerOutcome.EXECUTED;
+                    }
+                    // The state has moved since it was read. Only a transition still under way is
+                    // contention, which fails fast rather than waiting for it; a state machine that
+                    // has settled elsewhere disarms this trigger, and one that has come back to
+                    // this state is tried again from the start.
+                    if (StateMachine.this.currentState == hiddenStateInTransition)
+                    {
+                        traceTrigger(State.this, destinationState, TriggerOutcome.CONTENDED);
+                        return TriggerOutcome.CONTENDED;
+                    }
+                }
+
+                traceTrigger(State.this, destinationState, TriggerOutcome.EXECUTED);
+                final StateMachineEvents.Transition event = beginTransitionEvent();
+                // The state can still change while we wait for the lock, in which case nothing happens.
+                final boolean committed = StateMachine.this.transitionToNewState(State.this, destinationState, this, payload, bits);
+                commitTransitionEvent(event, committed);
+                return committed ? TriggerOutcome.EXECUTED : TriggerOutcome.DISARMED;
+            }
+
+            /**
+             * Evaluates the validation rule, timed by the flight recorder.
+             */
+            private boolean evaluateRule(Object payload, long bits)
+            {
+                if (!StateMachineEvents.RULE_EVALUATION.isEnabled())
+                    return ruleAllows(payload, bits);
+
+                final StateMachineEvents.RuleEvaluation event = new StateMachineEvents.RuleEvaluation();
+                event.begin();
+                final boolean allowed = ruleAllows(payload, bits);
+                event.end();
+                if (event.shouldCommit())
+                {
+                    event.fromState = State.this.name;
+                    event.toState = destinationState.name;
+                    event.allowed = allowed;
+                    event.commit();
+                }
+                return allowed;
+            }
+
+            private boolean ruleAllows(Object payload, long bits)
+            {
+                final Object payloadRule = this.payloadRule;
+                return payloadRule == null ? rule.transitionIsAllowed() : payloadIsAllowed(payloadRule, payload, bits);
+            }
+
+            /**
+             * Starts timing a transition for the flight recorder, or returns null
+             * if the Transition event is not being recorded.
+             */
+            private StateMachineEvents.Transition beginTransitionEvent()
+            {
+                if (!StateMachineEvents.TRANSITION.isEnabled())
+                    return null;
+                final StateMachineEvents.Transition event = new StateMachineEvents.Transition();
+                event.begin();
+                return event;
+            }
+
+            private void commitTransitionEvent(StateMachineEvents.Transition event, boolean committed)
+            {
+                if (event == null)
+                    return;
+                event.end();
+                if (event.shouldCommit())
+                {
+                    event.fromState = State.this.name;
+                    event.toState = destinationState.name;
+                    event.committed = committed;
+                    event.commit();
+                }
+            }
+
+            /**
+             * Gets the state that owns this transition.
+             */
+            public State getSourceState()
+            {
+                return State.this;
+            }
+
+            /**
+             * Gets the destination state of this transition.
+             */
+            public State getDestinationState()
+            {
+                return destinationState;
+            }
+
+            /**
+             * Gets the event id that fires this transition, or NO_EVENT.
+             */
+            public int getEventId()
+            {
+                return eventId;
             }
 
             /**
@@ -0,0 +1,856 @@
+package uk.co.tigranetworks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable description of a finite state machine - its states, the
+ * OnEnter and OnExit actions of each state, and the event-driven transitions
+ * between them along with their validation rules - that can be shared by any
+ * number of running instances.
+ * <p/>
+ * Where a {@link StateMachine} owns its own graph of State and Transition
+ * objects, a definition is built once and then stamped out with
+ * {@link #newInstance(Object)}. Each {@link StateMachineInstance} holds only
+ * a reference to the definition, its current state id and a context object,
+ * which is handed to the rules and actions so that they need not capture any
+ * per-instance state themselves.
+ * <p/>
+ * States are identified by the ordinal ids returned from
+ * {@link Builder#addState(String)}, and transitions are fired by integer
+ * event ids through a dense dispatch table, exactly as with
+ * {@link StateMachine#fire(int)}.
+ * <p/>
+ * States may be nested with {@link Builder#addState(String, int)}. A
+ * transition added to a composite state is taken from every state within it,
+ * unless a substate has a transition of its own for the same event, which is
+ * tried first. Instances are only ever in leaf states: a transition into a
+ * composite state carries on into its initial substate, and so on down.
+ * Transitions are external, so they exit every state from the current leaf up
+ * to the least common ancestor of the transition's source and destination,
+ * innermost first, and then enter every state from there down to the
+ * destination leaf, outermost first. These paths are worked out for every
+ * leaf and transition when the definition is built, so firing an event only
+ * ever runs a precomputed array of actions.
+ * <p/>
+ * A finished definition can be handed to {@link DefinitionCompiler}, which
+ * produces an equivalent definition whose rules and actions are bound
+ * directly into a method handle tree of its own.
+ *
+ * @param <C> The type of the per-instance context object.
+ */
+public final class StateMachineDefinition<C>
+{
+    // Results of resolve() that do not identify a transition.
+    static final int DISARMED = -1;
+    static final int REJECTED = -2;
+
+    /**
+     * The parent of a top-level state.
+     */
+    public static final int NO_PARENT = -1;
+
+    private final String[]                            stateNames;
+    private final String[]                            eventNames;        // null entries for unnamed events
+    private final int[]                               parents;           // NO_PARENT for top-level states
+    private final boolean[]                           leaves;
+    private final int[]                               initialSubstates;  // -1 for leaf states
+    private final int[]                               transitionSource;
+    private final int[]                               transitionEvent;
+    private final int[]                               transitionDestination;
+    private final ContextTransitionRule<C>[]          rules;             // null entries always succeed
+    private final int[][]                             dispatchTable;     // [state][event] -> first route, or -1
+    private final int[]                               routeTransition;   // a route is a transition taken from one leaf state
+    private final int[]                               routeDestination;  // always a leaf state
+    private final ContextStateTransitionAction<C>[][] routeActions;      // OnExit and OnEnter actions, in order, without nulls
+    private final int[]                               nextAlternative;   // next route for the same state and event, or -1
+    private final ContextStateTransitionAction<C>[]   initialActions;
+    private final int                                 eventCount;
+    private final int                                 initialState;      // always a leaf state
+    private final TransitionMetrics                   metrics;           // null unless enabled
+    private final ContextLayout                       contextLayout;
+    private final DefinitionCompiler.Compiled         compiled;          // null unless compiled
+
+    private StateMachineDefinition(Builder<C> builder)
+    {
+        compiled = null;
+        final int stateCount = builder.stateNames.size();
+        final int transitionCount = builder.transitions.size();
+        stateNames = builder.stateNames.toArray(new String[stateCount]);
+        parents = new int[stateCount];
+        leaves = new boolean[stateCount];
+        initialSubstates = new int[stateCount];
+        Arrays.fill(leaves, true);
+        for (int state = 0; state < stateCount; state++)
+        {
+            parents[state] = builder.parents.get(state);
+            initialSubstates[state] = builder.initialSubstates.get(state);
+            if (parents[state] != NO_PARENT)
+                leaves[parents[state]] = false;
+        }
+        contextLayout = new ContextLayout(builder.slotNames, builder.slotTypes);
+        final ContextStateTransitionAction<C>[] onEnter = toActionArray(builder.onEnter);
+        final ContextStateTransitionAction<C>[] onExit = toActionArray(builder.onExit);
+
+        transitionSource = new int[transitionCount];
+        transitionEvent = new int[transitionCount];
+        transitionDestination = new int[transitionCount];
+        rules = newRuleArray(transitionCount);
+        int events = 0;
+        for (int index = 0; index < transitionCount; index++)
+        {
+            final TransitionSpec<C> spec = builder.transitions.get(index);
+            transitionSource[index] = spec.source;
+            transitionEvent[index] = spec.event;
+            transitionDestination[index] = spec.destination;
+            rules[index] = spec.rule;
+            events = Math.max(events, spec.event + 1);
+        }
+        for (int eventId : builder.eventNames.keySet())
+            events = Math.max(events, eventId + 1);
+        eventCount = events;
+        eventNames = new String[eventCount];
+        for (Map.Entry<Integer, String> entry : builder.eventNames.entrySet())
+            eventNames[entry.getKey()] = entry.getValue();
+
+        // The initial path enters every state from the top down to the initial leaf.
+        final List<ContextStateTransitionAction<C>> path = new ArrayList<>();
+        initialState = addEntryPath(builder.initialState, NO_PARENT, initialSubstates, onEnter, path);
+        initialActions = toActionArray(path);
+
+        // Give every leaf a route for each transition that it can take, whether its own or
+        // inherited, chained innermost state first and then in creation order.
+        dispatchTable = new int[stateCount][eventCount];
+        for (int[] row : dispatchTable)
+            Arrays.fill(row, -1);
+        final List<Integer> routes = new ArrayList<>();
+        final List<Integer> destinations = new ArrayList<>();
+        final List<ContextStateTransitionAction<C>[]> actions = new ArrayList<>();
+        final List<Integer> alternatives = new ArrayList<>();
+        final int[] chainTails = new int[eventCount];
+        // Bucket the transitions by source state, keeping creation order within each
+        // state, so that every leaf visits only those of its own ancestors.
+        final int[] ownedStart = new int[stateCount + 1];
+        final int[] owned = new int[transitionCount];
+        for (int index = 0; index < transitionCount; index++)
+            ownedStart[transitionSource[index] + 1]++;
+        for (int state = 0; state < stateCount; state++)
+            ownedStart[state + 1] += ownedStart[state];
+        final int[] nextOwned = Arrays.copyOf(ownedStart, stateCount);
+        for (int index = 0; index < transitionCount; index++)
+            owned[nextOwned[transitionSource[index]]++] = index;
+        for (int leaf = 0; leaf < stateCount; leaf++)
+        {
+            if (!leaves[leaf])
+                continue;
+            Arrays.fill(chainTails, -1);
+            for (int owner = leaf; owner != NO_PARENT; owner = parents[owner])
+                for (int slot = ownedStart[owner]; slot < ownedStart[owner + 1]; slot++)
+                {
+                    final int index = owned[slot];
+                    final int route = routes.size();
+                    final int event = transitionEvent[index];
+                    final int destination = transitionDestination[index];
+                    final int domain = leastCommonAncestor(owner, destination);
+                    path.clear();
+                    for (int state = leaf; state != domain; state = parents[state])
+                        if (onExit[state] != null)
+                            path.add(onExit[state]);
+                    routes.add(index);
+                    destinations.add(addEntryPath(destination, domain, initialSubstates, onEnter, path));
+                    actions.add(toActionArray(path));
+                    alternatives.add(-1);
+                    if (chainTails[event] < 0)
+                        dispatchTable[leaf][event] = route;
+                    else
+                        alternatives.set(chainTails[event], route);
+                    chainTails[event] = route;
+                }
+        }
+        final int routeCount = routes.size();
+        routeTransition = new int[routeCount];
+        routeDestination = new int[routeCount];
+        routeActions = newActionArrays(routeCount);
+        nextAlternative = new int[routeCount];
+        for (int route = 0; route < routeCount; route++)
+        {
+            routeTransition[route] = routes.get(route);
+            routeDestination[route] = destinations.get(route);
+            routeActions[route] = actions.get(route);
+            nextAlternative[route] = alternatives.get(route);
+        }
+
+        if (builder.metricsEnabled)
+        {
+            metrics = new TransitionMetrics();
+            final String[] names = new String[transitionCount];
+            for (int index = 0; index < transitionCount; index++)
+                names[index] = stateNames[transitionSource[index]] + " -> " + stateNames[transitionDestination[index]];
+            metrics.bindTransitions(names);
+        }
+        else
+            metrics = null;
+    }
+
+    /**
+     * Creates a compiled copy of a definition. Called by {@link DefinitionCompiler}.
+     */
+    StateMachineDefinition(StateMachineDefinition<C> source, DefinitionCompiler.Compiled compiled)
+    {
+        stateNames = source.stateNames;
+        eventNames = source.eventNames;
+        parents = source.parents;
+        leaves = source.leaves;
+        initialSubstates = source.initialSubstates;
+        transitionSource = source.transitionSource;
+        transitionEvent = source.transitionEvent;
+        transitionDestination = source.transitionDestination;
+        rules = source.rules;
+        dispatchTable = source.dispatchTable;
+        routeTransition = source.routeTransition;
+        routeDestination = source.routeDestination;
+        routeActions = source.routeActions;
+        nextAlternative = source.nextAlternative;
+        initialActions = source.initialActions;
+        eventCount = source.eventCount;
+        initialState = source.initialState;
+        metrics = source.metrics;
+        contextLayout = source.contextLayout;
+        this.compiled = compiled;
+    }
+
+    /**
+     * Finds the innermost state that properly contains both of the specified
+     * states, or NO_PARENT if only the top level does.
+     */
+    private int leastCommonAncestor(int source, int destination)
+    {
+        int ancestor = parents[source];
+        while (ancestor != NO_PARENT && (ancestor == destination || !isWithin(destination, ancestor)))
+            ancestor = parents[ancestor];
+        return ancestor;
+    }
+
+    /**
+     * Appends the OnEnter actions of the states from just below the domain down to
+     * the specified state, outermost first, and then those of its initial
+     * substates on down to a leaf.
+     *
+     * @return The leaf state.
+     */
+    private int addEntryPath(int state, int domain, int[] initialSubstates, ContextStateTransitionAction<C>[] onEnter, List<ContextStateTransitionAction<C>> path)
+    {
+        final int start = path.size();
+        for (int outer = state; outer != domain; outer = parents[outer])
+            if (onEnter[outer] != null)
+                path.add(start, onEnter[outer]);
+        while (!leaves[state])
+        {
+            state = initialSubstates[state];
+            if (onEnter[state] != null)
+                path.add(onEnter[state]);
+        }
+        return state;
+    }
+
+    /**
+     * Starts building a new definition.
+     *
+     * @param <C> The type of the per-instance context object.
+     */
+    public static <C> Builder<C> builder()
+    {
+        return new Builder<>();
+    }
+
+    /**
+     * Creates and starts a new instance of this state machine. The OnEnter
+     * action of the initial state is run, with the supplied context, before
+     * this method returns.
+     *
+     * @param context The per-instance context object handed to every rule and action (may be null).
+     * @return The new instance, in the initial state.
+     */
+    public StateMachineInstance<C> newInstance(C context)
+    {
+        final StateMachineInstance<C> instance = new StateMachineInstance<>(this, context);
+        instance.enterInitialState();
+        return instance;
+    }
+
+    /**
+     * Recreates an instance directly in the specified state, e.g. from a snapshot.
+     * Unlike {@link #newInstance(Object)}, no OnEnter action is run.
+     *
+     * @param context The per-instance context object handed to every rule and action (may be null).
+     * @param stateId The id of the state that the instance is to be in.
+     * @return The restored instance.
+     */
+    public StateMachineInstance<C> restoreInstance(C context, int stateId)
+    {
+        checkLeafState(stateId);
+        final StateMachineInstance<C> instance = new StateMachineInstance<>(this, context);
+        instance.restoreState(stateId);
+        return instance;
+    }
+
+    public int getStateCount()
+    {
+        return stateNames.length;
+    }
+
+    /**
+     * Gets the number of event ids, i.e. one more than the highest event id taken by any transition.
+     */
+    public int getEventCount()
+    {
+        return eventCount;
+    }
+
+    public int getTransitionCount()
+    {
+        return transitionSource.length;
+    }
+
+    /**
+     * Gets the state that new instances start in. If the builder's initial state
+     * is a composite state, this is the leaf reached through its initial substates.
+     */
+    public int getInitialState()
+    {
+        return initialState;
+    }
+
+    /**
+     * Gets the id of the state that directly contains the specified state, or
+     * NO_PARENT if it is a top-level state.
+     */
+    public int getParentState(int stateId)
+    {
+        return parents[stateId];
+    }
+
+    /**
+     * Determines whether a state has no substates. Instances are only ever in leaf states.
+     */
+    public boolean isLeafState(int stateId)
+    {
+        return leaves[stateId];
+    }
+
+    /**
+     * Gets the substate that is entered when a transition ends in a composite
+     * state, or -1 if the state is a leaf.
+     */
+    public int getInitialSubstate(int stateId)
+    {
+        return initialSubstates[stateId];
+    }
+
+    /**
+     * Determines whether a state is the specified ancestor or is nested, at any
+     * depth, within it.
+     */
+    public boolean isWithin(int stateId, int ancestorId)
+    {
+        for (int state = stateId; state != NO_PARENT; state = parents[state])
+            if (state == ancestorId)
+                return true;
+        return false;
+    }
+
+    /**
+     * Gets the metrics shared by every instance of this definition, or null if
+     * they were not enabled when it was built.
+     */
+    public TransitionMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Gets the extended-state slots declared on the builder. The layout is empty
+     * if none were declared.
+     */
+    public ContextLayout getContextLayout()
+    {
+        return contextLayout;
+    }
+
+    /**
+     * Determines whether this definition was produced by {@link DefinitionCompiler}.
+     */
+    public boolean isCompiled()
+    {
+        return compiled != null;
+    }
+
+    public String getStateName(int stateId)
+    {
+        return stateNames[stateId];
+    }
+
+    /**
+     * Finds a state by name.
+     *
+     * @return The id of the first state with that name, or -1 if there is none.
+     */
+    public int findState(String name)
+    {
+        for (int stateId = 0; stateId < stateNames.length; stateId++)
+            if (stateNames[stateId].equals(name))
+                return stateId;
+        return -1;
+    }
+
+    /**
+     * Gets the name given to an event id with {@link Builder#nameEvent}, or null if it has none.
+     */
+    public String getEventName(int eventId)
+    {
+        return eventId >= 0 && eventId < eventNames.length ? eventNames[eventId] : null;
+    }
+
+    /**
+     * Finds an event by name.
+     *
+     * @return The event id, or -1 if no event has that name.
+     */
+    public int findEvent(String name)
+    {
+        for (int eventId = 0; eventId < eventNames.length; eventId++)
+            if (name.equals(eventNames[eventId]))
+                return eventId;
+        return -1;
+    }
+
+    public int getTransitionSource(int transition)
+    {
+        return transitionSource[transition];
+    }
+
+    public int getTransitionEvent(int transition)
+    {
+        return transitionEvent[transition];
+    }
+
+    public int getTransitionDestination(int transition)
+    {
+        return transitionDestination[transition];
+    }
+
+    /**
+     * Gets the validation rule of a transition, or null if it always succeeds.
+     */
+    ContextTransitionRule<C> getTransitionRule(int transition)
+    {
+        return rules[transition];
+    }
+
+    /**
+     * Checks whether any transition from the specified leaf state or its
+     * ancestors takes an event, without evaluating any validation rule.
+     */
+    boolean takesEvent(int stateId, int eventId)
+    {
+        return eventId >= 0 && eventId < eventCount && dispatchTable[stateId][eventId] >= 0;
+    }
+
+    /**
+     * Finds the route by which an event leaves the specified leaf state,
+     * evaluating validation rules against the context as it goes. If several
+     * transitions take the same event then the innermost state's are tried
+     * first, each state's in creation order, and the first whose rule succeeds wins.
+     *
+     * @return The route; or DISARMED if no transition from the state or its
+     *         ancestors takes the event; or REJECTED if every such transition's rule failed.
+     */
+    int resolve(int stateId, int eventId, C context)
+    {
+        if (eventId < 0 || eventId >= eventCount)
+            return DISARMED;
+        if (compiled != null)
+            return compiled.resolve(stateId, eventId, context);
+        int route = dispatchTable[stateId][eventId];
+        if (route < 0)
+            return DISARMED;
+        for (; route >= 0; route = nextAlternative[route])
+        {
+            final ContextTransitionRule<C> rule = rules[routeTransition[route]];
+            if (rule == null || rule.transitionIsAllowed(context))
+                return route;
+        }
+        return REJECTED;
+    }
+
+    /**
+     * Gets the index of the transition that a route takes.
+     */
+    int getRouteTransition(int route)
+    {
+        return routeTransition[route];
+    }
+
+    /**
+     * Gets the leaf state in which a route ends.
+     */
+    int getRouteDestination(int route)
+    {
+        return routeDestination[route];
+    }
+
+    /**
+     * Runs the OnExit actions and then the OnEnter actions of a route. As with
+     * StateMachine, an exception from an action propagates and means that the
+     * rest of the route's actions are not run.
+     */
+    void runActions(int route, C context)
+    {
+        if (compiled != null)
+        {
+            compiled.runActions(route, context);
+            return;
+        }
+        for (ContextStateTransitionAction<C> action : routeActions[route])
+            action.action(context);
+    }
+
+    int getRouteCount()
+    {
+        return routeTransition.length;
+    }
+
+    /**
+     * Gets the first route by which an event leaves a state, or -1 if there is none.
+     */
+    int getFirstRoute(int stateId, int eventId)
+    {
+        return dispatchTable[stateId][eventId];
+    }
+
+    /**
+     * Gets the next route to try if a route's rule fails, or -1 if there is none.
+     */
+    int getNextAlternative(int route)
+    {
+        return nextAlternative[route];
+    }
+
+    /**
+     * Gets the validation rule of a route, or null if it always succeeds.
+     */
+    ContextTransitionRule<C> getRouteRule(int route)
+    {
+        return rules[routeTransition[route]];
+    }
+
+    ContextStateTransitionAction<C>[] getRouteActions(int route)
+    {
+        return routeActions[route];
+    }
+
+    /**
+     * Runs the OnEnter actions of the initial state, and of its ancestors and
+     * initial substates, outermost first.
+     */
+    void enterInitialState(C context)
+    {
+        for (ContextStateTransitionAction<C> action : initialActions)
+            action.action(context);
+    }
+
+    void checkLeafState(int stateId)
+    {
+        if (stateId < 0 || stateId >= stateNames.length)
+            throw new IllegalArgumentException("Unknown state id " + stateId);
+        if (!leaves[stateId])
+            throw new IllegalArgumentException("State " + stateNames[stateId] + " has substates");
+    }
+
+    // Java cannot create an array of a generic type, so these helpers create raw arrays.
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <C> ContextStateTransitionAction<C>[] toActionArray(List<ContextStateTransitionAction<C>> list)
+    {
+        return list.toArray(new ContextStateTransitionAction[list.size()]);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <C> ContextStateTransitionAction<C>[][] newActionArrays(int length)
+    {
+        return new ContextStateTransitionAction[length][];
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <C> ContextTransitionRule<C>[] newRuleArray(int length)
+    {
+        return new ContextTransitionRule[length];
+    }
+
+    private static final class TransitionSpec<C>
+    {
+        final int                      source;
+        final int                      event;
+        final int                      destination;
+        final ContextTransitionRule<C> rule;
+
+        TransitionSpec(int source, int event, int destination, ContextTransitionRule<C> rule)
+        {
+            this.source = source;
+            this.event = event;
+            this.destination = destination;
+            this.rule = rule;
+        }
+    }
+
+    /**
+     * Accumulates the states and transitions of a definition. A builder is
+     * not thread-safe and is normally discarded once build() has been called.
+     *
+     * @param <C> The type of the per-instance context object.
+     */
+    public static final class Builder<C>
+    {
+        private final List<String>                          stateNames       = new ArrayList<>();
+        private final List<Integer>                         parents          = new ArrayList<>();
+        private final List<Integer>                         initialSubstates = new ArrayList<>();
+        private final List<ContextStateTransitionAction<C>> onEnter          = new ArrayList<>();
+        private final List<ContextStateTransitionAction<C>> onExit           = new ArrayList<>();
+        private final List<TransitionSpec<C>>               transitions      = new ArrayList<>();
+        private final List<String>                          slotNames        = new ArrayList<>();
+        private final List<ContextLayout.SlotType>          slotTypes        = new ArrayList<>();
+        private final Map<Integer, String>                  eventNames       = new HashMap<>();
+        private       int                                   initialState     = -1;
+        private       boolean                               metricsEnabled;
+
+        private Builder()
+        {
+        }
+
+        /**
+         * Adds a state with no OnEnter or OnExit actions.
+         *
+         * @param name The descriptive name of the state (required; not null or empty).
+         * @return The id of the new state. Ids are assigned in order, starting at zero.
+         */
+        public int addState(String name)
+        {
+            return addState(name, null, null);
+        }
+
+        /**
+         * Adds a state with actions for the OnEnter and OnExit actions.
+         *
+         * @param name    The descriptive name of the state (required; not null or empty).
+         * @param onEnter The action to be performed on entering this state (or null if none).
+         * @param onExit  The action to be performed on leaving this state (or null if none).
+         * @return The id of the new state. Ids are assigned in order, starting at zero.
+         */
+        public int addState(String name, ContextStateTransitionAction<C> onEnter, ContextStateTransitionAction<C> onExit)
+        {
+            return addState(name, NO_PARENT, onEnter, onExit);
+        }
+
+        /**
+         * Adds a substate with no OnEnter or OnExit actions.
+         *
+         * @param name        The descriptive name of the state (required; not null or empty).
+         * @param parentState The id of the composite state that contains the new state, or NO_PARENT.
+         * @return The id of the new state. Ids are assigned in order, starting at zero.
+         */
+        public int addState(String name, int parentState)
+        {
+            return addState(name, parentState, null, null);
+        }
+
+        /**
+         * Adds a substate with actions for the OnEnter and OnExit actions. The first
+         * substate added to a composite state is its initial substate unless
+         * {@link #setInitialSubstate} says otherwise.
+         *
+         * @param name        The descriptive name of the state (required; not null or empty).
+         * @param parentState The id of the composite state that contains the new state, or NO_PARENT.
+         * @param onEnter     The action to be performed on entering this state (or null if none).
+         * @param onExit      The action to be performed on leaving this state (or null if none).
+         * @return The id of the new state. Ids are assigned in order, starting at zero.
+         */
+        public int addState(String name, int parentState, ContextStateTransitionAction<C> onEnter, ContextStateTransitionAction<C> onExit)
+        {
+            if (name == null || name.isEmpty())
+                throw new IllegalArgumentException("State name must not be empty or null");
+            if (parentState != NO_PARENT)
+                checkState(parentState);
+            final int stateId = stateNames.size();
+            stateNames.add(name);
+            parents.add(parentState);
+            initialSubstates.add(-1);
+            this.onEnter.add(onEnter);
+            this.onExit.add(onExit);
+            if (parentState != NO_PARENT && initialSubstates.get(parentState) < 0)
+                initialSubstates.set(parentState, stateId);
+            return stateId;
+        }
+
+        /**
+         * Sets the substate that is entered when a transition ends in a composite state.
+         *
+         * @param parentState The id of the composite state.
+         * @param childState  The id of one of its direct substates.
+         */
+        public Builder<C> setInitialSubstate(int parentState, int childState)
+        {
+            checkState(parentState);
+            checkState(childState);
+            if (parents.get(childState) != parentState)
+                throw new IllegalArgumentException("State " + stateNames.get(childState) + " is not a substate of " + stateNames.get(parentState));
+            initialSubstates.set(parentState, childState);
+            return this;
+        }
+
+        /**
+         * Adds a transition that always succeeds when its event is fired.
+         *
+         * @param sourceState      The id of the state that owns the transition; if it is a
+         *                         composite state, the transition is taken from every state within it.
+         * @param eventId          The event that fires the transition (zero or greater).
+         * @param destinationState The id of the destination state.
+         * @return The index of the new transition.
+         */
+        public int addTransition(int sourceState, int eventId, int destinationState)
+        {
+            return addTransition(sourceState, eventId, destinationState, null);
+        }
+
+        /**
+         * Adds a transition with a validation rule. If several transitions from the
+         * same state take the same event then they are tried in the order in which
+         * they were added.
+         *
+         * @param sourceState      The id of the state that owns the transition; if it is a
+         *                         composite state, the transition is taken from every state within it.
+         * @param eventId          The event that fires the transition (zero or greater).
+         * @param destinationState The id of the destination state.
+         * @param rule             The validation rule, or null for one that always succeeds.
+         * @return The index of the new transition.
+         */
+        public int addTransition(int sourceState, int eventId, int destinationState, ContextTransitionRule<C> rule)
+        {
+            checkState(sourceState);
+            checkState(destinationState);
+            if (eventId < 0)
+                throw new IllegalArgumentException("Event id must not be negative");
+            transitions.add(new TransitionSpec<>(sourceState, eventId, destinationState, rule));
+            return transitions.size() - 1;
+        }
+
+        /**
+         * Gives an event id a descriptive name, for diagnostics and for looking
+         * events up by name. Naming an event is optional.
+         *
+         * @param name    The name (required; not null or empty).
+         * @param eventId The event id (zero or greater).
+         */
+        public Builder<C> nameEvent(String name, int eventId)
+        {
+            if (name == null || name.isEmpty())
+                throw new IllegalArgumentException("Event name must not be empty or null");
+            if (eventId < 0)
+                throw new IllegalArgumentException("Event id must not be negative");
+            eventNames.put(eventId, name);
+            return this;
+        }
+
+        /**
+         * Declares an int extended-state slot; see {@link ContextLayout}. Slots are
+         * only of use when the context type is {@link ExtendedState}.
+         *
+         * @param name The name of the slot (required; unique).
+         * @return The slot's handle, for use with ExtendedState.getInt() and setInt().
+         */
+        public int addIntSlot(String name)
+        {
+            return addSlot(name, ContextLayout.SlotType.INT);
+        }
+
+        /**
+         * Declares a long extended-state slot; see {@link #addIntSlot}.
+         */
+        public int addLongSlot(String name)
+        {
+            return addSlot(name, ContextLayout.SlotType.LONG);
+        }
+
+        /**
+         * Declares a double extended-state slot; see {@link #addIntSlot}.
+         */
+        public int addDoubleSlot(String name)
+        {
+            return addSlot(name, ContextLayout.SlotType.DOUBLE);
+        }
+
+        /**
+         * Declares a reference extended-state slot; see {@link #addIntSlot}.
+         */
+        public int addReferenceSlot(String name)
+        {
+            return addSlot(name, ContextLayout.SlotType.REFERENCE);
+        }
+
+        private int addSlot(String name, ContextLayout.SlotType type)
+        {
+            if (name == null || name.isEmpty())
+                throw new IllegalArgumentException("Slot name must not be empty or null");
+            if (slotNames.contains(name))
+                throw new IllegalArgumentException("There is already a slot named " + name);
+            int position = 0;
+            for (ContextLayout.SlotType existing : slotTypes)
+                if ((existing == ContextLayout.SlotType.REFERENCE) == (type == ContextLayout.SlotType.REFERENCE))
+                    position++;
+            slotNames.add(name);
+            slotTypes.add(type);
+            return ContextLayout.handle(type, position);
+        }
+
+        /**
+         * Sets the state that new instances start in. If it is a composite state,
+         * instances start in its initial substate.
+         *
+         * @param stateId The id of the initial state.
+         */
+        public Builder<C> setInitialState(int stateId)
+        {
+            checkState(stateId);
+            initialState = stateId;
+            return this;
+        }
+
+        /**
+         * Chooses whether the definition collects {@link TransitionMetrics} for all
+         * of its instances (and populations). Metrics are off by default.
+         */
+        public Builder<C> setMetricsEnabled(boolean enabled)
+        {
+            metricsEnabled = enabled;
+            return this;
+        }
+
+        /**
+         * Creates the immutable definition. The builder may continue to be used
+         * afterwards without affecting definitions that it has already built.
+         */
+        public StateMachineDefinition<C> build()
+        {
+            if (initialState < 0)
+                throw new IllegalStateException("An initial state is required");
+            return new StateMachineDefinition<>(this);
+        }
+
+        private void checkState(int stateId)
+        {
+            if (stateId < 0 || stateId >= stateNames.size())
+                throw new IllegalArgumentException("Unknown state id " + stateId);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package uk.co.tigranetworks;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * The Java Flight Recorder events raised by {@link StateMachine}. Each is a
+ * duration event in the "State Machine" category, carrying state names and,
+ * where there is one, an outcome, so that a recording shows exactly where
+ * state machine time goes.
+ * <p/>
+ * The events follow the usual JFR pattern of begin(), end() and a
+ * shouldCommit() check before any field is filled in. An event object is only
+ * created once its type's isEnabled() check has passed, so while JFR is not
+ * recording an event the state machine pays for that check and nothing else:
+ * no allocation and no clock reads.
+ */
+final class StateMachineEvents
+{
+    private static final String CATEGORY = "State Machine";
+
+    static final EventType TRIGGER         = EventType.getEventType(Trigger.class);
+    static final EventType RULE_EVALUATION = EventType.getEventType(RuleEvaluation.class);
+    static final EventType ACTION          = EventType.getEventType(Action.class);
+    static final EventType TRANSITION      = EventType.getEventType(Transition.class);
+    static final EventType LOCK_WAIT       = EventType.getEventType(LockWait.class);
+
+    private StateMachineEvents()
+    {
+    }
+
+    @Name("uk.co.tigranetworks.Trigger")
+    @Label("Trigger")
+    @Description("A transition was triggered, directly or by an event, and its outcome decided")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Trigger extends Event
+    {
+        @Label("From State")
+        String fromState;
+
+        @Label("To State")
+        String toState;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("uk.co.tigranetworks.RuleEvaluation")
+    @Label("Rule Evaluation")
+    @Description("A transition's validation rule was evaluated")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class RuleEvaluation extends Event
+    {
+        @Label("From State")
+        String fromState;
+
+        @Label("To State")
+        String toState;
+
+        @Label("Allowed")
+        boolean allowed;
+    }
+
+    @Name("uk.co.tigranetworks.Action")
+    @Label("State Action")
+    @Description("An OnExit, OnEnter or transition payload action ran")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Action extends Event
+    {
+        @Label("State")
+        String state;
+
+        @Label("Kind")
+        String kind;
+    }
+
+    @Name("uk.co.tigranetworks.Transition")
+    @Label("Transition")
+    @Description("A transition was executed, from taking the transition lock (if any) to the end of the OnEnter action")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Transition extends Event
+    {
+        @Label("From State")
+        String fromState;
+
+        @Label("To State")
+        String toState;
+
+        @Label("Committed")
+        boolean committed;
+    }
+
+    @Name("uk.co.tigranetworks.LockWait")
+    @Label("Transition Lock Wait")
+    @Description("A thread waited to take a state machine's transition lock")
+    @Category(CATEGORY)
+    @Threshold("10 ms")
+    static final class LockWait extends Event
+    {
+        @Label("Concurrency Mode")
+        String concurrencyMode;
+    }
+}
@@ -0,0 +1,177 @@
+package uk.co.tigranetworks;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * A running instance of a {@link StateMachineDefinition}. An instance holds
+ * nothing but a reference to its shared definition, a context object and the
+ * id of its current state, so millions of them can be live at once.
+ * <p/>
+ * Firing events is thread-safe and follows the policy of
+ * {@link ConcurrencyMode#LOCK_FREE}: an armed event claims the instance
+ * with a compare-and-set, competing events fail fast with
+ * {@link TriggerOutcome#CONTENDED}, and the validation rules and then the
+ * OnExit and OnEnter actions run on the winning thread while every other
+ * event is disarmed. A rejected event puts the instance back in its state.
+ *
+ * @param <C> The type of the per-instance context object.
+ */
+public final class StateMachineInstance<C>
+{
+    private static final VarHandle CURRENT_STATE;
+
+    static
+    {
+        try
+        {
+            CURRENT_STATE = MethodHandles.lookup().findVarHandle(StateMachineInstance.class, "currentState", int.class);
+        }
+        catch (ReflectiveOperationException ex)
+        {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    // The private state an instance is parked in while a transition's actions run.
+    private static final int IN_TRANSITION = -1;
+
+    private final    StateMachineDefinition<C> definition;
+    private final    C                         context;
+    private volatile int                       currentState = IN_TRANSITION;
+
+    StateMachineInstance(StateMachineDefinition<C> definition, C context)
+    {
+        this.definition = definition;
+        this.context = context;
+    }
+
+    /**
+     * Runs the OnEnter actions of the initial state and then publishes it.
+     * Called once, by the definition, when the instance is created.
+     */
+    void enterInitialState()
+    {
+        final int initialState = definition.getInitialState();
+        try
+        {
+            definition.enterInitialState(context);
+        }
+        finally
+        {
+            currentState = initialState;
+        }
+    }
+
+    /**
+     * Publishes a restored state without running any actions. Called once, by the
+     * definition, when the instance is restored.
+     */
+    void restoreState(int stateId)
+    {
+        currentState = stateId;
+    }
+
+    public StateMachineDefinition<C> getDefinition()
+    {
+        return definition;
+    }
+
+    public C getContext()
+    {
+        return context;
+    }
+
+    /**
+     * Determines whether the instance is in the specified state or in any state
+     * nested within it. Always false while a transition is in progress.
+     */
+    public boolean isInState(int stateId)
+    {
+        final int current = currentState;
+        return current != IN_TRANSITION && definition.isWithin(current, stateId);
+    }
+
+    /**
+     * Gets the id of the current state, or -1 while a transition is in progress.
+     */
+    public int getCurrentState()
+    {
+        return currentState;
+    }
+
+    /**
+     * Gets the name of the current state, or null while a transition is in progress.
+     */
+    public String getCurrentStateName()
+    {
+        final int stateId = currentState;
+        return stateId == IN_TRANSITION ? null : definition.getStateName(stateId);
+    }
+
+    /**
+     * Fires an event at this instance. The transition that takes the event from
+     * the current state is found in the definition's dispatch table; if its
+     * validation rule succeeds against this instance's context, the transition
+     * is executed.
+     *
+     * @param eventId The event id.
+     * @return The outcome.
+     */
+    public TriggerOutcome fire(int eventId)
+    {
+        final TriggerOutcome outcome = attempt(eventId);
+        final TransitionMetrics metrics = definition.getMetrics();
+        if (metrics != null)
+            metrics.recordOutcome(outcome);
+        return outcome;
+    }
+
+    private TriggerOutcome attempt(int eventId)
+    {
+        final int fromState = currentState;
+        if (fromState == IN_TRANSITION || !definition.takesEvent(fromState, eventId))
+            return TriggerOutcome.DISARMED;
+
+        // Claim the instance before its rules read the context, so that they never
+        // see an action's writes half done. Another event got there first; fail fast
+        // rather than wait for it.
+        if (!CURRENT_STATE.compareAndSet(this, fromState, IN_TRANSITION))
+            return TriggerOutcome.CONTENDED;
+        int toState = fromState;
+        try
+        {
+            final int route = definition.resolve(fromState, eventId, context);
+            if (route == StateMachineDefinition.REJECTED)
+                return TriggerOutcome.REJECTED;
+            toState = definition.getRouteDestination(route);
+            final TransitionMetrics metrics = definition.getMetrics();
+            final long actionStart = metrics == null ? 0 : System.nanoTime();
+            definition.runActions(route, context);
+            if (metrics != null)
+                metrics.recordActions(definition.getRouteTransition(route), System.nanoTime() - actionStart);
+        }
+        finally
+        {
+            currentState = toState;
+        }
+        return TriggerOutcome.EXECUTED;
+    }
+
+    /**
+     * Fires a batch of events at this instance, in order, as if fire() had been
+     * called for each one, and writes the outcome of each into a caller-supplied
+     * array, which can be reused from batch to batch.
+     *
+     * @param eventIds The event ids, in the order in which they are to be fired.
+     * @param outcomes Receives the outcome of each event, indexed as eventIds;
+     *                 must be at least as long as eventIds.
+     */
+    public void fireAll(int[] eventIds, TriggerOutcome[] outcomes)
+    {
+        if (outcomes.length < eventIds.length)
+            throw new IllegalArgumentException("Outcome array is shorter than the batch");
+        for (int index = 0; index < eventIds.length; index++)
+            outcomes[index] = fire(eventIds[index]);
+    }
+}
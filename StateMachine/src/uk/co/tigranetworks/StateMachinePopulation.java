@@ -0,0 +1,345 @@
+package uk.co.tigranetworks;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed-capacity population of instances of one {@link StateMachineDefinition},
+ * for when there are so many instances that even a {@link StateMachineInstance}
+ * per instance is too much. Instances are identified by an int id, and the
+ * current state of each is no more than a slot in a primitive array (or an
+ * off-heap buffer; see {@link StateStorage}), so the population adds no objects
+ * for the garbage collector to trace however many instances it holds.
+ * <p/>
+ * The population does not hold on to context objects. Whoever fires an event
+ * passes in the context for that instance, if the definition's rules and
+ * actions need one, and is responsible for keeping it alongside the instance id.
+ * <p/>
+ * Firing events is thread-safe and follows the same lock-free policy as
+ * StateMachineInstance: an armed event claims its instance's slot with a
+ * compare-and-set before the rules are evaluated, and an event that loses
+ * the race fails fast with {@link TriggerOutcome#CONTENDED}.
+ *
+ * @param <C> The type of the context objects handed to rules and actions.
+ */
+public final class StateMachinePopulation<C>
+{
+    // The slot value of an instance that is mid-transition or has not been created yet.
+    private static final int IN_TRANSITION = -1;
+
+    private final    StateMachineDefinition<C> definition;
+    private final    StateStorage              storage;
+    private final    Slots                     slots;
+    private final    int                       capacity;
+    private final    AtomicInteger             instanceCount = new AtomicInteger();
+    private volatile TransitionJournal         transitionJournal;
+
+    /**
+     * Creates an empty population that keeps its states in an int array.
+     *
+     * @param definition The definition that every instance follows.
+     * @param capacity   The maximum number of instances.
+     */
+    public StateMachinePopulation(StateMachineDefinition<C> definition, int capacity)
+    {
+        this(definition, capacity, StateStorage.INT_ARRAY);
+    }
+
+    /**
+     * Creates an empty population.
+     *
+     * @param definition The definition that every instance follows.
+     * @param capacity   The maximum number of instances.
+     * @param storage    Where the current states are kept (required; not null).
+     */
+    public StateMachinePopulation(StateMachineDefinition<C> definition, int capacity, StateStorage storage)
+    {
+        if (definition == null)
+            throw new IllegalArgumentException("Definition is required");
+        if (capacity < 0)
+            throw new IllegalArgumentException("Capacity must not be negative");
+        if (storage == null)
+            throw new IllegalArgumentException("Storage is required");
+        this.definition = definition;
+        this.storage = storage;
+        this.capacity = capacity;
+        switch (storage)
+        {
+            case SHORT_ARRAY:
+                if (definition.getStateCount() > Short.MAX_VALUE)
+                    throw new IllegalArgumentException("Too many states for short storage");
+                slots = new ShortArraySlots(capacity);
+                break;
+            case OFF_HEAP:
+                // The buffer's size in bytes must fit in an int.
+                if (capacity > Integer.MAX_VALUE / Integer.BYTES)
+                    throw new IllegalArgumentException("Off-heap storage is limited to 2^29 - 1 instances");
+                slots = new OffHeapSlots(capacity);
+                break;
+            default:
+                slots = new IntArraySlots(capacity);
+                break;
+        }
+    }
+
+    public StateMachineDefinition<C> getDefinition()
+    {
+        return definition;
+    }
+
+    public StateStorage getStorage()
+    {
+        return storage;
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Attaches a journal, to which every transition committed from now on is
+     * appended with the instance id as its machine id. Creating or restoring an
+     * instance is not journalled.
+     *
+     * @param journal The journal, or null to detach the current one.
+     */
+    public void setTransitionJournal(TransitionJournal journal)
+    {
+        transitionJournal = journal;
+    }
+
+    /**
+     * Gets the number of instances created so far. Ids run from zero to one less than this.
+     */
+    public int getInstanceCount()
+    {
+        return instanceCount.get();
+    }
+
+    /**
+     * Creates a new instance. The OnEnter action of the initial state is run,
+     * with the supplied context, before this method returns.
+     *
+     * @param context The context for the instance's initial OnEnter action (may be null).
+     * @return The id of the new instance.
+     * @throws IllegalStateException if the population is full.
+     */
+    public int newInstance(C context)
+    {
+        final int instanceId = claimInstanceId();
+        final int initialState = definition.getInitialState();
+        try
+        {
+            definition.enterInitialState(context);
+        }
+        finally
+        {
+            slots.set(instanceId, initialState);
+        }
+        return instanceId;
+    }
+
+    /**
+     * Recreates the next instance directly in the specified state, e.g. from a
+     * snapshot. Unlike {@link #newInstance(Object)}, no OnEnter action is run.
+     *
+     * @param stateId The id of the state that the instance is to be in.
+     * @return The id of the restored instance.
+     * @throws IllegalStateException if the population is full.
+     */
+    public int restoreInstance(int stateId)
+    {
+        definition.checkLeafState(stateId);
+        final int instanceId = claimInstanceId();
+        slots.set(instanceId, stateId);
+        return instanceId;
+    }
+
+    /**
+     * Gets the id of an instance's current state, or -1 while a transition is in progress.
+     */
+    public int getCurrentState(int instanceId)
+    {
+        checkInstance(instanceId);
+        return slots.get(instanceId);
+    }
+
+    /**
+     * Fires an event at one instance. Exactly as StateMachineInstance.fire(), but
+     * with the instance's context passed in.
+     *
+     * @param instanceId The instance id.
+     * @param eventId    The event id.
+     * @param context    The instance's context, handed to rules and actions (may be null).
+     * @return The outcome.
+     */
+    public TriggerOutcome fire(int instanceId, int eventId, C context)
+    {
+        checkInstance(instanceId);
+        final TriggerOutcome outcome = attempt(instanceId, eventId, context);
+        final TransitionMetrics metrics = definition.getMetrics();
+        if (metrics != null)
+            metrics.recordOutcome(outcome);
+        return outcome;
+    }
+
+    private TriggerOutcome attempt(int instanceId, int eventId, C context)
+    {
+        final int fromState = slots.get(instanceId);
+        if (fromState == IN_TRANSITION || !definition.takesEvent(fromState, eventId))
+            return TriggerOutcome.DISARMED;
+
+        // Claim the instance before its rules read the context, as StateMachineInstance does.
+        if (!slots.compareAndSet(instanceId, fromState, IN_TRANSITION))
+            return TriggerOutcome.CONTENDED;
+        int toState = fromState;
+        try
+        {
+            final int route = definition.resolve(fromState, eventId, context);
+            if (route == StateMachineDefinition.REJECTED)
+                return TriggerOutcome.REJECTED;
+            toState = definition.getRouteDestination(route);
+            final TransitionJournal journal = transitionJournal;
+            if (journal != null)
+                journal.append(instanceId, fromState, toState, eventId);
+            final TransitionMetrics metrics = definition.getMetrics();
+            final long actionStart = metrics == null ? 0 : System.nanoTime();
+            definition.runActions(route, context);
+            if (metrics != null)
+                metrics.recordActions(definition.getRouteTransition(route), System.nanoTime() - actionStart);
+        }
+        finally
+        {
+            slots.set(instanceId, toState);
+        }
+        return TriggerOutcome.EXECUTED;
+    }
+
+    private int claimInstanceId()
+    {
+        final int instanceId = instanceCount.getAndIncrement();
+        if (instanceId >= capacity)
+        {
+            instanceCount.decrementAndGet();
+            throw new IllegalStateException("Population is full");
+        }
+        return instanceId;
+    }
+
+    private void checkInstance(int instanceId)
+    {
+        if (instanceId < 0 || instanceId >= capacity)
+            throw new IndexOutOfBoundsException("Instance id " + instanceId + " is out of range");
+    }
+
+    /**
+     * A block of state slots with volatile reads and writes and compare-and-set.
+     */
+    private abstract static class Slots
+    {
+        abstract int get(int index);
+
+        abstract void set(int index, int stateId);
+
+        abstract boolean compareAndSet(int index, int expected, int stateId);
+    }
+
+    private static final class IntArraySlots extends Slots
+    {
+        private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(int[].class);
+
+        private final int[] states;
+
+        IntArraySlots(int capacity)
+        {
+            states = new int[capacity];
+            Arrays.fill(states, IN_TRANSITION);
+        }
+
+        @Override
+        int get(int index)
+        {
+            return (int) SLOT.getVolatile(states, index);
+        }
+
+        @Override
+        void set(int index, int stateId)
+        {
+            SLOT.setVolatile(states, index, stateId);
+        }
+
+        @Override
+        boolean compareAndSet(int index, int expected, int stateId)
+        {
+            return SLOT.compareAndSet(states, index, expected, stateId);
+        }
+    }
+
+    private static final class ShortArraySlots extends Slots
+    {
+        private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(short[].class);
+
+        private final short[] states;
+
+        ShortArraySlots(int capacity)
+        {
+            states = new short[capacity];
+            Arrays.fill(states, (short) IN_TRANSITION);
+        }
+
+        @Override
+        int get(int index)
+        {
+            return (short) SLOT.getVolatile(states, index);
+        }
+
+        @Override
+        void set(int index, int stateId)
+        {
+            SLOT.setVolatile(states, index, (short) stateId);
+        }
+
+        @Override
+        boolean compareAndSet(int index, int expected, int stateId)
+        {
+            return SLOT.compareAndSet(states, index, (short) expected, (short) stateId);
+        }
+    }
+
+    private static final class OffHeapSlots extends Slots
+    {
+        private static final VarHandle SLOT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+        private final ByteBuffer states;
+
+        OffHeapSlots(int capacity)
+        {
+            states = ByteBuffer.allocateDirect(capacity * Integer.BYTES).order(ByteOrder.nativeOrder());
+            for (int index = 0; index < capacity; index++)
+                states.putInt(index * Integer.BYTES, IN_TRANSITION);
+        }
+
+        @Override
+        int get(int index)
+        {
+            return (int) SLOT.getVolatile(states, index * Integer.BYTES);
+        }
+
+        @Override
+        void set(int index, int stateId)
+        {
+            SLOT.setVolatile(states, index * Integer.BYTES, stateId);
+        }
+
+        @Override
+        boolean compareAndSet(int index, int expected, int stateId)
+        {
+            return SLOT.compareAndSet(states, index * Integer.BYTES, expected, stateId);
+        }
+    }
+}
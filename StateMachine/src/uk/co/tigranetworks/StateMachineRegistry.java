@@ -0,0 +1,424 @@
+package uk.co.tigranetworks;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Manages a large population of keyed {@link StateMachineInstance}s - one
+ * per device, session or the like - that all share one
+ * {@link StateMachineDefinition}. Instances are created on demand when the
+ * first event for their key arrives, and removed again according to an
+ * {@link EvictionPolicy}.
+ * <p/>
+ * Keys are partitioned across a fixed number of shards. Each shard owns its
+ * instances outright and has a lock-free mailbox; {@link #dispatch} just
+ * queues the event in the mailbox of the key's shard and returns, and the
+ * shard's worker applies the events one at a time, in order. No lock is ever
+ * taken, either globally or per shard, and events for the same key are
+ * always applied in the order in which they were dispatched.
+ * <p/>
+ * Rules and actions run on the shard workers. An exception thrown by an
+ * action propagates to the worker's executor, and the shard carries on with
+ * its next event.
+ *
+ * @param <K> The key type. Keys must have consistent hashCode() and equals() methods.
+ * @param <C> The type of the per-instance context object.
+ */
+public final class StateMachineRegistry<K, C> implements AutoCloseable
+{
+    /**
+     * Creates the context object for a newly created instance.
+     *
+     * @param <K> The key type.
+     * @param <C> The type of the per-instance context object.
+     */
+    public interface ContextFactory<K, C>
+    {
+        public C create(K key);
+    }
+
+    /**
+     * Decides when instances are removed from the registry. An instance is evicted
+     * when it has gone longer than the idle timeout without an event, or straight
+     * after an event leaves it in one of the final states. A key whose instance has
+     * been evicted gets a fresh instance, in the initial state, on its next event.
+     */
+    public static final class EvictionPolicy
+    {
+        private static final EvictionPolicy NEVER = new EvictionPolicy(Long.MAX_VALUE, new int[0]);
+
+        private final long  idleTimeoutNanos;
+        private final int[] finalStates;
+
+        private EvictionPolicy(long idleTimeoutNanos, int[] finalStates)
+        {
+            this.idleTimeoutNanos = idleTimeoutNanos;
+            this.finalStates = finalStates;
+        }
+
+        /**
+         * Instances are never evicted, although they can still be removed explicitly.
+         */
+        public static EvictionPolicy never()
+        {
+            return NEVER;
+        }
+
+        /**
+         * Instances are evicted once they have gone the specified time without an event.
+         */
+        public static EvictionPolicy idleFor(long duration, TimeUnit unit)
+        {
+            if (duration <= 0)
+                throw new IllegalArgumentException("Idle timeout must be positive");
+            return new EvictionPolicy(unit.toNanos(duration), new int[0]);
+        }
+
+        /**
+         * Returns a policy that, in addition, evicts an instance as soon as an event
+         * leaves it in any of the specified states.
+         *
+         * @param stateIds The final states.
+         */
+        public EvictionPolicy orOnReaching(int... stateIds)
+        {
+            return new EvictionPolicy(idleTimeoutNanos, stateIds.clone());
+        }
+
+        public long getIdleTimeoutNanos()
+        {
+            return idleTimeoutNanos;
+        }
+
+        private boolean isFinal(int stateId)
+        {
+            for (int finalState : finalStates)
+                if (finalState == stateId)
+                    return true;
+            return false;
+        }
+    }
+
+    // Mailbox messages other than keys.
+    private static final Object SWEEP = new Object();
+    private static final Object CLEAR = new Object();
+    private static final Object DRAIN = new Object();
+
+    // Mailbox values other than event ids.
+    private static final int REMOVE = -1;
+
+    private final StateMachineDefinition<C> definition;
+    private final ContextFactory<K, C>      contextFactory;
+    private final EvictionPolicy            evictionPolicy;
+    private final Shard[]                   shards;
+    private final int                       mask;
+    private final List<ExecutorService>     ownedExecutors = new ArrayList<>();
+
+    /**
+     * Creates a registry with one dedicated daemon worker thread per shard.
+     *
+     * @param definition     The definition that every instance is created from.
+     * @param shardCount     The number of shards and worker threads; rounded up to a power of two.
+     * @param contextFactory Creates the context of each new instance (required; not null).
+     * @param evictionPolicy When to remove instances (required; not null).
+     */
+    public StateMachineRegistry(StateMachineDefinition<C> definition, int shardCount, ContextFactory<K, C> contextFactory, EvictionPolicy evictionPolicy)
+    {
+        this(definition, shardCount, contextFactory, evictionPolicy, null);
+    }
+
+    /**
+     * Creates a registry whose shards are drained by tasks submitted to an executor.
+     * Each shard still runs at most one task at a time, so a shared pool of any
+     * size can be used; with a pool of shardCount threads every shard effectively
+     * has a worker of its own.
+     *
+     * @param definition     The definition that every instance is created from.
+     * @param shardCount     The number of shards; rounded up to a power of two.
+     * @param contextFactory Creates the context of each new instance (required; not null).
+     * @param evictionPolicy When to remove instances (required; not null).
+     * @param executor       Runs the shard workers, or null for a dedicated thread per shard.
+     */
+    public StateMachineRegistry(StateMachineDefinition<C> definition, int shardCount, ContextFactory<K, C> contextFactory, EvictionPolicy evictionPolicy, Executor executor)
+    {
+        if (definition == null)
+            throw new IllegalArgumentException("Definition is required");
+        if (shardCount < 1 || shardCount > (1 << 16))
+            throw new IllegalArgumentException("Shard count must be between 1 and 65536");
+        if (contextFactory == null)
+            throw new IllegalArgumentException("Context factory is required");
+        if (evictionPolicy == null)
+            throw new IllegalArgumentException("Eviction policy is required");
+        this.definition = definition;
+        this.contextFactory = contextFactory;
+        this.evictionPolicy = evictionPolicy;
+
+        int size = 1;
+        while (size < shardCount)
+            size <<= 1;
+        shards = newShardArray(size);
+        mask = size - 1;
+        for (int index = 0; index < size; index++)
+        {
+            Executor shardExecutor = executor;
+            if (shardExecutor == null)
+            {
+                final ExecutorService worker = Executors.newSingleThreadExecutor(newWorkerThreadFactory(index));
+                ownedExecutors.add(worker);
+                shardExecutor = worker;
+            }
+            shards[index] = new Shard(shardExecutor);
+        }
+    }
+
+    // Shard is an inner class of a generic class, so Java only allows an array of its raw type.
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Shard[] newShardArray(int size)
+    {
+        return (Shard[]) new StateMachineRegistry.Shard[size];
+    }
+
+    private static ThreadFactory newWorkerThreadFactory(final int shardIndex)
+    {
+        return new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                final Thread thread = new Thread(runnable, "State Machine Registry Shard " + shardIndex);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    public StateMachineDefinition<C> getDefinition()
+    {
+        return definition;
+    }
+
+    public int getShardCount()
+    {
+        return shards.length;
+    }
+
+    /**
+     * Gets the number of live instances. The count is maintained by the shard
+     * workers, so it may lag slightly behind events that are still queued.
+     */
+    public int size()
+    {
+        int size = 0;
+        for (Shard shard : shards)
+            size += shard.size.get();
+        return size;
+    }
+
+    /**
+     * Queues an event for the instance with the specified key, creating the instance
+     * first if there is none. Never blocks and never takes a lock.
+     *
+     * @param key     The key (required; not null).
+     * @param eventId The event id.
+     */
+    public void dispatch(K key, int eventId)
+    {
+        if (eventId < 0)
+            throw new IllegalArgumentException("Event id must not be negative");
+        shardFor(key).mailbox.post(key, eventId);
+    }
+
+    /**
+     * Queues the removal of the instance with the specified key, if there is one.
+     * Events dispatched for the key afterwards create a fresh instance.
+     */
+    public void remove(K key)
+    {
+        shardFor(key).mailbox.post(key, REMOVE);
+    }
+
+    /**
+     * Queues the removal of every instance.
+     */
+    public void clear()
+    {
+        for (Shard shard : shards)
+            shard.mailbox.post(CLEAR, 0);
+    }
+
+    /**
+     * Asks every shard to evict its idle instances now. Shards also do this for
+     * themselves as events arrive, so this is only needed to reclaim instances
+     * from shards that have stopped receiving events altogether.
+     */
+    public void evictIdle()
+    {
+        for (Shard shard : shards)
+            shard.mailbox.post(SWEEP, 0);
+    }
+
+    /**
+     * Stops the worker threads that the registry created for itself, once they
+     * have applied every event already dispatched. Has no effect on a
+     * caller-supplied executor. Events dispatched afterwards are rejected.
+     * <p/>
+     * Closing always waits for the workers to finish. If the calling thread is
+     * interrupted while it waits, its interrupt status is set again on return.
+     */
+    @Override
+    public void close()
+    {
+        boolean interrupted = false;
+        // A worker that stops mid-batch would lose the rest of its mailbox, so drain them all first.
+        if (!ownedExecutors.isEmpty())
+        {
+            final CountDownLatch drained = new CountDownLatch(shards.length);
+            for (Shard shard : shards)
+            {
+                shard.mailbox.enqueue(DRAIN, drained, 0);
+                shard.mailbox.flush();
+            }
+            while (drained.getCount() > 0)
+            {
+                try
+                {
+                    drained.await();
+                }
+                catch (InterruptedException ex)
+                {
+                    interrupted = true;
+                }
+            }
+        }
+        for (ExecutorService worker : ownedExecutors)
+            worker.shutdown();
+        for (ExecutorService worker : ownedExecutors)
+        {
+            while (!worker.isTerminated())
+            {
+                try
+                {
+                    worker.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                }
+                catch (InterruptedException ex)
+                {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private Shard shardFor(K key)
+    {
+        final int hash = key.hashCode();
+        return shards[(hash ^ (hash >>> 16)) & mask];
+    }
+
+    private static final class Entry<C>
+    {
+        final StateMachineInstance<C> instance;
+        long                          lastEventNanos;
+
+        Entry(StateMachineInstance<C> instance)
+        {
+            this.instance = instance;
+        }
+    }
+
+    /**
+     * One partition of the registry. Its map is only ever touched by the task
+     * draining its mailbox, so it needs no synchronisation.
+     */
+    private final class Shard implements Mailbox.Consumer
+    {
+        // Least recently used first, so that idle instances can be swept from the front.
+        private final LinkedHashMap<K, Entry<C>> instances = new LinkedHashMap<>(16, 0.75f, true);
+        private final AtomicInteger              size      = new AtomicInteger();
+        private final Mailbox                    mailbox;
+        private       long                       lastSweepNanos = System.nanoTime();
+
+        Shard(Executor executor)
+        {
+            mailbox = new Mailbox(executor, this);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void accept(Object message, Object argument, int value)
+        {
+            if (message == SWEEP)
+                sweep(System.nanoTime());
+            else if (message == CLEAR)
+                removeAll();
+            else if (message == DRAIN)
+                ((CountDownLatch) argument).countDown();
+            else if (value == REMOVE)
+                remove((K) message);
+            else
+                apply((K) message, value);
+        }
+
+        private void apply(K key, int eventId)
+        {
+            final long now = System.nanoTime();
+            Entry<C> entry = instances.get(key);
+            if (entry == null)
+            {
+                entry = new Entry<>(definition.newInstance(contextFactory.create(key)));
+                instances.put(key, entry);
+                size.lazySet(instances.size());
+            }
+            entry.lastEventNanos = now;
+            try
+            {
+                entry.instance.fire(eventId);
+            }
+            finally
+            {
+                if (evictionPolicy.isFinal(entry.instance.getCurrentState()))
+                    remove(key);
+                // Sweep a few times per idle timeout, at most.
+                if (now - lastSweepNanos > (evictionPolicy.getIdleTimeoutNanos() >> 2))
+                    sweep(now);
+            }
+        }
+
+        private void remove(K key)
+        {
+            if (instances.remove(key) != null)
+                size.lazySet(instances.size());
+        }
+
+        private void removeAll()
+        {
+            instances.clear();
+            size.lazySet(0);
+        }
+
+        private void sweep(long now)
+        {
+            lastSweepNanos = now;
+            final long timeout = evictionPolicy.getIdleTimeoutNanos();
+            final Iterator<Map.Entry<K, Entry<C>>> iterator = instances.entrySet().iterator();
+            while (iterator.hasNext())
+            {
+                if (now - iterator.next().getValue().lastEventNanos <= timeout)
+                    break;      // everything after this was used more recently
+                iterator.remove();
+            }
+            size.lazySet(instances.size());
+        }
+    }
+}
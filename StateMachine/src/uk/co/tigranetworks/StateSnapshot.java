@@ -0,0 +1,306 @@
+package uk.co.tigranetworks;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Saves and restores where state machines are, in a compact binary format,
+ * so that they can be resumed after a restart instead of being rebuilt by
+ * replaying their history. Snapshots are written to, and read from, any NIO
+ * channel, such as a FileChannel. Each is written sequentially from start to
+ * end, in chunks of up to 64 KB, so a snapshot that is interrupted part way
+ * through is left truncated.
+ * <p/>
+ * A snapshot records current state ids and, optionally, instance contexts
+ * encoded by a {@link ContextCodec}. Restoring puts each state machine
+ * straight into its recorded state without running any OnEnter action.
+ * State ids are only meaningful to the same set of states, so a snapshot
+ * must be restored into a state machine or definition built the same way as
+ * the one it was taken from.
+ * <p/>
+ * Snapshots should be taken while the state machines are quiescent. A
+ * machine or instance that is mid-transition cannot be recorded, and causes
+ * an IllegalStateException.
+ */
+public final class StateSnapshot
+{
+    // Header: magic, version, kind, flags, record count.
+    private static final int   MAGIC         = 0x46534D53;     // "FSMS"
+    private static final short VERSION       = 1;
+    private static final int   HEADER_SIZE   = 12;
+    private static final int   BUFFER_SIZE   = 64 * 1024;
+    private static final int   MAX_PRESIZE   = BUFFER_SIZE / Integer.BYTES;   // records presized for before any are read
+    private static final byte  MACHINE       = 0;
+    private static final byte  INSTANCES     = 1;
+    private static final byte  POPULATION    = 2;
+    private static final byte  WITH_CONTEXTS = 1;
+
+    private StateSnapshot()
+    {
+    }
+
+    /**
+     * Writes the current state of a state machine.
+     */
+    public static void write(StateMachine machine, WritableByteChannel channel) throws IOException
+    {
+        final int stateId = machine.getCurrentState().getId();
+        if (stateId < 0)
+            throw new IllegalStateException("The state machine is not started, or is mid-transition");
+        final Output output = new Output(channel);
+        writeHeader(output, MACHINE, false, 1);
+        output.reserve(Integer.BYTES).putInt(stateId);
+        output.flush();
+    }
+
+    /**
+     * Starts a state machine in the state recorded by {@link #write(StateMachine, WritableByteChannel)}.
+     *
+     * @throws FalseStartException Thrown if the state machine has already been started or restored.
+     */
+    public static void restore(StateMachine machine, ReadableByteChannel channel) throws IOException, FalseStartException
+    {
+        final Input input = new Input(channel);
+        readHeader(input, MACHINE);
+        final StateMachine.State state = machine.getState(input.require(Integer.BYTES).getInt());
+        if (state == null)
+            throw new StreamCorruptedException("Snapshot refers to a state that the state machine does not have");
+        machine.restore(state);
+    }
+
+    /**
+     * Writes the current states, and optionally the contexts, of a collection of instances.
+     *
+     * @param instances The instances, which are restored in iteration order.
+     * @param codec     Encodes the instances' contexts, or null to leave them out.
+     */
+    public static <C> void writeInstances(Collection<StateMachineInstance<C>> instances, ContextCodec<C> codec, WritableByteChannel channel) throws IOException
+    {
+        final Output output = new Output(channel);
+        writeHeader(output, INSTANCES, codec != null, instances.size());
+        for (StateMachineInstance<C> instance : instances)
+        {
+            final int stateId = instance.getCurrentState();
+            if (stateId < 0)
+                throw new IllegalStateException("An instance is mid-transition");
+            if (codec == null)
+            {
+                output.reserve(Integer.BYTES).putInt(stateId);
+                continue;
+            }
+            final C context = instance.getContext();
+            final int length = codec.encodedSize(context);
+            final ByteBuffer buffer = output.reserve(2 * Integer.BYTES + length);
+            buffer.putInt(stateId).putInt(length);
+            final int start = buffer.position();
+            codec.encode(context, buffer);
+            if (buffer.position() - start != length)
+                throw new IllegalStateException("Context codec wrote a different number of bytes to its encoded size");
+        }
+        output.flush();
+    }
+
+    /**
+     * Recreates the instances recorded by {@link #writeInstances}, in their recorded states.
+     *
+     * @param definition The definition that the instances were created from.
+     * @param codec      Decodes the instances' contexts; required if the snapshot
+     *                   includes contexts, and otherwise ignored. Without contexts,
+     *                   every instance is restored with a null context. The buffer
+     *                   handed to its decode() method is a view of a read buffer
+     *                   that is reused for the following records, so the codec must
+     *                   copy out anything that it keeps.
+     * @return The restored instances, in the order in which they were written.
+     */
+    public static <C> List<StateMachineInstance<C>> readInstances(StateMachineDefinition<C> definition, ContextCodec<C> codec, ReadableByteChannel channel) throws IOException
+    {
+        final Input input = new Input(channel);
+        final int count = readHeader(input, INSTANCES);
+        final boolean withContexts = (input.flags & WITH_CONTEXTS) != 0;
+        if (withContexts && codec == null)
+            throw new IllegalArgumentException("Snapshot includes contexts, so a context codec is required");
+        // The count is only as trustworthy as the input, so the list grows as records are actually read.
+        final List<StateMachineInstance<C>> instances = new ArrayList<>(Math.min(count, MAX_PRESIZE));
+        for (int index = 0; index < count; index++)
+        {
+            if (!withContexts)
+            {
+                instances.add(definition.restoreInstance(null, input.require(Integer.BYTES).getInt()));
+                continue;
+            }
+            ByteBuffer buffer = input.require(2 * Integer.BYTES);
+            final int stateId = buffer.getInt();
+            final int length = buffer.getInt();
+            if (length < 0 || length > input.available())
+                throw new StreamCorruptedException("Context length is negative or larger than the snapshot");
+            buffer = input.require(length);
+            final ByteBuffer encoded = buffer.slice();
+            encoded.limit(length);
+            buffer.position(buffer.position() + length);
+            instances.add(definition.restoreInstance(codec.decode(encoded), stateId));
+        }
+        return instances;
+    }
+
+    /**
+     * Writes the current state of every instance in a population.
+     */
+    public static void writePopulation(StateMachinePopulation<?> population, WritableByteChannel channel) throws IOException
+    {
+        final int count = population.getInstanceCount();
+        final Output output = new Output(channel);
+        writeHeader(output, POPULATION, false, count);
+        for (int instanceId = 0; instanceId < count; instanceId++)
+        {
+            final int stateId = population.getCurrentState(instanceId);
+            if (stateId < 0)
+                throw new IllegalStateException("Instance " + instanceId + " is mid-transition");
+            output.reserve(Integer.BYTES).putInt(stateId);
+        }
+        output.flush();
+    }
+
+    /**
+     * Recreates the instances recorded by {@link #writePopulation} in an empty
+     * population, with the same ids and in their recorded states.
+     */
+    public static void readPopulation(StateMachinePopulation<?> population, ReadableByteChannel channel) throws IOException
+    {
+        if (population.getInstanceCount() != 0)
+            throw new IllegalStateException("Population must be empty");
+        final Input input = new Input(channel);
+        final int count = readHeader(input, POPULATION);
+        if (count > population.getCapacity())
+            throw new IllegalArgumentException("Snapshot has more instances than the population can hold");
+        for (int index = 0; index < count; index++)
+            population.restoreInstance(input.require(Integer.BYTES).getInt());
+    }
+
+    private static void writeHeader(Output output, byte kind, boolean withContexts, int count) throws IOException
+    {
+        output.reserve(HEADER_SIZE)
+              .putInt(MAGIC)
+              .putShort(VERSION)
+              .put(kind)
+              .put(withContexts ? WITH_CONTEXTS : 0)
+              .putInt(count);
+    }
+
+    /**
+     * Reads and checks the header.
+     *
+     * @return The number of records that follow.
+     */
+    private static int readHeader(Input input, byte expectedKind) throws IOException
+    {
+        final ByteBuffer buffer = input.require(HEADER_SIZE);
+        if (buffer.getInt() != MAGIC)
+            throw new StreamCorruptedException("Not a state machine snapshot");
+        if (buffer.getShort() != VERSION)
+            throw new StreamCorruptedException("Unsupported snapshot version");
+        if (buffer.get() != expectedKind)
+            throw new StreamCorruptedException("Snapshot is of a different kind");
+        input.flags = buffer.get();
+        final int count = buffer.getInt();
+        if (count < 0)
+            throw new StreamCorruptedException("Negative record count");
+        final int recordSize = (input.flags & WITH_CONTEXTS) != 0 ? 2 * Integer.BYTES : Integer.BYTES;
+        if ((long) count * recordSize > input.available())
+            throw new StreamCorruptedException("Record count is larger than the snapshot");
+        return count;
+    }
+
+    /**
+     * Batches small writes into one large buffer.
+     */
+    private static final class Output
+    {
+        private final WritableByteChannel channel;
+        private       ByteBuffer          buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        Output(WritableByteChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        /**
+         * Gets the buffer, with room for at least the specified number of bytes.
+         */
+        ByteBuffer reserve(int bytes) throws IOException
+        {
+            if (buffer.remaining() < bytes)
+            {
+                flush();
+                if (buffer.capacity() < bytes)
+                    buffer = ByteBuffer.allocate(bytes);
+            }
+            return buffer;
+        }
+
+        void flush() throws IOException
+        {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Reads ahead from the channel in large chunks.
+     */
+    private static final class Input
+    {
+        private final ReadableByteChannel channel;
+        private       ByteBuffer          buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private       byte                flags;
+
+        Input(ReadableByteChannel channel)
+        {
+            this.channel = channel;
+            buffer.flip();
+        }
+
+        /**
+         * Gets an upper bound on the number of bytes left to read: exact for a
+         * channel with a known size, such as a FileChannel, and unbounded otherwise.
+         */
+        long available() throws IOException
+        {
+            if (!(channel instanceof SeekableByteChannel))
+                return Long.MAX_VALUE;
+            final SeekableByteChannel seekable = (SeekableByteChannel) channel;
+            return buffer.remaining() + Math.max(0, seekable.size() - seekable.position());
+        }
+
+        /**
+         * Gets the buffer, with at least the specified number of bytes remaining.
+         */
+        ByteBuffer require(int bytes) throws IOException
+        {
+            if (buffer.remaining() >= bytes)
+                return buffer;
+            if (buffer.capacity() < bytes)
+            {
+                final ByteBuffer larger = ByteBuffer.allocate(bytes);
+                larger.put(buffer);
+                buffer = larger;
+            }
+            else
+                buffer.compact();
+            while (buffer.position() < bytes)
+                if (channel.read(buffer) < 0)
+                    throw new EOFException("Snapshot is truncated");
+            buffer.flip();
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package uk.co.tigranetworks;
+
+/**
+ * Selects where a {@link StateMachinePopulation} keeps the current state ids of
+ * its instances. Every option is a single flat block of primitive slots indexed
+ * by instance id, so the garbage collector sees one object however many
+ * instances there are.
+ */
+public enum StateStorage
+{
+    /**
+     * One int per instance, in a heap array. The default.
+     */
+    INT_ARRAY,
+
+    /**
+     * One short per instance, in a heap array; half the memory of
+     * {@link #INT_ARRAY}, for definitions with no more than 32767 states.
+     */
+    SHORT_ARRAY,
+
+    /**
+     * One int per instance, in a direct (off-heap) buffer, which the garbage
+     * collector neither copies nor scans. Limited to 2^29 - 1 instances,
+     * so that the buffer's size in bytes fits in an int.
+     */
+    OFF_HEAP
+}
@@ -0,0 +1,299 @@
+package uk.co.tigranetworks;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An asynchronous fan-out for trace events. The bus is installed on a state
+ * machine as its {@link TransitionTraceListener}; it copies each event into a
+ * slot of a pre-allocated ring buffer and returns straight away, and a
+ * dedicated consumer thread drains the ring in batches and hands each event
+ * to every subscriber. A slow subscriber, such as one that writes to the
+ * console, therefore no longer adds to transition latency.
+ * <p/>
+ * Publishing allocates nothing. When the ring is full the bus applies its
+ * {@link OverflowPolicy}. One bus may be shared by any number of state
+ * machines and publishing threads.
+ */
+public final class TraceBus implements TransitionTraceListener, AutoCloseable
+{
+    /**
+     * What a publishing thread does when the ring buffer is full.
+     */
+    public enum OverflowPolicy
+    {
+        /**
+         * The event is discarded and counted; the publisher never waits.
+         */
+        DROP,
+
+        /**
+         * The publisher waits until the consumer has freed a slot. No events are
+         * lost, but a slow subscriber can then hold up transitions. Until the bus
+         * is started there is no consumer to free a slot, so events that overflow
+         * the ring before then are dropped instead.
+         */
+        BLOCK,
+
+        /**
+         * One in every sampleRate overflowing events waits for a slot as with
+         * BLOCK, and the rest are discarded and counted as with DROP, so that
+         * subscribers still see a representative sample during an overload.
+         */
+        SAMPLE
+    }
+
+    private static final int  TRIGGER            = 0;
+    private static final int  STATE_CHANGED      = 1;
+    private static final long IDLE_PARK_NANOS    = 100000L;
+    private static final long BACKOFF_PARK_NANOS = 10000L;
+
+    private final Slot[]                                         ring;
+    private final int                                            mask;
+    private final OverflowPolicy                                 overflowPolicy;
+    private final int                                            sampleRate;
+    private final CopyOnWriteArrayList<TransitionTraceListener> subscribers      = new CopyOnWriteArrayList<>();
+    private final AtomicLong                                     claimSequence    = new AtomicLong();
+    private final AtomicLong                                     overflowCount    = new AtomicLong();
+    private final LongAdder                                      droppedCount     = new LongAdder();
+    private final Thread                                         consumer;
+    private volatile long                                        consumedSequence;
+    private volatile boolean                                     running          = true;
+    private volatile boolean                                     started;
+
+    /**
+     * Creates a trace bus that drops events when its ring buffer is full.
+     *
+     * @param capacity The number of slots in the ring buffer; rounded up to a power of two.
+     */
+    public TraceBus(int capacity)
+    {
+        this(capacity, OverflowPolicy.DROP, 1);
+    }
+
+    /**
+     * Creates a trace bus. The consumer thread is not started until {@link #start()} is called.
+     *
+     * @param capacity       The number of slots in the ring buffer; rounded up to a power of two.
+     * @param overflowPolicy What to do when the ring buffer is full (required; not null).
+     * @param sampleRate     For {@link OverflowPolicy#SAMPLE}, keep one in this many overflowing
+     *                       events (1 or more); ignored by the other policies.
+     */
+    public TraceBus(int capacity, OverflowPolicy overflowPolicy, int sampleRate)
+    {
+        if (capacity < 1 || capacity > (1 << 30))
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+        if (overflowPolicy == null)
+            throw new IllegalArgumentException("Overflow policy is required");
+        if (sampleRate < 1)
+            throw new IllegalArgumentException("Sample rate must be at least 1");
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+        ring = new Slot[size];
+        for (int index = 0; index < size; index++)
+            ring[index] = new Slot();
+        mask = size - 1;
+        this.overflowPolicy = overflowPolicy;
+        this.sampleRate = sampleRate;
+        consumer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                drain();
+            }
+        }, "State Machine Trace Bus");
+        consumer.setDaemon(true);
+    }
+
+    /**
+     * Starts the consumer thread.
+     */
+    public void start()
+    {
+        consumer.start();
+        started = true;
+    }
+
+    /**
+     * Stops accepting events, delivers everything already published and then
+     * stops the consumer thread. An interrupt does not cut this short; the
+     * thread's interrupt status is restored once the consumer has stopped.
+     */
+    @Override
+    public void close()
+    {
+        running = false;
+        boolean interrupted = false;
+        while (consumer.isAlive())
+        {
+            try
+            {
+                consumer.join();
+            }
+            catch (InterruptedException ex)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Adds a subscriber. Subscribers are called on the consumer thread, in the
+     * order in which they were added; any exception they throw is ignored.
+     */
+    public void addSubscriber(TransitionTraceListener subscriber)
+    {
+        if (subscriber == null)
+            throw new IllegalArgumentException("Subscriber is required");
+        subscribers.add(subscriber);
+    }
+
+    public void removeSubscriber(TransitionTraceListener subscriber)
+    {
+        subscribers.remove(subscriber);
+    }
+
+    /**
+     * Gets the number of slots in the ring buffer.
+     */
+    public int getCapacity()
+    {
+        return ring.length;
+    }
+
+    /**
+     * Gets the number of events that have been discarded because the ring
+     * buffer was full or the bus had been closed.
+     */
+    public long getDroppedCount()
+    {
+        return droppedCount.sum();
+    }
+
+    @Override
+    public void triggered(StateMachine.State fromState, StateMachine.State toState, TriggerOutcome outcome)
+    {
+        publish(TRIGGER, fromState, toState, outcome);
+    }
+
+    @Override
+    public void stateChanged(StateMachine.State fromState, StateMachine.State toState)
+    {
+        publish(STATE_CHANGED, fromState, toState, null);
+    }
+
+    private void publish(int kind, StateMachine.State fromState, StateMachine.State toState, TriggerOutcome outcome)
+    {
+        final long sequence = claim();
+        if (sequence < 0)
+        {
+            droppedCount.increment();
+            return;
+        }
+        final Slot slot = ring[(int) sequence & mask];
+        slot.kind = kind;
+        slot.fromState = fromState;
+        slot.toState = toState;
+        slot.outcome = outcome;
+        slot.published = sequence;      // volatile write hands the slot to the consumer
+    }
+
+    /**
+     * Claims the next sequence number, applying the overflow policy if the ring is full.
+     *
+     * @return The claimed sequence, or -1 if the event is to be discarded.
+     */
+    private long claim()
+    {
+        boolean waitForSpace = false;
+        while (running)
+        {
+            final long next = claimSequence.get();
+            if (next - consumedSequence < ring.length)
+            {
+                if (claimSequence.compareAndSet(next, next + 1))
+                    return next;
+                continue;
+            }
+
+            if (!waitForSpace)
+            {
+                // Nothing would ever free a slot for a publisher that waited before the consumer started.
+                if (overflowPolicy == OverflowPolicy.DROP || !started)
+                    return -1;
+                if (overflowPolicy == OverflowPolicy.SAMPLE && overflowCount.incrementAndGet() % sampleRate != 0)
+                    return -1;
+                waitForSpace = true;
+            }
+            LockSupport.parkNanos(BACKOFF_PARK_NANOS);
+        }
+        return -1;
+    }
+
+    /**
+     * The consumer loop. Delivers events in sequence, a batch at a time, and
+     * only then releases the batch's slots back to the publishers.
+     */
+    private void drain()
+    {
+        long next = 0;
+        while (running || next < claimSequence.get())
+        {
+            long batchEnd = next;
+            Slot slot;
+            while (batchEnd - next < ring.length && (slot = ring[(int) batchEnd & mask]).published == batchEnd)
+            {
+                deliver(slot);
+                // Delivered slots must not keep states reachable until they are next reused.
+                slot.fromState = null;
+                slot.toState = null;
+                slot.outcome = null;
+                batchEnd++;
+            }
+            if (batchEnd == next)
+            {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            next = batchEnd;
+            consumedSequence = next;
+        }
+    }
+
+    private void deliver(Slot slot)
+    {
+        for (TransitionTraceListener subscriber : subscribers)
+        {
+            try
+            {
+                if (slot.kind == TRIGGER)
+                    subscriber.triggered(slot.fromState, slot.toState, slot.outcome);
+                else
+                    subscriber.stateChanged(slot.fromState, slot.toState);
+            }
+            catch (Exception ex)
+            {
+                // Trace is not allowed to throw any exceptions.
+            }
+        }
+    }
+
+    /**
+     * A pre-allocated ring buffer entry. The plain fields are written by the
+     * publisher before, and read by the consumer after, the volatile sequence.
+     */
+    private static final class Slot
+    {
+        int                 kind;
+        StateMachine.State  fromState;
+        StateMachine.State  toState;
+        TriggerOutcome      outcome;
+        volatile long       published = -1;
+    }
+}
@@ -0,0 +1,507 @@
+package uk.co.tigranetworks;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A durable, append-only record of committed transitions, for auditing and
+ * crash recovery. A journal is attached to a {@link StateMachine} or a
+ * {@link StateMachinePopulation}, which then appends one record for every
+ * transition it commits, while the transition is still exclusively owned, so
+ * the records of any one machine are always in commit order.
+ * <p/>
+ * Records are fixed-width (32 bytes: timestamp, machine id, from-state,
+ * to-state and event id) and are written straight into memory-mapped segment
+ * files in a directory, rolling over to a new file whenever a segment fills.
+ * Appending never blocks on I/O. A background thread forces written segments
+ * to disk at a fixed interval, and a thread that needs a record to be durable
+ * before it carries on can wait for it with {@link #awaitDurable(long)}; every
+ * thread waiting at the same time is satisfied by the same force (group commit).
+ * If forcing the journal fails, the background thread stops and the failure is
+ * reported to every thread that waits for a record and to {@link #close()}.
+ * <p/>
+ * Use {@link #replay(Path, RecordHandler)} to read a journal back, for example
+ * to rebuild the current state of each machine after a crash. A journal can be
+ * reopened after a restart and carries on from its last complete record.
+ */
+public final class TransitionJournal implements AutoCloseable
+{
+    /**
+     * Receives the records of a journal being replayed, in sequence order.
+     */
+    public interface RecordHandler
+    {
+        /**
+         * @param sequence        The record's position in the journal, starting at zero.
+         * @param timestampMillis When the transition was committed, in milliseconds since the epoch.
+         * @param machineId       The id under which the machine was attached to the journal.
+         * @param fromState       The id of the state left, or -1 when a machine is started.
+         * @param toState         The id of the state entered.
+         * @param eventId         The event that fired the transition, or -1 if it was triggered directly.
+         */
+        public void record(long sequence, long timestampMillis, long machineId, int fromState, int toState, int eventId);
+    }
+
+    public static final int RECORD_SIZE = 32;
+
+    // Record layout. The marker is written last so that a torn record is never replayed.
+    private static final int    TIMESTAMP_OFFSET = 0;
+    private static final int    MACHINE_OFFSET   = 8;
+    private static final int    FROM_OFFSET      = 16;
+    private static final int    TO_OFFSET        = 20;
+    private static final int    EVENT_OFFSET     = 24;
+    private static final int    MARKER_OFFSET    = 28;
+    private static final int    COMMITTED        = 0x4A524E4C;     // "JRNL"
+    private static final String SEGMENT_SUFFIX   = ".journal";
+
+    // Set in nextSequence by close(), so that no record can be claimed after it.
+    private static final long   CLOSED           = Long.MIN_VALUE;
+
+    private static final VarHandle MARKER = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private final    Path               directory;
+    private final    int                recordsPerSegment;
+    private final    long               flushIntervalNanos;
+    private final    AtomicLong         nextSequence;
+    private final    Map<Long, Segment> segments       = new TreeMap<>();    // open segments by base sequence; guarded by this
+    private final    Object             durableMonitor = new Object();
+    private final    Thread             flusher;
+    private volatile Segment            current;
+    private volatile long               durableSequence;
+    private volatile IOException        failure;
+
+    /**
+     * Opens a journal with segments of a million records (32MB) that are forced
+     * to disk every 10 milliseconds.
+     *
+     * @param directory The directory that holds the segment files; created if necessary.
+     */
+    public TransitionJournal(Path directory) throws IOException
+    {
+        this(directory, 1 << 20, 10, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens a journal, creating it if it does not exist or continuing from its
+     * last complete record if it does.
+     *
+     * @param directory         The directory that holds the segment files; created if necessary.
+     * @param recordsPerSegment The number of records in each segment file. Must be the
+     *                          same every time that a journal is opened.
+     * @param flushInterval     The longest time that a record is left before being forced to disk.
+     * @param unit              The unit of flushInterval.
+     */
+    public TransitionJournal(Path directory, int recordsPerSegment, long flushInterval, TimeUnit unit) throws IOException
+    {
+        if (recordsPerSegment < 1 || recordsPerSegment > Integer.MAX_VALUE / RECORD_SIZE)
+            throw new IllegalArgumentException("Records per segment must be between 1 and " + Integer.MAX_VALUE / RECORD_SIZE);
+        if (flushInterval <= 0)
+            throw new IllegalArgumentException("Flush interval must be positive");
+        this.directory = Files.createDirectories(directory);
+        this.recordsPerSegment = recordsPerSegment;
+        flushIntervalNanos = unit.toNanos(flushInterval);
+
+        // Carry on after the last complete record of the newest segment.
+        long next = 0;
+        final List<Path> files = listSegments(directory);
+        if (!files.isEmpty())
+        {
+            final Path newest = files.get(files.size() - 1);
+            next = baseSequence(newest) + countRecords(newest);
+        }
+        nextSequence = new AtomicLong(next);
+        durableSequence = next;
+        current = segmentFor(next);
+        discardAfter(current, next);
+
+        flusher = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                flushLoop();
+            }
+        }, "State Machine Transition Journal");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public Path getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * Gets the sequence number that the next record will be given.
+     */
+    public long getNextSequence()
+    {
+        return nextSequence.get() & ~CLOSED;
+    }
+
+    /**
+     * Gets the number of records known to have been forced to disk; every record
+     * with a lower sequence number is durable.
+     */
+    public long getDurableSequence()
+    {
+        return durableSequence;
+    }
+
+    /**
+     * Appends a record. Thread-safe and non-blocking, except when a new segment
+     * file has to be mapped.
+     *
+     * @return The record's sequence number.
+     * @throws IllegalStateException if the journal has been closed.
+     * @throws UncheckedIOException  if a new segment file could not be mapped, in
+     *                               which case no sequence number is used up.
+     */
+    public long append(long machineId, int fromState, int toState, int eventId)
+    {
+        // The segment is mapped before the sequence is claimed, because the flusher
+        // waits for every claimed record and would wait forever for one never written.
+        long sequence;
+        Segment segment;
+        do
+        {
+            sequence = nextSequence.get();
+            if ((sequence & CLOSED) != 0)
+                throw new IllegalStateException("Journal is closed");
+            segment = current;
+            if (!segment.contains(sequence))
+                segment = openSegment(sequence);
+        }
+        while (!nextSequence.compareAndSet(sequence, sequence + 1));
+        final ByteBuffer buffer = segment.buffer;
+        final int offset = (int) (sequence - segment.base) * RECORD_SIZE;
+        MARKER.setRelease(buffer, offset + MARKER_OFFSET, 0);
+        buffer.putLong(offset + TIMESTAMP_OFFSET, System.currentTimeMillis());
+        buffer.putLong(offset + MACHINE_OFFSET, machineId);
+        buffer.putInt(offset + FROM_OFFSET, fromState);
+        buffer.putInt(offset + TO_OFFSET, toState);
+        buffer.putInt(offset + EVENT_OFFSET, eventId);
+        MARKER.setRelease(buffer, offset + MARKER_OFFSET, COMMITTED);
+        return sequence;
+    }
+
+    /**
+     * Waits until the specified record has been forced to disk, prompting the
+     * background thread to force the journal straight away rather than at its
+     * next interval.
+     *
+     * @param sequence The sequence number returned by {@link #append}.
+     * @throws IOException if the journal could not be forced to disk.
+     */
+    public void awaitDurable(long sequence) throws IOException, InterruptedException
+    {
+        if (durableSequence > sequence)
+            return;
+        LockSupport.unpark(flusher);
+        synchronized (durableMonitor)
+        {
+            while (durableSequence <= sequence && flusher.isAlive())
+                durableMonitor.wait(TimeUnit.NANOSECONDS.toMillis(flushIntervalNanos) + 1);
+        }
+        if (durableSequence > sequence)
+            return;
+        if (failure != null)
+            throw new IOException("Journal could not be forced to disk", failure);
+        throw new IllegalStateException("Journal closed before the record was durable");
+    }
+
+    /**
+     * Stops accepting records, waits for every record already claimed to be
+     * written and forced to disk, and then closes the segment files. An
+     * interrupt does not cut this short; the thread's interrupt status is
+     * restored once the journal has closed.
+     *
+     * @throws IOException if the journal could not be forced to disk, either
+     *                     now or earlier in the background.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        // Once the flag is set no append can claim a sequence, so the flusher's
+        // last pass covers every record that will ever be written.
+        long claimed = nextSequence.get();
+        while ((claimed & CLOSED) == 0 && !nextSequence.compareAndSet(claimed, claimed | CLOSED))
+            claimed = nextSequence.get();
+        LockSupport.unpark(flusher);
+        boolean interrupted = false;
+        while (flusher.isAlive())
+        {
+            try
+            {
+                flusher.join();
+            }
+            catch (InterruptedException ex)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        IOException closeFailure = failure == null ? null : new IOException("Journal could not be forced to disk", failure);
+        synchronized (this)
+        {
+            for (Segment segment : segments.values())
+            {
+                try
+                {
+                    segment.close();
+                }
+                catch (IOException | UncheckedIOException ex)
+                {
+                    if (closeFailure == null)
+                        closeFailure = ex instanceof IOException ? (IOException) ex : ((UncheckedIOException) ex).getCause();
+                }
+            }
+            segments.clear();
+        }
+        if (closeFailure != null)
+            throw closeFailure;
+    }
+
+    /**
+     * Reads every complete record of a journal, in sequence order. The journal
+     * need not be open; if it is, records appended while the replay is in
+     * progress may or may not be seen.
+     *
+     * @param directory The directory that holds the segment files.
+     * @param handler   Receives each record.
+     * @return The number of records replayed.
+     */
+    public static long replay(Path directory, RecordHandler handler) throws IOException
+    {
+        long count = 0;
+        for (Path file : listSegments(directory))
+        {
+            final long base = baseSequence(file);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+            {
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                final int records = (int) (channel.size() / RECORD_SIZE);
+                for (int index = 0; index < records; index++)
+                {
+                    final int offset = index * RECORD_SIZE;
+                    if ((int) MARKER.getAcquire(buffer, offset + MARKER_OFFSET) != COMMITTED)
+                        break;
+                    handler.record(base + index,
+                                   buffer.getLong(offset + TIMESTAMP_OFFSET),
+                                   buffer.getLong(offset + MACHINE_OFFSET),
+                                   buffer.getInt(offset + FROM_OFFSET),
+                                   buffer.getInt(offset + TO_OFFSET),
+                                   buffer.getInt(offset + EVENT_OFFSET));
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private Segment openSegment(long sequence)
+    {
+        try
+        {
+            return segmentFor(sequence);
+        }
+        catch (IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Gets the segment that holds the specified record, mapping its file if need be.
+     */
+    private synchronized Segment segmentFor(long sequence) throws IOException
+    {
+        final long base = sequence - sequence % recordsPerSegment;
+        Segment segment = segments.get(base);
+        if (segment == null)
+        {
+            // close() unmaps only the segments it can see, so none may be added after it.
+            if ((nextSequence.get() & CLOSED) != 0)
+                throw new IllegalStateException("Journal is closed");
+            segment = new Segment(directory.resolve(String.format("%020d%s", base, SEGMENT_SUFFIX)), base, recordsPerSegment);
+            segments.put(base, segment);
+        }
+        if (current == null || base > current.base)
+            current = segment;
+        return segment;
+    }
+
+    /**
+     * The background thread. Every interval, or sooner when prompted, it waits
+     * for records that have been claimed to be completely written, forces their
+     * segments to disk, and then closes segments that are full and durable. If
+     * that fails it records the failure and stops.
+     */
+    private void flushLoop()
+    {
+        boolean stopping = false;
+        while (!stopping)
+        {
+            stopping = (nextSequence.get() & CLOSED) != 0;
+            if (!stopping)
+                LockSupport.parkNanos(flushIntervalNanos);
+            final long target = nextSequence.get() & ~CLOSED;
+            final long from = durableSequence;
+            if (target == from)
+                continue;
+            try
+            {
+                final List<Segment> dirty = new ArrayList<>();
+                Segment segment = null;
+                for (long sequence = from; sequence < target; sequence++)
+                {
+                    if (segment == null || !segment.contains(sequence))
+                        segment = segmentFor(sequence);
+                    final int offset = (int) (sequence - segment.base) * RECORD_SIZE + MARKER_OFFSET;
+                    while ((int) MARKER.getAcquire(segment.buffer, offset) != COMMITTED)
+                        Thread.onSpinWait();
+                    if (dirty.isEmpty() || dirty.get(dirty.size() - 1) != segment)
+                        dirty.add(segment);
+                }
+                for (Segment written : dirty)
+                    written.buffer.force();
+                retireSegments(target);
+            }
+            catch (IOException | UncheckedIOException ex)
+            {
+                synchronized (durableMonitor)
+                {
+                    failure = ex instanceof IOException ? (IOException) ex : ((UncheckedIOException) ex).getCause();
+                    durableMonitor.notifyAll();
+                }
+                return;
+            }
+            synchronized (durableMonitor)
+            {
+                durableSequence = target;
+                durableMonitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Closes every segment other than the current one whose records are all durable.
+     */
+    private synchronized void retireSegments(long durable) throws IOException
+    {
+        final List<Long> retired = new ArrayList<>();
+        for (Segment segment : segments.values())
+            if (segment != current && segment.base + recordsPerSegment <= durable)
+            {
+                segment.close();
+                retired.add(segment.base);
+            }
+        for (Long base : retired)
+            segments.remove(base);
+    }
+
+    /**
+     * Clears the markers of a reopened segment from the recovery point on. Records
+     * after a torn one may have been written before the crash, and their markers
+     * must not pass for those of the new records that reuse their sequence numbers.
+     */
+    private static void discardAfter(Segment segment, long next)
+    {
+        boolean cleared = false;
+        for (long sequence = next; sequence < segment.base + segment.capacity; sequence++)
+        {
+            final int offset = (int) (sequence - segment.base) * RECORD_SIZE + MARKER_OFFSET;
+            if (segment.buffer.getInt(offset) != 0)
+            {
+                segment.buffer.putInt(offset, 0);
+                cleared = true;
+            }
+        }
+        if (cleared)
+            segment.buffer.force();
+    }
+
+    private static List<Path> listSegments(Path directory) throws IOException
+    {
+        final List<Path> files = new ArrayList<>();
+        if (!Files.isDirectory(directory))
+            return files;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX))
+        {
+            for (Path file : stream)
+                files.add(file);
+        }
+        // Names are zero-padded base sequence numbers, so they sort into sequence order.
+        Collections.sort(files);
+        return files;
+    }
+
+    private static long baseSequence(Path file)
+    {
+        final String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static long countRecords(Path file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            final int records = (int) (channel.size() / RECORD_SIZE);
+            int count = 0;
+            while (count < records && buffer.getInt(count * RECORD_SIZE + MARKER_OFFSET) == COMMITTED)
+                count++;
+            return count;
+        }
+    }
+
+    /**
+     * One memory-mapped segment file.
+     */
+    private static final class Segment
+    {
+        final long             base;
+        final int              capacity;
+        final FileChannel      channel;
+        final MappedByteBuffer buffer;
+
+        Segment(Path file, long base, int capacity) throws IOException
+        {
+            this.base = base;
+            this.capacity = capacity;
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * RECORD_SIZE);
+        }
+
+        boolean contains(long sequence)
+        {
+            return sequence >= base && sequence < base + capacity;
+        }
+
+        void close() throws IOException
+        {
+            buffer.force();
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package uk.co.tigranetworks;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for one state machine, or for every instance
+ * of one {@link StateMachineDefinition}: triggers by outcome, time spent
+ * waiting for the transition lock, and a {@link LatencyHistogram} of the time
+ * taken by the OnExit and OnEnter actions of each transition.
+ * <p/>
+ * Collection is allocation-free and costs a few uncontended atomic adds and
+ * two calls to System.nanoTime() per transition, so metrics can be left on in
+ * production. They are off unless enabled, with
+ * {@link StateMachine#enableMetrics()} or
+ * {@link StateMachineDefinition.Builder#setMetricsEnabled(boolean)}, and can be
+ * published through JMX with {@link #register(String)}.
+ */
+public final class TransitionMetrics implements TransitionMetricsMXBean
+{
+    private static final LatencyHistogram[] NO_HISTOGRAMS = new LatencyHistogram[0];
+    private static final String[]           NO_NAMES      = new String[0];
+
+    private final    LongAdder[]        outcomeCounts    = new LongAdder[TriggerOutcome.values().length];
+    private final    LongAdder          lockAcquisitions = new LongAdder();
+    private final    LongAdder          lockWaitNanos    = new LongAdder();
+    private volatile String[]           transitionNames  = NO_NAMES;
+    private volatile LatencyHistogram[] actionLatency    = NO_HISTOGRAMS;
+
+    TransitionMetrics()
+    {
+        for (int index = 0; index < outcomeCounts.length; index++)
+            outcomeCounts[index] = new LongAdder();
+    }
+
+    /**
+     * Creates a histogram for each transition, indexed as the names.
+     * Called once the transitions are known.
+     */
+    void bindTransitions(String[] names)
+    {
+        final LatencyHistogram[] histograms = new LatencyHistogram[names.length];
+        for (int index = 0; index < histograms.length; index++)
+            histograms[index] = new LatencyHistogram();
+        transitionNames = names.clone();
+        actionLatency = histograms;
+    }
+
+    void recordOutcome(TriggerOutcome outcome)
+    {
+        outcomeCounts[outcome.ordinal()].increment();
+    }
+
+    void recordLockWait(long nanos)
+    {
+        lockAcquisitions.increment();
+        lockWaitNanos.add(nanos);
+    }
+
+    /**
+     * Records the time taken by a transition's actions. Transitions created after
+     * the metrics were bound (i.e. after the state machine was started) have no
+     * histogram and are ignored.
+     */
+    void recordActions(int transition, long nanos)
+    {
+        final LatencyHistogram[] histograms = actionLatency;
+        if (transition >= 0 && transition < histograms.length)
+            histograms[transition].record(nanos);
+    }
+
+    /**
+     * Gets the number of triggers and events with the specified outcome.
+     */
+    public long getCount(TriggerOutcome outcome)
+    {
+        return outcomeCounts[outcome.ordinal()].sum();
+    }
+
+    public int getTransitionCount()
+    {
+        return actionLatency.length;
+    }
+
+    public String getTransitionName(int transition)
+    {
+        return transitionNames[transition];
+    }
+
+    /**
+     * Gets the histogram of the time taken by the OnExit and OnEnter actions of a transition.
+     *
+     * @param transition The transition index: its position in creation order.
+     */
+    public LatencyHistogram getActionLatency(int transition)
+    {
+        return actionLatency[transition];
+    }
+
+    @Override
+    public long getExecutedCount()
+    {
+        return getCount(TriggerOutcome.EXECUTED);
+    }
+
+    @Override
+    public long getDisarmedCount()
+    {
+        return getCount(TriggerOutcome.DISARMED);
+    }
+
+    @Override
+    public long getRejectedCount()
+    {
+        return getCount(TriggerOutcome.REJECTED);
+    }
+
+    @Override
+    public long getContendedCount()
+    {
+        return getCount(TriggerOutcome.CONTENDED);
+    }
+
+    /**
+     * Gets the number of times that the transition lock has been taken. Only the
+     * lock-based concurrency modes take a lock. A batch fired with fireAll() takes
+     * it once, however many transitions the batch executes.
+     */
+    @Override
+    public long getLockAcquisitionCount()
+    {
+        return lockAcquisitions.sum();
+    }
+
+    /**
+     * Gets the total time spent waiting to take the transition lock.
+     */
+    @Override
+    public long getLockWaitNanos()
+    {
+        return lockWaitNanos.sum();
+    }
+
+    @Override
+    public String[] getTransitionNames()
+    {
+        return transitionNames.clone();
+    }
+
+    @Override
+    public long[] getTransitionCounts()
+    {
+        final LatencyHistogram[] histograms = actionLatency;
+        final long[] values = new long[histograms.length];
+        for (int index = 0; index < values.length; index++)
+            values[index] = histograms[index].getCount();
+        return values;
+    }
+
+    @Override
+    public long[] getTransitionMeanNanos()
+    {
+        final LatencyHistogram[] histograms = actionLatency;
+        final long[] values = new long[histograms.length];
+        for (int index = 0; index < values.length; index++)
+            values[index] = histograms[index].getMeanNanos();
+        return values;
+    }
+
+    @Override
+    public long[] getTransitionP99Nanos()
+    {
+        final LatencyHistogram[] histograms = actionLatency;
+        final long[] values = new long[histograms.length];
+        for (int index = 0; index < values.length; index++)
+            values[index] = histograms[index].getValueAtPercentile(99);
+        return values;
+    }
+
+    @Override
+    public long[] getTransitionMaxNanos()
+    {
+        final LatencyHistogram[] histograms = actionLatency;
+        final long[] values = new long[histograms.length];
+        for (int index = 0; index < values.length; index++)
+            values[index] = histograms[index].getMaxNanos();
+        return values;
+    }
+
+    /**
+     * Publishes these metrics on the platform MBean server.
+     *
+     * @param name Identifies the state machine; becomes the name key of the object name.
+     * @return The object name, for {@link #unregister(ObjectName)}.
+     */
+    public ObjectName register(String name) throws JMException
+    {
+        final ObjectName objectName = new ObjectName("uk.co.tigranetworks:type=TransitionMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    public static void unregister(ObjectName objectName) throws JMException
+    {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    }
+}
@@ -0,0 +1,30 @@
+package uk.co.tigranetworks;
+
+/**
+ * The JMX management interface of {@link TransitionMetrics}. The per-transition
+ * arrays are all indexed alike, by transition.
+ */
+public interface TransitionMetricsMXBean
+{
+    public long getExecutedCount();
+
+    public long getDisarmedCount();
+
+    public long getRejectedCount();
+
+    public long getContendedCount();
+
+    public long getLockAcquisitionCount();
+
+    public long getLockWaitNanos();
+
+    public String[] getTransitionNames();
+
+    public long[] getTransitionCounts();
+
+    public long[] getTransitionMeanNanos();
+
+    public long[] getTransitionP99Nanos();
+
+    public long[] getTransitionMaxNanos();
+}
@@ -0,0 +1,34 @@
+package uk.co.tigranetworks;
+
+import java.util.EventListener;
+
+/**
+ * A typed alternative to {@link TraceListener}. Rather than pre-formatted text,
+ * the listener is handed the states involved and the outcome, so nothing is
+ * formatted or allocated on the trigger path. Text identical to the
+ * TraceListener output can still be produced on demand with
+ * {@link StateMachine#describeTrigger} and {@link StateMachine#describeStateChange}.
+ * <p/>
+ * Listeners are called synchronously on the triggering thread and, for
+ * state changes, while the transition is in progress, so they should return
+ * quickly. Any exception thrown by a listener is ignored.
+ */
+public interface TransitionTraceListener extends EventListener
+{
+    /**
+     * Called each time a transition is triggered, whatever the outcome.
+     *
+     * @param fromState The state that owns the transition.
+     * @param toState   The destination state of the transition.
+     * @param outcome   What the trigger did.
+     */
+    public void triggered(StateMachine.State fromState, StateMachine.State toState, TriggerOutcome outcome);
+
+    /**
+     * Called each time the state machine changes state.
+     *
+     * @param fromState The original state.
+     * @param toState   The new current state.
+     */
+    public void stateChanged(StateMachine.State fromState, StateMachine.State toState);
+}
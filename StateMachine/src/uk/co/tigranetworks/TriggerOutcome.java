@@ -0,0 +1,54 @@
+package uk.co.tigranetworks;
+
+/**
+ * The result of triggering a transition or firing an event.
+ */
+public enum TriggerOutcome
+{
+    /**
+     * The state machine was in the owning state and the validation rule passed,
+     * so the transition was executed.
+     */
+    EXECUTED("armed, executing"),
+
+    /**
+     * The state machine was not in the owning state (or, for an event, no
+     * transition from the current state takes that event), so nothing happened.
+     */
+    DISARMED("disarmed"),
+
+    /**
+     * The state machine was in the owning state but the validation rule
+     * returned false, so nothing happened.
+     */
+    REJECTED("armed, rejected"),
+
+    /**
+     * Lock-free mode only. Another trigger claimed a transition first, and it
+     * was still under way, so this trigger failed fast. A state machine in lock-free mode
+     * has already passed the validation rule; a definition instance has not
+     * yet evaluated it.
+     */
+    CONTENDED("armed, contended"),
+
+    /**
+     * Mailbox mode only. The event has been queued, and its outcome will be
+     * decided later when the state machine's executor processes it.
+     */
+    QUEUED("queued");
+
+    private final String description;
+
+    TriggerOutcome(String description)
+    {
+        this.description = description;
+    }
+
+    /**
+     * Gets the text used for this outcome in OnTrigger trace output.
+     */
+    public String getDescription()
+    {
+        return description;
+    }
+}
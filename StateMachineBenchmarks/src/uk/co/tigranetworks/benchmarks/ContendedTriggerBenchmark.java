@@ -0,0 +1,90 @@
+package uk.co.tigranetworks.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.co.tigranetworks.ConcurrencyMode;
+import uk.co.tigranetworks.FalseStartException;
+import uk.co.tigranetworks.StateMachine;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of many threads triggering transitions on one shared state
+ * machine. The machine flips between two states, and every thread triggers
+ * both transitions in turn, so at any moment roughly half of the triggers
+ * are armed and compete with each other to execute.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContendedTriggerBenchmark
+{
+    @Param({"SYNCHRONIZED", "REENTRANT_LOCK", "LOCK_FREE"})
+    public ConcurrencyMode concurrencyMode;
+
+    @Param({"NONE", "TYPED"})
+    public Tracing tracing;
+
+    private StateMachine.State.Transition flip;
+    private StateMachine.State.Transition flop;
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws FalseStartException
+    {
+        StateMachine machine = new StateMachine(concurrencyMode);
+        StateMachine.State flipped = machine.new State("Flipped");
+        StateMachine.State flopped = machine.new State("Flopped");
+        flip = flopped.new Transition(flipped);
+        flop = flipped.new Transition(flopped);
+        tracing.install(machine, blackhole);
+        machine.start(flopped);
+    }
+
+    private void flipFlop()
+    {
+        flip.trigger();
+        flop.trigger();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void threads01()
+    {
+        flipFlop();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void threads04()
+    {
+        flipFlop();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void threads16()
+    {
+        flipFlop();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void threads64()
+    {
+        flipFlop();
+    }
+}
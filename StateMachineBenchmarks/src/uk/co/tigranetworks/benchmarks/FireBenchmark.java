@@ -0,0 +1,119 @@
+package uk.co.tigranetworks.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.tigranetworks.ConcurrencyMode;
+import uk.co.tigranetworks.DefinitionCompiler;
+import uk.co.tigranetworks.FalseStartException;
+import uk.co.tigranetworks.StateMachine;
+import uk.co.tigranetworks.StateMachineDefinition;
+import uk.co.tigranetworks.StateMachineInstance;
+import uk.co.tigranetworks.TriggerOutcome;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-threaded cost of firing events by id, through StateMachine.fire()
+ * and through a StateMachineInstance, for an event that executes a
+ * self-transition and for one that no transition from the current state takes.
+ * The compiled benchmarks fire at an instance of the same definition after it
+ * has been through DefinitionCompiler. The batch benchmarks report the cost
+ * per event of StateMachine.fireAll().
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FireBenchmark
+{
+    private static final int EVENT_ARMED    = 0;
+    private static final int EVENT_DISARMED = 1;
+    private static final int BATCH_SIZE     = 64;
+
+    @Param({"SYNCHRONIZED", "REENTRANT_LOCK", "LOCK_FREE"})
+    public ConcurrencyMode concurrencyMode;
+
+    private StateMachine                 machine;
+    private StateMachineInstance<Object> instance;
+    private StateMachineInstance<Object> compiledInstance;
+    private final int[]                  batch         = new int[BATCH_SIZE];
+    private final TriggerOutcome[]       batchOutcomes = new TriggerOutcome[BATCH_SIZE];
+
+    @Setup
+    public void setUp() throws FalseStartException
+    {
+        machine = new StateMachine(concurrencyMode);
+        StateMachine.State idle = machine.new State("Idle");
+        StateMachine.State elsewhere = machine.new State("Elsewhere");
+        idle.new Transition(EVENT_ARMED, idle);
+        elsewhere.new Transition(EVENT_DISARMED, idle);
+        machine.start(idle);
+
+        StateMachineDefinition.Builder<Object> builder = StateMachineDefinition.builder();
+        int idleId = builder.addState("Idle");
+        int elsewhereId = builder.addState("Elsewhere");
+        builder.addTransition(idleId, EVENT_ARMED, idleId);
+        builder.addTransition(elsewhereId, EVENT_DISARMED, idleId);
+        StateMachineDefinition<Object> definition = builder.setInitialState(idleId).build();
+        instance = definition.newInstance(null);
+        compiledInstance = DefinitionCompiler.compile(definition).newInstance(null);
+        Arrays.fill(batch, EVENT_ARMED);
+    }
+
+    @Benchmark
+    public TriggerOutcome machineFireArmed()
+    {
+        return machine.fire(EVENT_ARMED);
+    }
+
+    @Benchmark
+    public TriggerOutcome machineFireDisarmed()
+    {
+        return machine.fire(EVENT_DISARMED);
+    }
+
+    @Benchmark
+    public TriggerOutcome instanceFireArmed()
+    {
+        return instance.fire(EVENT_ARMED);
+    }
+
+    @Benchmark
+    public TriggerOutcome instanceFireDisarmed()
+    {
+        return instance.fire(EVENT_DISARMED);
+    }
+
+    @Benchmark
+    public TriggerOutcome compiledFireArmed()
+    {
+        return compiledInstance.fire(EVENT_ARMED);
+    }
+
+    @Benchmark
+    public TriggerOutcome compiledFireDisarmed()
+    {
+        return compiledInstance.fire(EVENT_DISARMED);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public TriggerOutcome[] machineFireAllArmed()
+    {
+        machine.fireAll(batch, batchOutcomes);
+        return batchOutcomes;
+    }
+}
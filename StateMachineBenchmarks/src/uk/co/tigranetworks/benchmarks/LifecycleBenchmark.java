@@ -0,0 +1,83 @@
+package uk.co.tigranetworks.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.tigranetworks.FalseStartException;
+import uk.co.tigranetworks.StateMachine;
+import uk.co.tigranetworks.StateMachineDefinition;
+import uk.co.tigranetworks.StateMachineInstance;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of bringing a state machine to life: building its graph of states
+ * and transitions, starting it, and - for comparison - stamping a new instance
+ * out of a prebuilt StateMachineDefinition.
+ * <p/>
+ * Each machine is a ring of states, with one transition from each state to the next.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LifecycleBenchmark
+{
+    @Param({"4", "64"})
+    public int stateCount;
+
+    private StateMachineDefinition<Object> definition;
+
+    @Setup
+    public void setUp()
+    {
+        StateMachineDefinition.Builder<Object> builder = StateMachineDefinition.builder();
+        for (int index = 0; index < stateCount; index++)
+            builder.addState("State " + index);
+        for (int index = 0; index < stateCount; index++)
+            builder.addTransition(index, 0, (index + 1) % stateCount);
+        definition = builder.setInitialState(0).build();
+    }
+
+    private StateMachine.State construct(StateMachine machine)
+    {
+        StateMachine.State[] states = new StateMachine.State[stateCount];
+        for (int index = 0; index < stateCount; index++)
+            states[index] = machine.new State("State " + index);
+        for (int index = 0; index < stateCount; index++)
+            states[index].new Transition(0, states[(index + 1) % stateCount]);
+        return states[0];
+    }
+
+    @Benchmark
+    public StateMachine constructMachine()
+    {
+        StateMachine machine = new StateMachine();
+        construct(machine);
+        return machine;
+    }
+
+    @Benchmark
+    public StateMachine constructAndStartMachine() throws FalseStartException
+    {
+        StateMachine machine = new StateMachine();
+        machine.start(construct(machine));
+        return machine;
+    }
+
+    @Benchmark
+    public StateMachineInstance<Object> newDefinitionInstance()
+    {
+        return definition.newInstance(null);
+    }
+}
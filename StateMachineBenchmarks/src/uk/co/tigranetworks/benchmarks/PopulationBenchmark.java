@@ -0,0 +1,63 @@
+package uk.co.tigranetworks.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.tigranetworks.StateMachineDefinition;
+import uk.co.tigranetworks.StateMachinePopulation;
+import uk.co.tigranetworks.StateStorage;
+import uk.co.tigranetworks.TriggerOutcome;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of firing an event at successive instances of a population of a
+ * million machines, for each kind of state storage. Run with -prof gc to
+ * compare allocation and collection work against the same number of
+ * StateMachineInstance objects.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PopulationBenchmark
+{
+    private static final int EVENT_TOGGLE    = 0;
+    private static final int POPULATION_SIZE = 1 << 20;
+
+    @Param({"INT_ARRAY", "SHORT_ARRAY", "OFF_HEAP"})
+    public StateStorage storage;
+
+    private StateMachinePopulation<Object> population;
+    private int                            next;
+
+    @Setup
+    public void setUp()
+    {
+        StateMachineDefinition.Builder<Object> builder = StateMachineDefinition.builder();
+        int on = builder.addState("On");
+        int off = builder.addState("Off");
+        builder.addTransition(on, EVENT_TOGGLE, off);
+        builder.addTransition(off, EVENT_TOGGLE, on);
+        population = new StateMachinePopulation<>(builder.setInitialState(off).build(), POPULATION_SIZE, storage);
+        for (int index = 0; index < POPULATION_SIZE; index++)
+            population.newInstance(null);
+    }
+
+    @Benchmark
+    public TriggerOutcome fireSuccessiveInstances()
+    {
+        next = (next + 1) & (POPULATION_SIZE - 1);
+        return population.fire(next, EVENT_TOGGLE, null);
+    }
+}
@@ -0,0 +1,73 @@
+package uk.co.tigranetworks.benchmarks;
+
+import org.openjdk.jmh.infra.Blackhole;
+import uk.co.tigranetworks.StateMachine;
+import uk.co.tigranetworks.TraceListener;
+import uk.co.tigranetworks.TransitionTraceListener;
+import uk.co.tigranetworks.TriggerOutcome;
+
+/**
+ * The trace listener configurations that the benchmarks are run with.
+ * The listeners hand what they are given to a JMH Blackhole so that it
+ * cannot be optimised away. Blackhole.consume() of a primitive only reads
+ * the blackhole, so threads that share a listener do not contend on it.
+ */
+public enum Tracing
+{
+    /**
+     * No listeners installed.
+     */
+    NONE,
+
+    /**
+     * Text-based OnTrigger and OnStateChanged listeners.
+     */
+    TEXT,
+
+    /**
+     * A typed TransitionTraceListener.
+     */
+    TYPED;
+
+    /**
+     * Installs this configuration's listeners on a state machine.
+     *
+     * @param blackhole The blackhole that the listeners consume into.
+     */
+    public void install(StateMachine machine, final Blackhole blackhole)
+    {
+        switch (this)
+        {
+            case TEXT:
+                TraceListener textListener = new TraceListener()
+                {
+                    @Override
+                    public void trace(String traceOutput)
+                    {
+                        blackhole.consume(traceOutput.length());
+                    }
+                };
+                machine.setOnTriggerListener(textListener);
+                machine.setOnStateChangedListener(textListener);
+                break;
+            case TYPED:
+                machine.setTransitionTraceListener(new TransitionTraceListener()
+                {
+                    @Override
+                    public void triggered(StateMachine.State fromState, StateMachine.State toState, TriggerOutcome outcome)
+                    {
+                        blackhole.consume(fromState.getId() + outcome.ordinal());
+                    }
+
+                    @Override
+                    public void stateChanged(StateMachine.State fromState, StateMachine.State toState)
+                    {
+                        blackhole.consume(toState.getId());
+                    }
+                });
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package uk.co.tigranetworks.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.co.tigranetworks.ConcurrencyMode;
+import uk.co.tigranetworks.FalseStartException;
+import uk.co.tigranetworks.StateMachine;
+import uk.co.tigranetworks.TransitionRule;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-threaded cost of Transition.trigger() on each of its three paths:
+ * armed (the transition executes), disarmed (the state machine is in some
+ * other state) and rejected (the validation rule fails). With fastReject
+ * set, disarmed triggers return before any trace, rule or metrics work.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TriggerBenchmark
+{
+    @Param({"SYNCHRONIZED", "REENTRANT_LOCK", "LOCK_FREE"})
+    public ConcurrencyMode concurrencyMode;
+
+    @Param({"NONE", "TEXT", "TYPED"})
+    public Tracing tracing;
+
+    @Param({"false", "true"})
+    public boolean fastReject;
+
+    private StateMachine.State.Transition armed;
+    private StateMachine.State.Transition disarmed;
+    private StateMachine.State.Transition rejected;
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws FalseStartException
+    {
+        StateMachine machine = new StateMachine(concurrencyMode);
+        StateMachine.State idle = machine.new State("Idle");
+        StateMachine.State elsewhere = machine.new State("Elsewhere");
+        armed = idle.new Transition(idle);      // a self-transition is armed every time
+        disarmed = elsewhere.new Transition(idle);
+        rejected = idle.new Transition(elsewhere, new TransitionRule()
+        {
+            @Override
+            public boolean transitionIsAllowed()
+            {
+                return false;
+            }
+        });
+        tracing.install(machine, blackhole);
+        machine.setFastReject(fastReject);
+        machine.start(idle);
+    }
+
+    @Benchmark
+    public void triggerArmed()
+    {
+        armed.trigger();
+    }
+
+    @Benchmark
+    public void triggerDisarmed()
+    {
+        disarmed.trigger();
+    }
+
+    @Benchmark
+    public void triggerRejected()
+    {
+        rejected.trigger();
+    }
+}
@@ -0,0 +1,113 @@
+import org.junit.Test;
+import uk.co.tigranetworks.ContextTransitionRule;
+import uk.co.tigranetworks.DefinitionAnalyzer;
+import uk.co.tigranetworks.StateMachineDefinition;
+
+import java.util.Arrays;
+
+public class DefinitionAnalyzerTests
+{
+    private static final int EVENT_START = 0;
+    private static final int EVENT_STOP  = 1;
+
+    private static ContextTransitionRule<Object> newRule()
+    {
+        return new ContextTransitionRule<Object>()
+        {
+            @Override
+            public boolean transitionIsAllowed(Object context)
+            {
+                return true;
+            }
+        };
+    }
+
+    @Test
+    public void FlatDefinitionsShouldReportEachKindOfProblem()
+    {
+        StateMachineDefinition.Builder<Object> builder = StateMachineDefinition.builder();
+        int idle = builder.addState("Idle");
+        int running = builder.addState("Running");
+        int done = builder.addState("Done");
+        int orphan = builder.addState("Orphan");
+        int start = builder.addTransition(idle, EVENT_START, running);
+        int startAgain = builder.addTransition(idle, EVENT_START, done);
+        int finish = builder.addTransition(running, EVENT_STOP, done, newRule());
+        int abandon = builder.addTransition(running, EVENT_STOP, idle, newRule());
+        int adopt = builder.addTransition(orphan, EVENT_START, idle);
+        DefinitionAnalyzer.Report report = DefinitionAnalyzer.analyze(builder.setInitialState(idle).build());
+
+        assert !report.isClean();
+        assert Arrays.equals(report.getUnreachableStates(), new int[] {orphan});
+        assert Arrays.equals(report.getSinkStates(), new int[] {done});
+        assert Arrays.equals(report.getUnusedTransitions(), new int[] {startAgain, adopt});
+        assert report.getShadowingTransition(startAgain) == start;
+        assert report.getShadowingTransition(adopt) == -1;
+        assert Arrays.equals(report.getConflictingTransitions(), new int[] {abandon});
+        assert report.getConflictingTransition(abandon) == finish;
+        assert report.toString().contains("Unreachable state Orphan");
+    }
+
+    @Test
+    public void InheritedTransitionsShouldBeUnusedOnlyWhenEveryInnerStateOverridesThem()
+    {
+        StateMachineDefinition.Builder<Object> builder = StateMachineDefinition.builder();
+        int off = builder.addState("Off");
+        int operating = builder.addState("Operating");
+        int slow = builder.addState("Slow", operating);
+        int fast = builder.addState("Fast", operating);
+        builder.addTransition(off, EVENT_START, operating);
+        builder.addTransition(slow, EVENT_START, fast);
+        int powerOff = builder.addTransition(operating, EVENT_STOP, off);
+        int slowStop = builder.addTransition(slow, EVENT_STOP, off);
+        builder.setInitialState(off);
+        DefinitionAnalyzer.Report report = DefinitionAnalyzer.analyze(builder.build());
+        assert report.isClean() : report;
+
+        int fastStop = builder.addTransition(fast, EVENT_STOP, slow);
+        report = DefinitionAnalyzer.analyze(builder.build());
+        assert Arrays.equals(report.getUnusedTransitions(), new int[] {powerOff});
+        int shadow = report.getShadowingTransition(powerOff);
+        assert shadow == slowStop || shadow == fastStop;
+    }
+
+    @Test
+    public void StatesReachedOnlyThroughShadowedInheritedTransitionsShouldBeUnreachable()
+    {
+        StateMachineDefinition.Builder<Object> builder = StateMachineDefinition.builder();
+        int operating = builder.addState("Operating");
+        int slow = builder.addState("Slow", operating);
+        int fast = builder.addState("Fast", operating);
+        int failed = builder.addState("Failed");
+        builder.addTransition(slow, EVENT_START, fast);
+        int slowStop = builder.addTransition(slow, EVENT_STOP, slow);
+        int fastStop = builder.addTransition(fast, EVENT_STOP, slow);
+        int fail = builder.addTransition(operating, EVENT_STOP, failed);
+        int recover = builder.addTransition(failed, EVENT_START, operating);
+        DefinitionAnalyzer.Report report = DefinitionAnalyzer.analyze(builder.setInitialState(operating).build());
+
+        // Both inner states take EVENT_STOP first, so nothing ever fails.
+        assert Arrays.equals(report.getUnreachableStates(), new int[] {failed}) : report;
+        assert Arrays.equals(report.getUnusedTransitions(), new int[] {fail, recover}) : report;
+        int shadow = report.getShadowingTransition(fail);
+        assert shadow == slowStop || shadow == fastStop;
+        assert report.getShadowingTransition(recover) == -1;
+    }
+
+    @Test
+    public void LongChainsShouldBeAnalysed()
+    {
+        StateMachineDefinition.Builder<Object> builder = StateMachineDefinition.builder();
+        int first = builder.addState("State 0");
+        int previous = first;
+        for (int index = 1; index < 20000; index++)
+        {
+            int next = builder.addState("State " + index);
+            builder.addTransition(previous, EVENT_START, next);
+            previous = next;
+        }
+        DefinitionAnalyzer.Report report = DefinitionAnalyzer.analyze(builder.setInitialState(first).build());
+        assert report.isClean();
+        assert Arrays.equals(report.getSinkStates(), new int[] {previous});
+    }
+}
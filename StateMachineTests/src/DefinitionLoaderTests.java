@@ -0,0 +1,188 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.tigranetworks.ContextStateTransitionAction;
+import uk.co.tigranetworks.ContextTransitionRule;
+import uk.co.tigranetworks.DefinitionLoader;
+import uk.co.tigranetworks.ExtendedState;
+import uk.co.tigranetworks.StateMachineDefinition;
+import uk.co.tigranetworks.StateMachineInstance;
+import uk.co.tigranetworks.TriggerOutcome;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+public class DefinitionLoaderTests
+{
+    private static final String TURNSTILE =
+            "# A turnstile that wants twenty pence\n" +
+            "machine Turnstile\n" +
+            "    slot int money\n" +
+            "    state \"Gate Locked\" enter resetMoney\n" +
+            "    state \"Gate Unlocked\"\n" +
+            "    event Coin 0\n" +
+            "    transition \"Gate Locked\" Coin -> \"Gate Unlocked\" when enoughMoney\n" +
+            "    transition \"Gate Unlocked\" Push -> \"Gate Locked\"\n" +
+            "    initial \"Gate Locked\"\n" +
+            "end\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static DefinitionLoader<ExtendedState> newLoader()
+    {
+        return new DefinitionLoader<ExtendedState>()
+                .bindRule("enoughMoney", new ContextTransitionRule<ExtendedState>()
+                {
+                    @Override
+                    public boolean transitionIsAllowed(ExtendedState context)
+                    {
+                        return context.getInt(context.getLayout().findSlot("money")) >= 20;
+                    }
+                })
+                .bindAction("resetMoney", new ContextStateTransitionAction<ExtendedState>()
+                {
+                    @Override
+                    public void action(ExtendedState context)
+                    {
+                        context.setInt(context.getLayout().findSlot("money"), 0);
+                    }
+                });
+    }
+
+    private static void checkTurnstile(StateMachineDefinition<ExtendedState> definition)
+    {
+        int coin = definition.findEvent("Coin");
+        int push = definition.findEvent("Push");
+        assert coin == 0 && push == 1;
+        int money = definition.getContextLayout().findSlot("money");
+        StateMachineInstance<ExtendedState> instance = definition.newInstance(definition.getContextLayout().newExtendedState());
+        assert instance.fire(coin) == TriggerOutcome.REJECTED;
+        instance.getContext().setInt(money, 20);
+        assert instance.fire(coin) == TriggerOutcome.EXECUTED;
+        assert instance.getCurrentStateName().equals("Gate Unlocked");
+        assert instance.fire(push) == TriggerOutcome.EXECUTED;
+        assert instance.getContext().getInt(money) == 0;
+    }
+
+    @Test
+    public void TextShouldLoadIntoWorkingDefinitions() throws IOException
+    {
+        Map<String, StateMachineDefinition<ExtendedState>> definitions = newLoader().load(new StringReader(TURNSTILE));
+        assert definitions.keySet().equals(Collections.singleton("Turnstile"));
+        checkTurnstile(definitions.get("Turnstile"));
+        checkTurnstile(newLoader().setCompiled(true).load(new StringReader(TURNSTILE)).get("Turnstile"));
+    }
+
+    @Test
+    public void LaterLoadsShouldUseTheCacheUntilTheSourceChanges() throws IOException
+    {
+        Path source = folder.getRoot().toPath().resolve("machines.fsm");
+        Path cache = folder.getRoot().toPath().resolve("machines.fsm.index");
+        Files.write(source, TURNSTILE.getBytes(StandardCharsets.UTF_8));
+        checkTurnstile(newLoader().load(source, cache).get("Turnstile"));
+        assert Files.exists(cache);
+
+        // Garbage of the same size and age is never read, because the cache is still current.
+        FileTime modified = Files.getLastModifiedTime(source);
+        byte[] garbage = new byte[(int) Files.size(source)];
+        Arrays.fill(garbage, (byte) '?');
+        Files.write(source, garbage);
+        Files.setLastModifiedTime(source, modified);
+        checkTurnstile(newLoader().load(source, cache).get("Turnstile"));
+
+        // Once the source has changed, it is read again.
+        Files.write(source, TURNSTILE.replace("Turnstile", "Gate").getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(source, FileTime.fromMillis(modified.toMillis() + 1000));
+        checkTurnstile(newLoader().load(source, cache).get("Gate"));
+    }
+
+    @Test
+    public void ACorruptCacheShouldBeRebuiltFromTheSource() throws IOException
+    {
+        Path source = folder.getRoot().toPath().resolve("machines.fsm");
+        Path cache = folder.getRoot().toPath().resolve("machines.fsm.index");
+        Files.write(source, TURNSTILE.getBytes(StandardCharsets.UTF_8));
+        newLoader().load(source, cache);
+        final byte[] original = Files.readAllBytes(cache);
+
+        // Each damages the body under a header that still looks current: the type of the
+        // first slot, the initial state, every byte of the body and a stray trailing byte.
+        final int headerSize = 22;
+        final int slotType = headerSize + Integer.BYTES + Short.BYTES + "Turnstile".length() + Integer.BYTES;
+        final int initialState = original.length - 1 - Integer.BYTES;
+        for (int corruption = 0; corruption < 4; corruption++)
+        {
+            byte[] bytes = original.clone();
+            if (corruption == 0)
+                bytes[slotType] = 0x7F;
+            else if (corruption == 1)
+                bytes[initialState] = 0x7F;
+            else if (corruption == 2)
+                Arrays.fill(bytes, headerSize, bytes.length, (byte) 0);
+            else
+                bytes = Arrays.copyOf(bytes, bytes.length + 1);
+            Files.write(cache, bytes);
+            checkTurnstile(newLoader().load(source, cache).get("Turnstile"));
+            assert Arrays.equals(Files.readAllBytes(cache), original) : corruption;
+        }
+    }
+
+    @Test
+    public void NamedEventsShouldNotReuseTheIdsOfBareNumbers() throws IOException
+    {
+        String text =
+                "machine Toggle\n" +
+                "    state A\n" +
+                "    state B\n" +
+                "    transition A 0 -> B\n" +
+                "    transition B Back -> A\n" +
+                "    initial A\n" +
+                "end\n";
+        StateMachineDefinition<ExtendedState> definition = newLoader().load(new StringReader(text)).get("Toggle");
+        int back = definition.findEvent("Back");
+        assert back == 1;
+        StateMachineInstance<ExtendedState> instance = definition.newInstance(null);
+        assert instance.fire(back) == TriggerOutcome.DISARMED;
+        assert instance.fire(0) == TriggerOutcome.EXECUTED;
+        assert instance.fire(0) == TriggerOutcome.DISARMED;
+        assert instance.fire(back) == TriggerOutcome.EXECUTED;
+        assert instance.getCurrentStateName().equals("A");
+    }
+
+    @Test
+    public void AnEmptyEventNameShouldBeASyntaxError() throws IOException
+    {
+        String text =
+                "machine Toggle\n" +
+                "    state A\n" +
+                "    state B\n" +
+                "    transition A 0 -> B\n" +
+                "    transition B \"\" -> A\n" +
+                "    initial A\n" +
+                "end\n";
+        try
+        {
+            newLoader().load(new StringReader(text));
+            assert false;
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // Not taken for an event number, which would report it as out of range.
+            assert ex.getMessage().equals("Line 5: Quoted name is empty");
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void UnboundNamesShouldBeRefused() throws IOException
+    {
+        new DefinitionLoader<ExtendedState>().load(new StringReader(TURNSTILE));
+    }
+}
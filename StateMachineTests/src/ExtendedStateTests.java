@@ -0,0 +1,160 @@
+import org.junit.Test;
+import uk.co.tigranetworks.ContextCodec;
+import uk.co.tigranetworks.ContextLayout;
+import uk.co.tigranetworks.ContextStateTransitionAction;
+import uk.co.tigranetworks.ContextTransitionRule;
+import uk.co.tigranetworks.ExtendedState;
+import uk.co.tigranetworks.StateMachineDefinition;
+import uk.co.tigranetworks.StateMachineInstance;
+import uk.co.tigranetworks.StateSnapshot;
+import uk.co.tigranetworks.TriggerOutcome;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class ExtendedStateTests
+{
+    private static int moneySlot;
+    private static int passesSlot;
+    private static int operatorSlot;
+
+    // The money inserted is kept in a slot rather than in a side object guarded by a lock.
+    private static StateMachineDefinition<ExtendedState> buildTurnstile()
+    {
+        StateMachineDefinition.Builder<ExtendedState> builder = StateMachineDefinition.builder();
+        moneySlot = builder.addIntSlot("money");
+        passesSlot = builder.addLongSlot("passes");
+        operatorSlot = builder.addReferenceSlot("operator");
+        return Turnstile.define(builder, new ContextTransitionRule<ExtendedState>()
+        {
+            @Override
+            public boolean transitionIsAllowed(ExtendedState context)
+            {
+                return context.getInt(moneySlot) >= 20;
+            }
+        }, new ContextStateTransitionAction<ExtendedState>()
+        {
+            @Override
+            public void action(ExtendedState context)
+            {
+                context.setInt(moneySlot, 0);
+            }
+        }, new ContextStateTransitionAction<ExtendedState>()
+        {
+            @Override
+            public void action(ExtendedState context)
+            {
+                context.addLong(passesSlot, 1);
+            }
+        });
+    }
+
+    @Test
+    public void RulesAndActionsShouldShareTheInstanceSlots()
+    {
+        StateMachineDefinition<ExtendedState> definition = buildTurnstile();
+        ContextLayout layout = definition.getContextLayout();
+        assert layout.getSlotCount() == 3;
+        assert layout.findSlot("passes") == passesSlot;
+        assert layout.getSlotType(operatorSlot) == ContextLayout.SlotType.REFERENCE;
+
+        StateMachineInstance<ExtendedState> instance = definition.newInstance(layout.newExtendedState());
+        ExtendedState state = instance.getContext();
+        state.addInt(moneySlot, 10);
+        assert instance.fire(Turnstile.COIN) == TriggerOutcome.REJECTED;
+        state.addInt(moneySlot, 10);
+        assert instance.fire(Turnstile.COIN) == TriggerOutcome.EXECUTED;
+        assert instance.fire(Turnstile.PUSH) == TriggerOutcome.EXECUTED;
+        assert state.getInt(moneySlot) == 0;
+        assert state.getLong(passesSlot) == 1;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void SlotsShouldOnlyBeReadAsTheirOwnType()
+    {
+        StateMachineDefinition<ExtendedState> definition = buildTurnstile();
+        definition.getContextLayout().newExtendedState().getDouble(moneySlot);
+    }
+
+    @Test
+    public void SnapshotsShouldIncludeTheSlots() throws IOException
+    {
+        StateMachineDefinition<ExtendedState> definition = buildTurnstile();
+        ContextCodec<ExtendedState> codec = definition.getContextLayout().newCodec(new ContextCodec<Object>()
+        {
+            @Override
+            public int encodedSize(Object context)
+            {
+                return ((String) context).getBytes(StandardCharsets.UTF_8).length;
+            }
+
+            @Override
+            public void encode(Object context, ByteBuffer buffer)
+            {
+                buffer.put(((String) context).getBytes(StandardCharsets.UTF_8));
+            }
+
+            @Override
+            public Object decode(ByteBuffer buffer)
+            {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+        });
+        StateMachineInstance<ExtendedState> instance = definition.newInstance(definition.getContextLayout().newExtendedState());
+        instance.getContext().setReference(operatorSlot, "Tim");
+        instance.getContext().setInt(moneySlot, 20);
+        instance.fire(Turnstile.COIN);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        StateSnapshot.writeInstances(Collections.singletonList(instance), codec, Channels.newChannel(bytes));
+        List<StateMachineInstance<ExtendedState>> restored = StateSnapshot.readInstances(definition, codec,
+                Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())));
+        ExtendedState state = restored.get(0).getContext();
+        assert restored.get(0).getCurrentStateName().equals("Gate Unlocked");
+        assert state.getInt(moneySlot) == 20;
+        assert "Tim".equals(state.getReference(operatorSlot));
+    }
+
+    @Test
+    public void RulesShouldBeEvaluatedWhileTheInstanceIsClaimed()
+    {
+        final StateMachineDefinition.Builder<ExtendedState> builder = StateMachineDefinition.builder();
+        final int attemptsSlot = builder.addIntSlot("attempts");
+        final int locked = builder.addState("Gate Locked");
+        final int unlocked = builder.addState("Gate Unlocked");
+        final List<StateMachineInstance<ExtendedState>> holder = new ArrayList<>();
+        final List<TriggerOutcome> nested = new ArrayList<>();
+        builder.addTransition(locked, Turnstile.COIN, unlocked, new ContextTransitionRule<ExtendedState>()
+        {
+            @Override
+            public boolean transitionIsAllowed(ExtendedState context)
+            {
+                // Nothing else may change the state, or the slots, while the rule reads them.
+                StateMachineInstance<ExtendedState> instance = holder.get(0);
+                assert instance.getCurrentStateName() == null;
+                nested.add(instance.fire(Turnstile.PUSH));
+                return context.addInt(attemptsSlot, 1) >= 2;
+            }
+        });
+        builder.addTransition(locked, Turnstile.PUSH, locked);
+        StateMachineDefinition<ExtendedState> definition = builder.setInitialState(locked).build();
+
+        StateMachineInstance<ExtendedState> instance = definition.newInstance(definition.getContextLayout().newExtendedState());
+        holder.add(instance);
+        assert instance.fire(Turnstile.COIN) == TriggerOutcome.REJECTED;
+        assert instance.getCurrentState() == locked;
+        assert instance.fire(Turnstile.PUSH) == TriggerOutcome.EXECUTED;
+        assert instance.fire(Turnstile.COIN) == TriggerOutcome.EXECUTED;
+        assert instance.getCurrentState() == unlocked;
+        assert nested.size() == 2 && nested.get(0) == TriggerOutcome.DISARMED && nested.get(1) == TriggerOutcome.DISARMED;
+    }
+}
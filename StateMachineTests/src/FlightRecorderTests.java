@@ -0,0 +1,73 @@
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+import uk.co.tigranetworks.FalseStartException;
+import uk.co.tigranetworks.StateMachine;
+import uk.co.tigranetworks.TransitionRule;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class FlightRecorderTests
+{
+    private static final int EVENT_GO      = 0;
+    private static final int EVENT_BLOCKED = 1;
+
+    @Test
+    public void RecordingShouldShowTriggersRulesActionsAndTransitions() throws IOException, FalseStartException
+    {
+        StateMachine machine = new StateMachine();
+        StateMachine.State idle = machine.new State("Idle");
+        StateMachine.State busy = machine.new State("Busy");
+        idle.new Transition(EVENT_GO, busy);
+        idle.new Transition(EVENT_BLOCKED, busy, new TransitionRule()
+        {
+            @Override
+            public boolean transitionIsAllowed()
+            {
+                return false;
+            }
+        });
+        machine.start(idle);
+
+        Path file = Files.createTempFile("state-machine", ".jfr");
+        try
+        {
+            try (Recording recording = new Recording())
+            {
+                recording.enable("uk.co.tigranetworks.Trigger").withoutThreshold();
+                recording.enable("uk.co.tigranetworks.RuleEvaluation").withoutThreshold();
+                recording.enable("uk.co.tigranetworks.Action").withoutThreshold();
+                recording.enable("uk.co.tigranetworks.Transition").withoutThreshold();
+                recording.start();
+                machine.fire(EVENT_BLOCKED);
+                machine.fire(EVENT_GO);
+                recording.stop();
+                recording.dump(file);
+            }
+
+            Map<String, Integer> counts = new HashMap<>();
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            for (RecordedEvent event : events)
+            {
+                String name = event.getEventType().getName();
+                counts.put(name, counts.containsKey(name) ? counts.get(name) + 1 : 1);
+                if (name.equals("uk.co.tigranetworks.Trigger") && event.getString("outcome").equals("armed, rejected"))
+                    assert event.getString("fromState").equals("Idle");
+            }
+            assert counts.get("uk.co.tigranetworks.Trigger") == 2;
+            assert counts.get("uk.co.tigranetworks.RuleEvaluation") == 2;
+            assert counts.get("uk.co.tigranetworks.Transition") == 1;
+            assert counts.get("uk.co.tigranetworks.Action") == 2;      // OnExit of Idle, OnEnter of Busy
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+import org.junit.Test;
+import uk.co.tigranetworks.ContextStateTransitionAction;
+import uk.co.tigranetworks.OrthogonalStateMachine;
+import uk.co.tigranetworks.StateMachineDefinition;
+import uk.co.tigranetworks.TriggerOutcome;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+public class OrthogonalStateMachineTests
+{
+    private static final int EVENT_POWER_FAIL = 0;
+    private static final int EVENT_CONNECT    = 1;
+
+    private static class Device
+    {
+        final CountDownLatch bothStopping = new CountDownLatch(2);
+        volatile boolean     overlapped;
+    }
+
+    // Each region has an Up and a Down state; power failure takes both regions down.
+    private static StateMachineDefinition<Device> buildRegion(String name, int upEvent)
+    {
+        StateMachineDefinition.Builder<Device> builder = StateMachineDefinition.builder();
+        int down = builder.addState(name + " Down");
+        int up = builder.addState(name + " Up", null, new ContextStateTransitionAction<Device>()
+        {
+            @Override
+            public void action(Device context)
+            {
+                // Only returns promptly if the other region is leaving its Up state at the same time.
+                context.bothStopping.countDown();
+                try
+                {
+                    if (context.bothStopping.await(5, TimeUnit.SECONDS))
+                        context.overlapped = true;
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        builder.addTransition(down, upEvent, up);
+        builder.addTransition(up, EVENT_POWER_FAIL, down);
+        return builder.setInitialState(up).build();
+    }
+
+    @Test
+    public void RegionActionsShouldRunInParallelAndJoinBeforeFireReturns()
+    {
+        Device device = new Device();
+        ForkJoinPool pool = new ForkJoinPool(2);
+        OrthogonalStateMachine<Device> machine = new OrthogonalStateMachine<>(device,
+                Arrays.asList(buildRegion("Power", 2), buildRegion("Connectivity", EVENT_CONNECT)), pool);
+        TriggerOutcome[] outcomes = new TriggerOutcome[2];
+        assert machine.fire(EVENT_POWER_FAIL, outcomes) == TriggerOutcome.EXECUTED;
+        assert device.overlapped;
+        assert machine.getCurrentStateName(0).equals("Power Down");
+        assert machine.getCurrentStateName(1).equals("Connectivity Down");
+
+        assert machine.fire(EVENT_CONNECT, outcomes) == TriggerOutcome.EXECUTED;
+        assert outcomes[0] == TriggerOutcome.DISARMED;
+        assert outcomes[1] == TriggerOutcome.EXECUTED;
+        assert machine.getCurrentStateName(0).equals("Power Down");
+        assert machine.getCurrentStateName(1).equals("Connectivity Up");
+        pool.shutdown();
+    }
+
+    @Test
+    public void EventsFiredFromActionsShouldBeContended()
+    {
+        final TriggerOutcome[] nested = new TriggerOutcome[1];
+        final OrthogonalStateMachine<?>[] holder = new OrthogonalStateMachine<?>[1];
+        StateMachineDefinition.Builder<Object> builder = StateMachineDefinition.builder();
+        int idle = builder.addState("Idle");
+        int busy = builder.addState("Busy", new ContextStateTransitionAction<Object>()
+        {
+            @Override
+            public void action(Object context)
+            {
+                nested[0] = holder[0].fire(0);
+            }
+        }, null);
+        builder.addTransition(idle, 0, busy);
+        holder[0] = new OrthogonalStateMachine<Object>(null, Collections.singletonList(builder.setInitialState(idle).build()));
+        assert holder[0].fire(0) == TriggerOutcome.EXECUTED;
+        assert nested[0] == TriggerOutcome.CONTENDED;
+        assert holder[0].fire(0) == TriggerOutcome.DISARMED;
+    }
+
+    // A region that records the thread it entered Stopped on, and optionally then throws.
+    private static StateMachineDefinition<List<String>> buildRecordingRegion(final String name, final boolean fail)
+    {
+        StateMachineDefinition.Builder<List<String>> builder = StateMachineDefinition.builder();
+        int running = builder.addState(name + " Running");
+        int stopped = builder.addState(name + " Stopped", new ContextStateTransitionAction<List<String>>()
+        {
+            @Override
+            public void action(List<String> context)
+            {
+                synchronized (context)
+                {
+                    context.add(name + " on " + Thread.currentThread().getName());
+                }
+                if (fail)
+                    throw new Error(name + " failed");
+            }
+        }, null);
+        builder.addTransition(running, EVENT_POWER_FAIL, stopped);
+        return builder.setInitialState(running).build();
+    }
+
+    @Test
+    public void RegionsShouldRunInTurnOnTheFiringThreadByDefault()
+    {
+        List<String> log = new ArrayList<>();
+        OrthogonalStateMachine<List<String>> machine = new OrthogonalStateMachine<>(log,
+                Arrays.asList(buildRecordingRegion("First", false), buildRecordingRegion("Second", false), buildRecordingRegion("Third", false)));
+        assert machine.fire(EVENT_POWER_FAIL) == TriggerOutcome.EXECUTED;
+        String thread = Thread.currentThread().getName();
+        assert log.equals(Arrays.asList("First on " + thread, "Second on " + thread, "Third on " + thread));
+    }
+
+    @Test
+    public void AFailedRegionShouldNotStopTheOthersFromFinishing()
+    {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        List<String> log = new ArrayList<>();
+        OrthogonalStateMachine<List<String>> machine = new OrthogonalStateMachine<>(log,
+                Arrays.asList(buildRecordingRegion("First", false), buildRecordingRegion("Second", true), buildRecordingRegion("Third", true)), pool);
+        try
+        {
+            machine.fire(EVENT_POWER_FAIL);
+            assert false;
+        }
+        catch (Error ex)
+        {
+            // Joining rethrows a copy of a forked task's exception that wraps the original.
+            assert ex.getMessage().contains("Second failed");
+        }
+        assert log.size() == 3;
+        for (int region = 0; region < machine.getRegionCount(); region++)
+            assert machine.getCurrentStateName(region).endsWith("Stopped");
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,198 @@
+import org.junit.Test;
+import uk.co.tigranetworks.ContextStateTransitionAction;
+import uk.co.tigranetworks.DefinitionCompiler;
+import uk.co.tigranetworks.StateMachineDefinition;
+import uk.co.tigranetworks.StateMachineInstance;
+import uk.co.tigranetworks.TriggerOutcome;
+
+public class StateMachineDefinitionTests
+{
+    // Counts the times that the gate locks, and takes the money that unlocked it.
+    private static StateMachineDefinition<Turnstile> buildTurnstile()
+    {
+        return Turnstile.define(new ContextStateTransitionAction<Turnstile>()
+        {
+            @Override
+            public void action(Turnstile context)
+            {
+                context.timesLocked++;
+                context.money = 0;
+            }
+        }, null);
+    }
+
+    @Test
+    public void NewInstanceShouldEnterTheInitialState()
+    {
+        Turnstile turnstile = new Turnstile();
+        StateMachineInstance<Turnstile> instance = buildTurnstile().newInstance(turnstile);
+        assert instance.getCurrentStateName().equals("Gate Locked");
+        assert turnstile.timesLocked == 1;
+    }
+
+    @Test
+    public void RulesAndActionsShouldSeeTheirOwnInstanceContext()
+    {
+        StateMachineDefinition<Turnstile> definition = buildTurnstile();
+        Turnstile rich = new Turnstile();
+        Turnstile poor = new Turnstile();
+        StateMachineInstance<Turnstile> richInstance = definition.newInstance(rich);
+        StateMachineInstance<Turnstile> poorInstance = definition.newInstance(poor);
+        rich.money = 20;
+        poor.money = 10;
+        assert richInstance.fire(Turnstile.COIN) == TriggerOutcome.EXECUTED;
+        assert poorInstance.fire(Turnstile.COIN) == TriggerOutcome.REJECTED;
+        assert richInstance.getCurrentStateName().equals("Gate Unlocked");
+        assert poorInstance.getCurrentStateName().equals("Gate Locked");
+        assert poorInstance.fire(Turnstile.PUSH) == TriggerOutcome.DISARMED;
+        assert richInstance.fire(Turnstile.PUSH) == TriggerOutcome.EXECUTED;
+        assert rich.timesLocked == 2;
+        assert rich.money == 0;
+    }
+
+    private static ContextStateTransitionAction<StringBuilder> log(final String text)
+    {
+        return new ContextStateTransitionAction<StringBuilder>()
+        {
+            @Override
+            public void action(StringBuilder context)
+            {
+                context.append(text).append(' ');
+            }
+        };
+    }
+
+    @Test
+    public void TransitionsShouldBeInheritedFromCompositeStatesAndRunTheirLcaPaths()
+    {
+        final int eventPowerFail = 2;
+        final int eventPowerOn = 3;
+        StateMachineDefinition.Builder<StringBuilder> builder = StateMachineDefinition.builder();
+        int powered = builder.addState("Powered", StateMachineDefinition.NO_PARENT, log("+Powered"), log("-Powered"));
+        int locked = builder.addState("Gate Locked", powered, log("+Locked"), log("-Locked"));
+        int unlocked = builder.addState("Gate Unlocked", powered, log("+Unlocked"), log("-Unlocked"));
+        int off = builder.addState("Off", StateMachineDefinition.NO_PARENT, log("+Off"), log("-Off"));
+        builder.addTransition(locked, Turnstile.COIN, unlocked);
+        builder.addTransition(unlocked, Turnstile.PUSH, locked);
+        builder.addTransition(powered, Turnstile.PUSH, off);        // shadowed in Unlocked
+        builder.addTransition(powered, eventPowerFail, off);
+        builder.addTransition(off, eventPowerOn, powered);
+        StateMachineDefinition<StringBuilder> definition = builder.setInitialState(powered).build();
+        assert definition.getInitialState() == locked;
+
+        StringBuilder trace = new StringBuilder();
+        StateMachineInstance<StringBuilder> instance = definition.newInstance(trace);
+        assert trace.toString().equals("+Powered +Locked ");
+        assert instance.isInState(powered);
+
+        trace.setLength(0);
+        assert instance.fire(Turnstile.COIN) == TriggerOutcome.EXECUTED;
+        assert trace.toString().equals("-Locked +Unlocked ");
+        assert instance.fire(Turnstile.PUSH) == TriggerOutcome.EXECUTED;
+        assert instance.getCurrentState() == locked;
+
+        trace.setLength(0);
+        assert instance.fire(eventPowerFail) == TriggerOutcome.EXECUTED;
+        assert trace.toString().equals("-Locked -Powered +Off ");
+        assert !instance.isInState(powered);
+
+        trace.setLength(0);
+        assert instance.fire(eventPowerOn) == TriggerOutcome.EXECUTED;
+        assert trace.toString().equals("-Off +Powered +Locked ");
+        assert instance.getCurrentState() == locked;
+        assert instance.fire(Turnstile.PUSH) == TriggerOutcome.EXECUTED;
+        assert instance.getCurrentState() == off;
+    }
+
+    @Test(timeout = 5000)
+    public void LargeDefinitionsShouldBuildWithoutScanningEveryTransitionPerState()
+    {
+        final int ringSize = 40000;
+        StateMachineDefinition.Builder<Object> builder = StateMachineDefinition.builder();
+        int ring = builder.addState("Ring");
+        int first = builder.addState("State 0", ring);
+        int previous = first;
+        for (int index = 1; index < ringSize; index++)
+        {
+            int state = builder.addState("State " + index, ring);
+            builder.addTransition(previous, Turnstile.COIN, state);
+            previous = state;
+        }
+        builder.addTransition(previous, Turnstile.COIN, first);
+        builder.addTransition(ring, Turnstile.PUSH, first);      // inherited by every state
+        StateMachineDefinition<Object> definition = builder.setInitialState(ring).build();
+
+        StateMachineInstance<Object> instance = definition.newInstance(null);
+        for (int index = 0; index < ringSize; index++)
+            assert instance.fire(Turnstile.COIN) == TriggerOutcome.EXECUTED;
+        assert instance.getCurrentState() == first;
+        instance.fire(Turnstile.COIN);
+        assert instance.fire(Turnstile.PUSH) == TriggerOutcome.EXECUTED;
+        assert instance.getCurrentState() == first;
+    }
+
+    @Test
+    public void CompiledDefinitionShouldBehaveLikeTheOriginal()
+    {
+        StateMachineDefinition<Turnstile> definition = buildTurnstile();
+        StateMachineDefinition<Turnstile> compiled = DefinitionCompiler.compile(definition);
+        assert compiled.isCompiled() && !definition.isCompiled();
+        assert DefinitionCompiler.compile(compiled) == compiled;
+        assert compiled.getStateCount() == definition.getStateCount();
+
+        Turnstile turnstile = new Turnstile();
+        StateMachineInstance<Turnstile> instance = compiled.newInstance(turnstile);
+        assert instance.fire(Turnstile.COIN) == TriggerOutcome.REJECTED;
+        assert instance.fire(Turnstile.PUSH) == TriggerOutcome.DISARMED;
+        assert instance.fire(7) == TriggerOutcome.DISARMED;
+        turnstile.money = 20;
+        assert instance.fire(Turnstile.COIN) == TriggerOutcome.EXECUTED;
+        assert instance.getCurrentStateName().equals("Gate Unlocked");
+        assert instance.fire(Turnstile.PUSH) == TriggerOutcome.EXECUTED;
+        assert turnstile.timesLocked == 2;
+        assert turnstile.money == 0;
+    }
+
+    @Test
+    public void EachCompiledDefinitionShouldKeepItsOwnRulesAndActions()
+    {
+        StateMachineDefinition<Turnstile> counting = DefinitionCompiler.compile(buildTurnstile());
+        StateMachineDefinition<Turnstile> unlockCounting = DefinitionCompiler.compile(Turnstile.define(null, new ContextStateTransitionAction<Turnstile>()
+        {
+            @Override
+            public void action(Turnstile context)
+            {
+                context.timesUnlocked++;
+            }
+        }));
+
+        Turnstile first = new Turnstile();
+        Turnstile second = new Turnstile();
+        StateMachineInstance<Turnstile> firstInstance = counting.newInstance(first);
+        StateMachineInstance<Turnstile> secondInstance = unlockCounting.newInstance(second);
+        first.money = 20;
+        second.money = 20;
+        assert firstInstance.fire(Turnstile.COIN) == TriggerOutcome.EXECUTED;
+        assert secondInstance.fire(Turnstile.COIN) == TriggerOutcome.EXECUTED;
+        assert first.timesLocked == 1 && first.timesUnlocked == 0;
+        assert second.timesLocked == 0 && second.timesUnlocked == 1;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void CompositeStatesShouldNotBeRestored()
+    {
+        StateMachineDefinition.Builder<Object> builder = StateMachineDefinition.builder();
+        int parent = builder.addState("Parent");
+        int child = builder.addState("Child", parent);
+        StateMachineDefinition<Object> definition = builder.setInitialState(child).build();
+        definition.restoreInstance(null, parent);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void DefinitionShouldRequireAnInitialState()
+    {
+        StateMachineDefinition.Builder<Object> builder = StateMachineDefinition.builder();
+        builder.addState("Start");
+        builder.build();
+    }
+}
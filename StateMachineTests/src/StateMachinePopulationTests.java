@@ -0,0 +1,76 @@
+import org.junit.Test;
+import uk.co.tigranetworks.ContextStateTransitionAction;
+import uk.co.tigranetworks.StateMachineDefinition;
+import uk.co.tigranetworks.StateMachinePopulation;
+import uk.co.tigranetworks.StateStorage;
+import uk.co.tigranetworks.TriggerOutcome;
+
+public class StateMachinePopulationTests
+{
+    // Counts the times that the gate unlocks.
+    private static StateMachineDefinition<Turnstile> buildTurnstile()
+    {
+        return Turnstile.define(null, new ContextStateTransitionAction<Turnstile>()
+        {
+            @Override
+            public void action(Turnstile context)
+            {
+                context.timesUnlocked++;
+            }
+        });
+    }
+
+    @Test
+    public void EveryStorageShouldTrackEachInstanceSeparately()
+    {
+        StateMachineDefinition<Turnstile> definition = buildTurnstile();
+        for (StateStorage storage : StateStorage.values())
+        {
+            StateMachinePopulation<Turnstile> population = new StateMachinePopulation<>(definition, 1000, storage);
+            Turnstile[] contexts = new Turnstile[1000];
+            for (int index = 0; index < contexts.length; index++)
+            {
+                contexts[index] = new Turnstile();
+                contexts[index].money = index % 2 == 0 ? 20 : 0;
+                assert population.newInstance(contexts[index]) == index;
+            }
+            for (int index = 0; index < contexts.length; index++)
+            {
+                TriggerOutcome outcome = population.fire(index, Turnstile.COIN, contexts[index]);
+                assert outcome == (index % 2 == 0 ? TriggerOutcome.EXECUTED : TriggerOutcome.REJECTED);
+            }
+            for (int index = 0; index < contexts.length; index++)
+            {
+                assert population.getCurrentState(index) == (index % 2 == 0 ? 1 : 0);
+                assert contexts[index].timesUnlocked == (index % 2 == 0 ? 1 : 0);
+            }
+            assert population.fire(0, Turnstile.PUSH, contexts[0]) == TriggerOutcome.EXECUTED;
+            assert population.getCurrentState(0) == 0;
+        }
+    }
+
+    @Test
+    public void InstancesThatHaveNotBeenCreatedShouldBeDisarmed()
+    {
+        StateMachinePopulation<Turnstile> population = new StateMachinePopulation<>(buildTurnstile(), 2, StateStorage.OFF_HEAP);
+        population.newInstance(null);
+        assert population.getCurrentState(1) == -1;
+        assert population.fire(1, Turnstile.PUSH, null) == TriggerOutcome.DISARMED;
+        population.newInstance(null);
+        try
+        {
+            population.newInstance(null);
+            assert false;
+        }
+        catch (IllegalStateException ex)
+        {
+            assert population.getInstanceCount() == 2;
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void OffHeapCapacityShouldBeRefusedBeforeItsByteSizeOverflows()
+    {
+        new StateMachinePopulation<>(buildTurnstile(), 1 << 29, StateStorage.OFF_HEAP);
+    }
+}
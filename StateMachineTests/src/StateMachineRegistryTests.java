@@ -0,0 +1,139 @@
+import org.junit.Test;
+import uk.co.tigranetworks.ContextStateTransitionAction;
+import uk.co.tigranetworks.StateMachineDefinition;
+import uk.co.tigranetworks.StateMachineRegistry;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class StateMachineRegistryTests
+{
+    private static final int EVENT_OPEN  = 0;
+    private static final int EVENT_CLOSE = 1;
+
+    private static final Executor DIRECT = new Executor()
+    {
+        @Override
+        public void execute(Runnable command)
+        {
+            command.run();
+        }
+    };
+
+    private static int closedState;
+
+    // A session is opened and closed repeatedly; each context counts the times it was opened.
+    private static StateMachineDefinition<AtomicInteger> buildSession()
+    {
+        StateMachineDefinition.Builder<AtomicInteger> builder = StateMachineDefinition.builder();
+        closedState = builder.addState("Closed");
+        int open = builder.addState("Open", new ContextStateTransitionAction<AtomicInteger>()
+        {
+            @Override
+            public void action(AtomicInteger context)
+            {
+                context.incrementAndGet();
+            }
+        }, null);
+        builder.addTransition(closedState, EVENT_OPEN, open);
+        builder.addTransition(open, EVENT_CLOSE, closedState);
+        return builder.setInitialState(closedState).build();
+    }
+
+    @Test
+    public void DispatchShouldCreateOneInstancePerKey() throws InterruptedException
+    {
+        final Map<String, AtomicInteger> contexts = new ConcurrentHashMap<>();
+        StateMachineRegistry<String, AtomicInteger> registry = new StateMachineRegistry<>(buildSession(), 4,
+                new StateMachineRegistry.ContextFactory<String, AtomicInteger>()
+                {
+                    @Override
+                    public AtomicInteger create(String key)
+                    {
+                        AtomicInteger context = new AtomicInteger();
+                        contexts.put(key, context);
+                        return context;
+                    }
+                }, StateMachineRegistry.EvictionPolicy.never(), DIRECT);
+        registry.dispatch("alpha", EVENT_OPEN);
+        registry.dispatch("alpha", EVENT_CLOSE);
+        registry.dispatch("alpha", EVENT_OPEN);
+        registry.dispatch("beta", EVENT_OPEN);
+        registry.dispatch("beta", EVENT_OPEN);       // disarmed; already open
+        assert registry.size() == 2;
+        assert contexts.get("alpha").get() == 2;
+        assert contexts.get("beta").get() == 1;
+        registry.remove("alpha");
+        assert registry.size() == 1;
+        registry.close();
+    }
+
+    @Test
+    public void InstancesShouldBeEvictedOnReachingAFinalState() throws InterruptedException
+    {
+        final AtomicInteger created = new AtomicInteger();
+        StateMachineDefinition<AtomicInteger> definition = buildSession();
+        StateMachineRegistry<Integer, AtomicInteger> registry = new StateMachineRegistry<>(definition, 1,
+                new StateMachineRegistry.ContextFactory<Integer, AtomicInteger>()
+                {
+                    @Override
+                    public AtomicInteger create(Integer key)
+                    {
+                        created.incrementAndGet();
+                        return new AtomicInteger();
+                    }
+                }, StateMachineRegistry.EvictionPolicy.never().orOnReaching(closedState), DIRECT);
+        registry.dispatch(7, EVENT_OPEN);
+        assert registry.size() == 1;
+        registry.dispatch(7, EVENT_CLOSE);
+        assert registry.size() == 0;
+        registry.dispatch(7, EVENT_OPEN);
+        assert created.get() == 2;
+        registry.close();
+    }
+
+    @Test
+    public void ShardWorkersShouldApplyEveryEventInOrder() throws InterruptedException
+    {
+        final int keys = 1000;
+        final int rounds = 50;
+        final AtomicInteger[] contexts = new AtomicInteger[keys];
+        final StateMachineRegistry<Integer, AtomicInteger> registry = new StateMachineRegistry<>(buildSession(), 4,
+                new StateMachineRegistry.ContextFactory<Integer, AtomicInteger>()
+                {
+                    @Override
+                    public AtomicInteger create(Integer key)
+                    {
+                        contexts[key] = new AtomicInteger();
+                        return contexts[key];
+                    }
+                }, StateMachineRegistry.EvictionPolicy.never());
+        Thread[] producers = new Thread[4];
+        for (int index = 0; index < producers.length; index++)
+        {
+            final int first = index;
+            producers[index] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (int round = 0; round < rounds; round++)
+                        for (int key = first; key < keys; key += producers.length)
+                        {
+                            registry.dispatch(key, EVENT_OPEN);
+                            registry.dispatch(key, EVENT_CLOSE);
+                        }
+                }
+            });
+            producers[index].start();
+        }
+        for (Thread producer : producers)
+            producer.join();
+        registry.close();
+        assert registry.size() == keys;
+        for (AtomicInteger context : contexts)
+            assert context.get() == rounds;
+    }
+}
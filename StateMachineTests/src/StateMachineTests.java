@@ -1,7 +1,27 @@
 import org.junit.Test;
+import uk.co.tigranetworks.ConcurrencyMode;
 import uk.co.tigranetworks.FalseStartException;
+import uk.co.tigranetworks.IntPayloadTransitionAction;
+import uk.co.tigranetworks.IntPayloadTransitionRule;
+import uk.co.tigranetworks.LongPayloadTransitionRule;
+import uk.co.tigranetworks.MemoizingTransitionRule;
+import uk.co.tigranetworks.PayloadTransitionAction;
 import uk.co.tigranetworks.StateMachine;
+import uk.co.tigranetworks.StateTransitionAction;
+import uk.co.tigranetworks.TraceListener;
+import uk.co.tigranetworks.TransitionTraceListener;
 import uk.co.tigranetworks.TransitionRule;
+import uk.co.tigranetworks.TriggerOutcome;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by Tim on 20/02/14.
@@ -118,4 +138,591 @@ public class StateMachineTests
         assert machine.getCurrentState() == initialState;
         machine.start(initialState);    // should throw
     }
+
+    @Test
+    public void LockFreeTransitionsShouldOnlyHappenIfTheStateMachineIsInTheCorrectState() throws FalseStartException
+    {
+        StateMachine machine = new StateMachine(ConcurrencyMode.LOCK_FREE);
+        final StateMachine.State initialState = machine.new State("Start");
+        final StateMachine.State middleState = machine.new State("middle");
+        final StateMachine.State finalState = machine.new State("Finish");
+        final StateMachine.State.Transition transitionInitialToMiddle = initialState.new Transition(middleState);
+        StateMachine.State.Transition transitionMiddleToFinal = middleState.new Transition(finalState);
+        machine.start(initialState);
+        transitionMiddleToFinal.trigger();    // invalid
+        assert machine.getCurrentState() == initialState;
+        transitionInitialToMiddle.trigger();   // ok
+        assert machine.getCurrentState() == middleState;
+        transitionMiddleToFinal.trigger();  // ok
+        assert machine.getCurrentState() == finalState;
+    }
+
+    @Test
+    public void LockFreeSimultaneousTriggersShouldResultInOnlyOneTransition() throws Exception
+    {
+        final AtomicInteger exits = new AtomicInteger();
+        final StateMachine machine = new StateMachine(ConcurrencyMode.LOCK_FREE);
+        final StateMachine.State initialState = machine.new State("Start", null, new StateTransitionAction()
+        {
+            @Override
+            public void action()
+            {
+                exits.incrementAndGet();
+            }
+        });
+        final StateMachine.State finalState = machine.new State("Finish");
+        final StateMachine.State.Transition transition = initialState.new Transition(finalState);
+        machine.start(initialState);
+
+        final int threadCount = 8;
+        final CountDownLatch go = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++)
+        {
+            threads[i] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        go.await();
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        return;
+                    }
+                    transition.trigger();
+                }
+            });
+            threads[i].start();
+        }
+        go.countDown();
+        for (Thread thread : threads)
+            thread.join();
+
+        assert exits.get() == 1;
+        assert machine.getCurrentState() == finalState;
+    }
+
+    @Test
+    public void LockFreeTriggersFromWithinActionsShouldBeIgnored() throws FalseStartException
+    {
+        final StateMachine machine = new StateMachine(ConcurrencyMode.LOCK_FREE);
+        final StateMachine.State[] states = new StateMachine.State[3];
+        final StateMachine.State.Transition[] escape = new StateMachine.State.Transition[1];
+        states[0] = machine.new State("Start");
+        states[1] = machine.new State("middle", new StateTransitionAction()
+        {
+            @Override
+            public void action()
+            {
+                escape[0].trigger();    // machine is still in transition, so this is disarmed
+            }
+        }, null);
+        states[2] = machine.new State("Finish");
+        StateMachine.State.Transition transitionStartToMiddle = states[0].new Transition(states[1]);
+        escape[0] = states[1].new Transition(states[2]);
+        machine.start(states[0]);
+        transitionStartToMiddle.trigger();
+        assert machine.getCurrentState() == states[1];
+    }
+
+    @Test
+    public void LockFreeEventsShouldFollowAStateThatMovedOnRatherThanReportContention() throws FalseStartException
+    {
+        final int eventGo = 0;
+        final int eventDetour = 1;
+        final StateMachine machine = new StateMachine(ConcurrencyMode.LOCK_FREE);
+        final StateMachine.State start = machine.new State("Start");
+        final StateMachine.State detour = machine.new State("Detour");
+        final StateMachine.State finish = machine.new State("Finish");
+        final List<TriggerOutcome> nested = new ArrayList<>();
+        start.new Transition(eventGo, finish, new TransitionRule()
+        {
+            @Override
+            public boolean transitionIsAllowed()
+            {
+                // Another trigger moves the machine on before this one can claim it.
+                nested.add(machine.fire(eventDetour));
+                return true;
+            }
+        });
+        start.new Transition(eventDetour, detour);
+        detour.new Transition(eventGo, finish);
+        machine.start(start);
+
+        assert machine.fire(eventGo) == TriggerOutcome.EXECUTED;
+        assert nested.size() == 1 && nested.get(0) == TriggerOutcome.EXECUTED;
+        assert machine.getCurrentState() == finish;
+    }
+
+    @Test
+    public void FiringAnEventShouldTriggerTheTransitionFromTheCurrentState() throws FalseStartException
+    {
+        final int eventNext = 0;
+        final int eventReset = 1;
+        StateMachine machine = new StateMachine();
+        final StateMachine.State initialState = machine.new State("Start");
+        final StateMachine.State middleState = machine.new State("middle");
+        final StateMachine.State finalState = machine.new State("Finish");
+        initialState.new Transition(eventNext, middleState);
+        middleState.new Transition(eventNext, finalState);
+        finalState.new Transition(eventReset, initialState);
+        assert machine.fire(eventNext) == TriggerOutcome.DISARMED;     // not started
+        machine.start(initialState);
+        assert machine.fire(eventReset) == TriggerOutcome.DISARMED;
+        assert machine.fire(eventNext) == TriggerOutcome.EXECUTED;
+        assert machine.getCurrentState() == middleState;
+        assert machine.fire(eventNext) == TriggerOutcome.EXECUTED;
+        assert machine.getCurrentState() == finalState;
+        assert machine.fire(eventReset) == TriggerOutcome.EXECUTED;
+        assert machine.getCurrentState() == initialState;
+        assert machine.fire(42) == TriggerOutcome.DISARMED;
+    }
+
+    @Test
+    public void FiringAnEventShouldTryAlternativeTransitionsInOrderOfCreation() throws FalseStartException
+    {
+        final int eventCoin = 0;
+        StateMachine machine = new StateMachine();
+        final StateMachine.State initialState = machine.new State("Start");
+        final StateMachine.State rejectedState = machine.new State("Rejected");
+        final StateMachine.State acceptedState = machine.new State("Accepted");
+        initialState.new Transition(eventCoin, rejectedState, new TransitionRule()
+        {
+            @Override
+            public boolean transitionIsAllowed()
+            {
+                return false;
+            }
+        });
+        initialState.new Transition(eventCoin, acceptedState);
+        machine.start(initialState);
+        assert machine.fire(eventCoin) == TriggerOutcome.EXECUTED;
+        assert machine.getCurrentState() == acceptedState;
+    }
+
+    @Test
+    public void TransitionTraceListenerShouldReceiveStatesAndOutcomes() throws FalseStartException
+    {
+        final List<String> trace = new ArrayList<String>();
+        StateMachine machine = new StateMachine();
+        final StateMachine.State initialState = machine.new State("Start");
+        final StateMachine.State finalState = machine.new State("Finish");
+        StateMachine.State.Transition transition = initialState.new Transition(finalState);
+        StateMachine.State.Transition transitionBack = finalState.new Transition(initialState);
+        machine.setTransitionTraceListener(new TransitionTraceListener()
+        {
+            @Override
+            public void triggered(StateMachine.State fromState, StateMachine.State toState, TriggerOutcome outcome)
+            {
+                trace.add(StateMachine.describeTrigger(fromState, toState, outcome));
+            }
+
+            @Override
+            public void stateChanged(StateMachine.State fromState, StateMachine.State toState)
+            {
+                trace.add(StateMachine.describeStateChange(fromState, toState));
+            }
+        });
+        machine.start(initialState);
+        transitionBack.trigger();
+        transition.trigger();
+        assert trace.size() == 4;
+        assert trace.get(0).equals("State transition [State Machine Paused]->[Start]");
+        assert trace.get(1).equals("Triggered transition from [Finish] to [Start] outcome: disarmed");
+        assert trace.get(2).equals("Triggered transition from [Start] to [Finish] outcome: armed, executing");
+        assert trace.get(3).equals("State transition [Start]->[Finish]");
+    }
+
+    @Test
+    public void FiringABatchShouldProcessEventsInOrderAndReportEachOutcome() throws FalseStartException
+    {
+        final int eventNext = 0;
+        final int eventReset = 1;
+        StateMachine machine = new StateMachine();
+        final StateMachine.State initialState = machine.new State("Start");
+        final StateMachine.State finalState = machine.new State("Finish");
+        initialState.new Transition(eventNext, finalState);
+        finalState.new Transition(eventReset, initialState, new TransitionRule()
+        {
+            @Override
+            public boolean transitionIsAllowed()
+            {
+                return false;
+            }
+        });
+        machine.start(initialState);
+        TriggerOutcome[] outcomes = machine.fireAll(new int[]{eventNext, eventNext, eventReset});
+        assert outcomes[0] == TriggerOutcome.EXECUTED;
+        assert outcomes[1] == TriggerOutcome.DISARMED;
+        assert outcomes[2] == TriggerOutcome.REJECTED;
+        assert machine.getCurrentState() == finalState;
+    }
+
+    @Test
+    public void MailboxTriggersFromWithinActionsShouldRunAfterTheCurrentTransition() throws FalseStartException
+    {
+        final List<String> entered = new ArrayList<String>();
+        final StateMachine machine = new StateMachine(new Executor()
+        {
+            @Override
+            public void execute(Runnable command)
+            {
+                command.run();
+            }
+        });
+        final StateMachine.State.Transition[] onward = new StateMachine.State.Transition[1];
+        final StateMachine.State initialState = machine.new State("Start");
+        final StateMachine.State middleState = machine.new State("middle", new StateTransitionAction()
+        {
+            @Override
+            public void action()
+            {
+                onward[0].trigger();        // queued behind this transition
+                entered.add("middle");
+            }
+        }, null);
+        final StateMachine.State finalState = machine.new State("Finish", new StateTransitionAction()
+        {
+            @Override
+            public void action()
+            {
+                entered.add("Finish");
+            }
+        }, null);
+        final int eventNext = 0;
+        initialState.new Transition(eventNext, middleState);
+        onward[0] = middleState.new Transition(finalState);
+        machine.start(initialState);
+        assert machine.getCurrentState() == initialState;
+        assert machine.fire(eventNext) == TriggerOutcome.QUEUED;
+        assert machine.getCurrentState() == finalState;
+        assert entered.size() == 2 && entered.get(0).equals("middle") && entered.get(1).equals("Finish");
+    }
+
+    @Test
+    public void MailboxShouldExecuteEveryEventFromManyProducers() throws Exception
+    {
+        final int producers = 4;
+        final int eventsPerProducer = 1000;
+        final int eventNext = 0;
+        final CountDownLatch entries = new CountDownLatch(producers * eventsPerProducer + 1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            final StateMachine machine = new StateMachine(executor);
+            StateTransitionAction countEntry = new StateTransitionAction()
+            {
+                @Override
+                public void action()
+                {
+                    entries.countDown();
+                }
+            };
+            final StateMachine.State ping = machine.new State("Ping", countEntry, null);
+            final StateMachine.State pong = machine.new State("Pong", countEntry, null);
+            ping.new Transition(eventNext, pong);
+            pong.new Transition(eventNext, ping);
+            machine.start(ping);
+
+            Thread[] threads = new Thread[producers];
+            for (int i = 0; i < producers; i++)
+            {
+                threads[i] = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        for (int j = 0; j < eventsPerProducer; j++)
+                            machine.fire(eventNext);
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads)
+                thread.join();
+
+            assert entries.await(10, TimeUnit.SECONDS);
+            assert machine.getCurrentState() == ping;     // an even number of transitions
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void MailboxModeShouldRequireAnExecutor()
+    {
+        new StateMachine(ConcurrencyMode.MAILBOX);
+    }
+
+    @Test
+    public void ReentrantLockTransitionsShouldOnlyHappenIfTheStateMachineIsInTheCorrectState() throws FalseStartException
+    {
+        StateMachine machine = new StateMachine(ConcurrencyMode.REENTRANT_LOCK);
+        final StateMachine.State initialState = machine.new State("Start");
+        final StateMachine.State middleState = machine.new State("middle");
+        final StateMachine.State finalState = machine.new State("Finish");
+        final StateMachine.State.Transition transitionInitialToMiddle = initialState.new Transition(middleState);
+        StateMachine.State.Transition transitionMiddleToFinal = middleState.new Transition(finalState);
+        machine.start(initialState);
+        transitionMiddleToFinal.trigger();    // invalid
+        assert machine.getCurrentState() == initialState;
+        transitionInitialToMiddle.trigger();   // ok
+        assert machine.getCurrentState() == middleState;
+        transitionMiddleToFinal.trigger();  // ok
+        assert machine.getCurrentState() == finalState;
+    }
+
+    @Test
+    public void ActionsOutsideTheLockShouldNotHoldUpOtherTransitionsButShouldRunInCommitOrder() throws Exception
+    {
+        final List<String> entered = new ArrayList<String>();
+        final CountDownLatch middleEntered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        StateMachine machine = new StateMachine(ConcurrencyMode.REENTRANT_LOCK);
+        machine.setActionsOutsideLock(true);
+        final StateMachine.State initialState = machine.new State("Start");
+        final StateMachine.State middleState = machine.new State("middle", new StateTransitionAction()
+        {
+            @Override
+            public void action()
+            {
+                middleEntered.countDown();
+                try
+                {
+                    release.await();        // e.g. a slow database call
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                entered.add("middle");
+            }
+        }, null);
+        final StateMachine.State finalState = machine.new State("Finish", new StateTransitionAction()
+        {
+            @Override
+            public void action()
+            {
+                entered.add("Finish");
+            }
+        }, null);
+        final StateMachine.State.Transition transitionInitialToMiddle = initialState.new Transition(middleState);
+        StateMachine.State.Transition transitionMiddleToFinal = middleState.new Transition(finalState);
+        machine.start(initialState);
+
+        Thread slowThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                transitionInitialToMiddle.trigger();
+            }
+        });
+        slowThread.start();
+        middleEntered.await();
+        transitionMiddleToFinal.trigger();      // not blocked by the slow OnEnter action
+        assert machine.getCurrentState() == finalState;
+        assert entered.isEmpty();
+        release.countDown();
+        slowThread.join();
+        assert entered.size() == 2 && entered.get(0).equals("middle") && entered.get(1).equals("Finish");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void ActionsCanOnlyBeMovedOutsideTheLockBeforeStarting() throws FalseStartException
+    {
+        StateMachine machine = new StateMachine();
+        machine.start(machine.new State("Start"));
+        machine.setActionsOutsideLock(true);
+    }
+
+    @Test
+    public void StartShouldBeRefusedWhileATransitionIsInProgress() throws FalseStartException
+    {
+        final StateMachine machine = new StateMachine();
+        final boolean[] refused = new boolean[2];
+        final StateMachine.State initialState = machine.new State("Start", null, new StateTransitionAction()
+        {
+            @Override
+            public void action()
+            {
+                // The current state is parked on the machine's hidden state while this runs.
+                try
+                {
+                    machine.start(machine.getState(0));
+                }
+                catch (FalseStartException ex)
+                {
+                    refused[0] = true;
+                }
+                try
+                {
+                    machine.setActionsOutsideLock(true);
+                }
+                catch (IllegalStateException ex)
+                {
+                    refused[1] = true;
+                }
+            }
+        });
+        final StateMachine.State finalState = machine.new State("Finish");
+        StateMachine.State.Transition transition = initialState.new Transition(finalState);
+        machine.start(initialState);
+        transition.trigger();
+        assert refused[0] && refused[1];
+        assert machine.getCurrentState() == finalState;
+        assert !machine.getActionsOutsideLock();
+    }
+
+    @Test
+    public void MemoizedRuleShouldOnlyBeEvaluatedAgainAfterInvalidation() throws FalseStartException
+    {
+        final AtomicInteger evaluations = new AtomicInteger();
+        StateMachine machine = new StateMachine();
+        StateMachine.State start = machine.new State("Start");
+        StateMachine.State end = machine.new State("End");
+        MemoizingTransitionRule rule = machine.memoize(new TransitionRule()
+        {
+            @Override
+            public boolean transitionIsAllowed()
+            {
+                evaluations.incrementAndGet();
+                return triggerVariable >= 10;
+            }
+        });
+        StateMachine.State.Transition transition = start.new Transition(end, rule);
+        machine.start(start);
+
+        triggerVariable = 5;
+        for (int attempt = 0; attempt < 5; attempt++)
+            transition.trigger();
+        assert evaluations.get() == 1;
+        assert rule.getHitCount() == 4 && rule.getMissCount() == 1;
+
+        triggerVariable = 10;
+        transition.trigger();
+        assert machine.getCurrentState() == start;      // stale result until invalidated
+        machine.invalidateRules();
+        transition.trigger();
+        assert machine.getCurrentState() == end;
+        assert evaluations.get() == 2;
+    }
+
+    @Test
+    public void FastRejectShouldSkipTraceForDisarmedTriggersOnly() throws FalseStartException
+    {
+        final List<String> traced = new ArrayList<>();
+        StateMachine machine = new StateMachine();
+        StateMachine.State start = machine.new State("Start");
+        StateMachine.State end = machine.new State("End");
+        StateMachine.State.Transition finish = start.new Transition(0, end);
+        StateMachine.State.Transition restart = end.new Transition(start);
+        machine.setOnTriggerListener(new TraceListener()
+        {
+            @Override
+            public void trace(String text)
+            {
+                traced.add(text);
+            }
+        });
+        machine.start(start);
+
+        restart.trigger();
+        assert traced.size() == 1;              // detailed disarmed trace by default
+        machine.setFastReject(true);
+        restart.trigger();
+        assert machine.fire(1) == TriggerOutcome.DISARMED;
+        assert traced.size() == 1;
+        assert machine.fire(0) == TriggerOutcome.EXECUTED;
+        assert machine.fire(0) == TriggerOutcome.DISARMED;
+        assert traced.size() == 2;              // only the executed trigger
+        restart.trigger();
+        assert machine.getCurrentState() == start;
+    }
+
+    @Test
+    public void PayloadsShouldBeDeliveredToTheRuleAndAction() throws FalseStartException
+    {
+        for (ConcurrencyMode mode : new ConcurrencyMode[] {ConcurrencyMode.SYNCHRONIZED, ConcurrencyMode.LOCK_FREE})
+        {
+            final long[] credited = new long[1];
+            StateMachine machine = new StateMachine(mode);
+            StateMachine.State locked = machine.new State("Locked");
+            StateMachine.State unlocked = machine.new State("Unlocked");
+            StateMachine.State.Transition coin = locked.new Transition(unlocked);
+            coin.setIntPayloadRule(new IntPayloadTransitionRule()
+            {
+                @Override
+                public boolean transitionIsAllowed(int payload)
+                {
+                    return payload >= 20;
+                }
+            });
+            coin.setIntPayloadAction(new IntPayloadTransitionAction()
+            {
+                @Override
+                public void action(int payload)
+                {
+                    credited[0] += payload;
+                }
+            });
+            machine.start(locked);
+
+            coin.trigger(10);
+            assert machine.getCurrentState() == locked;
+            coin.trigger(50);
+            assert machine.getCurrentState() == unlocked;
+            assert credited[0] == 50;
+        }
+    }
+
+    @Test
+    public void MailboxShouldCarryObjectPayloads() throws FalseStartException
+    {
+        final List<String> received = new ArrayList<>();
+        StateMachine machine = new StateMachine(new Executor()
+        {
+            @Override
+            public void execute(Runnable command)
+            {
+                command.run();
+            }
+        });
+        StateMachine.State idle = machine.new State("Idle");
+        StateMachine.State.Transition greet = idle.new Transition(idle);
+        greet.setPayloadAction(new PayloadTransitionAction<String>()
+        {
+            @Override
+            public void action(String payload)
+            {
+                received.add(payload);
+            }
+        });
+        machine.start(idle);
+        greet.trigger("hello");
+        greet.trigger("world");
+        assert received.equals(Arrays.asList("hello", "world"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void PayloadsOfTheWrongKindShouldBeRefused()
+    {
+        StateMachine machine = new StateMachine();
+        StateMachine.State idle = machine.new State("Idle");
+        StateMachine.State.Transition transition = idle.new Transition(idle);
+        transition.setLongPayloadRule(new LongPayloadTransitionRule()
+        {
+            @Override
+            public boolean transitionIsAllowed(long payload)
+            {
+                return true;
+            }
+        });
+        transition.trigger(1.5);
+    }
 }
@@ -0,0 +1,221 @@
+import org.junit.Test;
+import uk.co.tigranetworks.ContextCodec;
+import uk.co.tigranetworks.ContextStateTransitionAction;
+import uk.co.tigranetworks.FalseStartException;
+import uk.co.tigranetworks.StateMachine;
+import uk.co.tigranetworks.StateMachineDefinition;
+import uk.co.tigranetworks.StateMachineInstance;
+import uk.co.tigranetworks.StateMachinePopulation;
+import uk.co.tigranetworks.StateSnapshot;
+import uk.co.tigranetworks.StateStorage;
+import uk.co.tigranetworks.StateTransitionAction;
+import uk.co.tigranetworks.TriggerOutcome;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+public class StateSnapshotTests
+{
+    private static final int EVENT_NEXT = 0;
+
+    private int entries;
+
+    private static final ContextCodec<long[]> COUNTER_CODEC = new ContextCodec<long[]>()
+    {
+        @Override
+        public int encodedSize(long[] context)
+        {
+            return Long.BYTES;
+        }
+
+        @Override
+        public void encode(long[] context, ByteBuffer buffer)
+        {
+            buffer.putLong(context[0]);
+        }
+
+        @Override
+        public long[] decode(ByteBuffer buffer)
+        {
+            return new long[] {buffer.getLong()};
+        }
+    };
+
+    // Three states in a ring; entering a state increments the context's counter.
+    private static StateMachineDefinition<long[]> buildRing()
+    {
+        StateMachineDefinition.Builder<long[]> builder = StateMachineDefinition.builder();
+        ContextStateTransitionAction<long[]> count = new ContextStateTransitionAction<long[]>()
+        {
+            @Override
+            public void action(long[] context)
+            {
+                if (context != null)
+                    context[0]++;
+            }
+        };
+        int first = builder.addState("First", count, null);
+        int second = builder.addState("Second", count, null);
+        int third = builder.addState("Third", count, null);
+        builder.addTransition(first, EVENT_NEXT, second);
+        builder.addTransition(second, EVENT_NEXT, third);
+        builder.addTransition(third, EVENT_NEXT, first);
+        return builder.setInitialState(first).build();
+    }
+
+    private StateMachine buildMachine(StateMachine.State[] states)
+    {
+        StateMachine machine = new StateMachine();
+        StateTransitionAction count = new StateTransitionAction()
+        {
+            @Override
+            public void action()
+            {
+                entries++;
+            }
+        };
+        states[0] = machine.new State("Idle", count, null);
+        states[1] = machine.new State("Busy", count, null);
+        states[0].new Transition(EVENT_NEXT, states[1]);
+        states[1].new Transition(EVENT_NEXT, states[0]);
+        return machine;
+    }
+
+    @Test
+    public void RestoredMachineShouldResumeWithoutRunningOnEnter() throws IOException, FalseStartException
+    {
+        StateMachine.State[] states = new StateMachine.State[2];
+        StateMachine original = buildMachine(states);
+        original.start(states[0]);
+        original.fire(EVENT_NEXT);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        StateSnapshot.write(original, Channels.newChannel(bytes));
+
+        entries = 0;
+        StateMachine restored = buildMachine(states);
+        StateSnapshot.restore(restored, Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())));
+        assert restored.getCurrentState() == states[1];
+        assert entries == 0;
+        assert restored.fire(EVENT_NEXT) == TriggerOutcome.EXECUTED;
+        assert restored.getCurrentState() == states[0];
+        try
+        {
+            restored.start(states[0]);
+            assert false;
+        }
+        catch (FalseStartException ex)
+        {
+            // expected; a restored machine has already started
+        }
+    }
+
+    @Test
+    public void InstancesAndContextsShouldRoundTripThroughAFile() throws IOException
+    {
+        StateMachineDefinition<long[]> definition = buildRing();
+        List<StateMachineInstance<long[]>> originals = new ArrayList<>();
+        for (int index = 0; index < 10000; index++)
+        {
+            StateMachineInstance<long[]> instance = definition.newInstance(new long[1]);
+            for (int step = 0; step < index % 5; step++)
+                instance.fire(EVENT_NEXT);
+            originals.add(instance);
+        }
+
+        Path file = Files.createTempFile("instances", ".snapshot");
+        try
+        {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE))
+            {
+                StateSnapshot.writeInstances(originals, COUNTER_CODEC, channel);
+            }
+            List<StateMachineInstance<long[]>> restored;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+            {
+                restored = StateSnapshot.readInstances(definition, COUNTER_CODEC, channel);
+            }
+            assert restored.size() == originals.size();
+            for (int index = 0; index < originals.size(); index++)
+            {
+                assert restored.get(index).getCurrentState() == originals.get(index).getCurrentState();
+                assert restored.get(index).getContext()[0] == originals.get(index).getContext()[0];
+            }
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void PopulationShouldRoundTripWithTheSameIds() throws IOException
+    {
+        StateMachineDefinition<long[]> definition = buildRing();
+        StateMachinePopulation<long[]> original = new StateMachinePopulation<>(definition, 100000, StateStorage.SHORT_ARRAY);
+        for (int index = 0; index < 100000; index++)
+        {
+            original.newInstance(null);
+            if (index % 3 == 0)
+                original.fire(index, EVENT_NEXT, null);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        StateSnapshot.writePopulation(original, Channels.newChannel(bytes));
+
+        StateMachinePopulation<long[]> restored = new StateMachinePopulation<>(definition, 100000, StateStorage.OFF_HEAP);
+        StateSnapshot.readPopulation(restored, Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())));
+        assert restored.getInstanceCount() == 100000;
+        for (int index = 0; index < 100000; index++)
+            assert restored.getCurrentState(index) == original.getCurrentState(index);
+    }
+
+    @Test
+    public void ForgedRecordCountsShouldBeRefusedBeforeAnythingIsAllocated() throws IOException
+    {
+        StateMachineDefinition<long[]> definition = buildRing();
+        List<StateMachineInstance<long[]>> originals = new ArrayList<>();
+        originals.add(definition.newInstance(null));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        StateSnapshot.writeInstances(originals, null, Channels.newChannel(bytes));
+        byte[] forged = bytes.toByteArray();
+        ByteBuffer.wrap(forged).putInt(8, Integer.MAX_VALUE);     // the header's record count
+
+        Path file = Files.createTempFile("forged", ".snapshot");
+        try
+        {
+            Files.write(file, forged);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+            {
+                StateSnapshot.readInstances(definition, null, channel);
+                assert false;
+            }
+            catch (StreamCorruptedException ex)
+            {
+                // expected; the file is far too short for that many records
+            }
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+        try
+        {
+            StateSnapshot.readInstances(definition, null, Channels.newChannel(new ByteArrayInputStream(forged)));
+            assert false;
+        }
+        catch (EOFException ex)
+        {
+            // expected; a stream of unknown length is read until it runs out
+        }
+    }
+}
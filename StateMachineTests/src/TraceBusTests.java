@@ -0,0 +1,137 @@
+import org.junit.Test;
+import uk.co.tigranetworks.FalseStartException;
+import uk.co.tigranetworks.StateMachine;
+import uk.co.tigranetworks.TraceBus;
+import uk.co.tigranetworks.TransitionTraceListener;
+import uk.co.tigranetworks.TriggerOutcome;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TraceBusTests
+{
+    private static class CountingSubscriber implements TransitionTraceListener
+    {
+        final AtomicInteger triggers     = new AtomicInteger();
+        final AtomicInteger stateChanges = new AtomicInteger();
+
+        @Override
+        public void triggered(StateMachine.State fromState, StateMachine.State toState, TriggerOutcome outcome)
+        {
+            triggers.incrementAndGet();
+        }
+
+        @Override
+        public void stateChanged(StateMachine.State fromState, StateMachine.State toState)
+        {
+            stateChanges.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void EveryPublishedEventShouldReachEverySubscriber() throws Exception
+    {
+        TraceBus bus = new TraceBus(8, TraceBus.OverflowPolicy.BLOCK, 1);
+        CountingSubscriber first = new CountingSubscriber();
+        CountingSubscriber second = new CountingSubscriber();
+        bus.addSubscriber(first);
+        bus.addSubscriber(second);
+        bus.start();
+
+        StateMachine machine = new StateMachine();
+        final StateMachine.State initialState = machine.new State("Start");
+        final StateMachine.State finalState = machine.new State("Finish");
+        StateMachine.State.Transition there = initialState.new Transition(finalState);
+        StateMachine.State.Transition back = finalState.new Transition(initialState);
+        machine.setTransitionTraceListener(bus);
+        machine.start(initialState);
+        for (int i = 0; i < 100; i++)
+        {
+            there.trigger();
+            back.trigger();
+        }
+        bus.close();
+
+        assert bus.getDroppedCount() == 0;
+        assert first.triggers.get() == 200 && second.triggers.get() == 200;
+        assert first.stateChanges.get() == 201 && second.stateChanges.get() == 201;
+    }
+
+    @Test
+    public void EventsShouldBeDroppedWhenTheRingIsFull() throws FalseStartException
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        TraceBus bus = new TraceBus(4, TraceBus.OverflowPolicy.DROP, 1);
+        bus.addSubscriber(new CountingSubscriber()
+        {
+            @Override
+            public void stateChanged(StateMachine.State fromState, StateMachine.State toState)
+            {
+                try
+                {
+                    release.await();    // hold up the consumer so that the ring fills
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        bus.start();
+
+        StateMachine machine = new StateMachine();
+        final StateMachine.State initialState = machine.new State("Start");
+        machine.setTransitionTraceListener(bus);
+        machine.start(initialState);
+        StateMachine.State.Transition disarmed = machine.new State("Elsewhere").new Transition(initialState);
+        for (int i = 0; i < 9; i++)
+            disarmed.trigger();
+        release.countDown();
+        bus.close();
+
+        assert bus.getDroppedCount() == 6;
+    }
+
+    @Test
+    public void BlockingBusShouldDropOverflowUntilItIsStarted() throws FalseStartException
+    {
+        TraceBus bus = new TraceBus(2, TraceBus.OverflowPolicy.BLOCK, 1);
+        CountingSubscriber subscriber = new CountingSubscriber();
+        bus.addSubscriber(subscriber);
+
+        StateMachine machine = new StateMachine();
+        final StateMachine.State initialState = machine.new State("Start");
+        machine.setTransitionTraceListener(bus);
+        machine.start(initialState);
+        StateMachine.State.Transition disarmed = machine.new State("Elsewhere").new Transition(initialState);
+        for (int i = 0; i < 4; i++)
+            disarmed.trigger();     // would never return if the publisher waited for a consumer
+        bus.start();
+        bus.close();
+
+        assert bus.getDroppedCount() == 3;
+        assert subscriber.stateChanges.get() == 1 && subscriber.triggers.get() == 1;
+    }
+
+    @Test
+    public void CloseShouldDeliverEverythingAndKeepTheInterruptWhenInterrupted() throws FalseStartException
+    {
+        TraceBus bus = new TraceBus(8, TraceBus.OverflowPolicy.BLOCK, 1);
+        CountingSubscriber subscriber = new CountingSubscriber();
+        bus.addSubscriber(subscriber);
+        bus.start();
+
+        StateMachine machine = new StateMachine();
+        final StateMachine.State initialState = machine.new State("Start");
+        machine.setTransitionTraceListener(bus);
+        machine.start(initialState);
+        StateMachine.State.Transition disarmed = machine.new State("Elsewhere").new Transition(initialState);
+        for (int i = 0; i < 50; i++)
+            disarmed.trigger();
+        Thread.currentThread().interrupt();
+        bus.close();
+
+        assert Thread.interrupted();
+        assert subscriber.triggers.get() == 50 && subscriber.stateChanges.get() == 1;
+    }
+}
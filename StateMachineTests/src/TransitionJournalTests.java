@@ -0,0 +1,281 @@
+import org.junit.Test;
+import uk.co.tigranetworks.FalseStartException;
+import uk.co.tigranetworks.StateMachine;
+import uk.co.tigranetworks.StateMachineDefinition;
+import uk.co.tigranetworks.StateMachinePopulation;
+import uk.co.tigranetworks.TransitionJournal;
+import uk.co.tigranetworks.TriggerOutcome;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TransitionJournalTests
+{
+    private static final int EVENT_TOGGLE = 0;
+
+    private static void deleteDirectory(Path directory) throws IOException
+    {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory))
+        {
+            for (Path file : files)
+                Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void JournalShouldRecordEveryCommittedTransition() throws IOException, InterruptedException, FalseStartException
+    {
+        Path directory = Files.createTempDirectory("journal");
+        try
+        {
+            TransitionJournal journal = new TransitionJournal(directory);
+            StateMachine machine = new StateMachine();
+            StateMachine.State off = machine.new State("Off");
+            StateMachine.State on = machine.new State("On");
+            off.new Transition(EVENT_TOGGLE, on);
+            StateMachine.State.Transition switchOff = on.new Transition(off);
+            machine.setTransitionJournal(journal, 42);
+            machine.start(off);
+            machine.fire(EVENT_TOGGLE);
+            switchOff.trigger();
+            switchOff.trigger();        // disarmed; not journalled
+            journal.awaitDurable(journal.getNextSequence() - 1);
+            assert journal.getDurableSequence() == 3;
+            journal.close();
+
+            final List<int[]> records = new ArrayList<>();
+            long count = TransitionJournal.replay(directory, new TransitionJournal.RecordHandler()
+            {
+                @Override
+                public void record(long sequence, long timestampMillis, long machineId, int fromState, int toState, int eventId)
+                {
+                    assert machineId == 42;
+                    assert sequence == records.size();
+                    records.add(new int[] {fromState, toState, eventId});
+                }
+            });
+            assert count == 3;
+            assert records.get(0)[0] == -1 && records.get(0)[1] == off.getId() && records.get(0)[2] == StateMachine.NO_EVENT;
+            assert records.get(1)[0] == off.getId() && records.get(1)[1] == on.getId() && records.get(1)[2] == EVENT_TOGGLE;
+            assert records.get(2)[0] == on.getId() && records.get(2)[1] == off.getId() && records.get(2)[2] == StateMachine.NO_EVENT;
+        }
+        finally
+        {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void ReplayShouldRebuildAPopulationAcrossRolledSegments() throws IOException, InterruptedException
+    {
+        Path directory = Files.createTempDirectory("journal");
+        try
+        {
+            StateMachineDefinition.Builder<Object> builder = StateMachineDefinition.builder();
+            int off = builder.addState("Off");
+            int on = builder.addState("On");
+            builder.addTransition(off, EVENT_TOGGLE, on);
+            builder.addTransition(on, EVENT_TOGGLE, off);
+            StateMachineDefinition<Object> definition = builder.setInitialState(off).build();
+
+            final int instances = 1000;
+            final StateMachinePopulation<Object> population = new StateMachinePopulation<>(definition, instances);
+            for (int index = 0; index < instances; index++)
+                population.newInstance(null);
+            TransitionJournal journal = new TransitionJournal(directory, 256, 1, TimeUnit.MILLISECONDS);
+            population.setTransitionJournal(journal);
+            Thread[] threads = new Thread[4];
+            for (int thread = 0; thread < threads.length; thread++)
+            {
+                final int first = thread;
+                threads[thread] = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        for (int round = 0; round < 3; round++)
+                            for (int instance = first; instance < instances; instance += 4)
+                                if (instance % (round + 2) == 0)
+                                    population.fire(instance, EVENT_TOGGLE, null);
+                    }
+                });
+                threads[thread].start();
+            }
+            for (Thread thread : threads)
+                thread.join();
+            journal.close();
+
+            // Reopening carries on from the last record.
+            TransitionJournal reopened = new TransitionJournal(directory, 256, 1, TimeUnit.MILLISECONDS);
+            long written = reopened.getNextSequence();
+            reopened.close();
+
+            final StateMachinePopulation<Object> rebuilt = new StateMachinePopulation<>(definition, instances);
+            for (int index = 0; index < instances; index++)
+                rebuilt.restoreInstance(definition.getInitialState());
+            long replayed = TransitionJournal.replay(directory, new TransitionJournal.RecordHandler()
+            {
+                @Override
+                public void record(long sequence, long timestampMillis, long machineId, int fromState, int toState, int eventId)
+                {
+                    assert rebuilt.fire((int) machineId, eventId, null) == TriggerOutcome.EXECUTED;
+                    assert rebuilt.getCurrentState((int) machineId) == toState;
+                }
+            });
+            assert replayed == written;
+            assert written > 256;
+            for (int index = 0; index < instances; index++)
+                assert rebuilt.getCurrentState(index) == population.getCurrentState(index);
+        }
+        finally
+        {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void AFailedAppendShouldNotHoldUpLaterRecords() throws IOException, InterruptedException
+    {
+        Path directory = Files.createTempDirectory("journal");
+        try
+        {
+            TransitionJournal journal = new TransitionJournal(directory, 2, 1, TimeUnit.MILLISECONDS);
+            journal.append(1, 0, 1, EVENT_TOGGLE);
+            journal.append(1, 1, 0, EVENT_TOGGLE);
+            // A directory where the second segment's file should go stops it from being mapped.
+            Path blocker = Files.createDirectory(directory.resolve(String.format("%020d.journal", 2)));
+            try
+            {
+                journal.append(1, 0, 1, EVENT_TOGGLE);
+                assert false;
+            }
+            catch (UncheckedIOException ex)
+            {
+                // Expected
+            }
+            Files.delete(blocker);
+            long sequence = journal.append(1, 0, 1, EVENT_TOGGLE);
+            assert sequence == 2;
+            journal.awaitDurable(sequence);
+            journal.close();
+            assert TransitionJournal.replay(directory, new TransitionJournal.RecordHandler()
+            {
+                @Override
+                public void record(long sequence, long timestampMillis, long machineId, int fromState, int toState, int eventId)
+                {
+                }
+            }) == 3;
+        }
+        finally
+        {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void ReopeningShouldDiscardRecordsAfterATornOne() throws IOException, InterruptedException
+    {
+        Path directory = Files.createTempDirectory("journal");
+        try
+        {
+            TransitionJournal journal = new TransitionJournal(directory, 8, 1, TimeUnit.MILLISECONDS);
+            for (int index = 0; index < 4; index++)
+                journal.append(index, 0, 1, EVENT_TOGGLE);
+            journal.close();
+
+            // Tear the second record, as a crash part way through writing it would.
+            try (FileChannel channel = FileChannel.open(directory.resolve(String.format("%020d.journal", 0)), StandardOpenOption.WRITE))
+            {
+                channel.write(ByteBuffer.allocate(Integer.BYTES), TransitionJournal.RECORD_SIZE + TransitionJournal.RECORD_SIZE - Integer.BYTES);
+            }
+
+            TransitionJournal reopened = new TransitionJournal(directory, 8, 1, TimeUnit.MILLISECONDS);
+            assert reopened.getNextSequence() == 1;
+            long sequence = reopened.append(7, 1, 0, EVENT_TOGGLE);
+            reopened.awaitDurable(sequence);
+            reopened.close();
+
+            final List<Long> machines = new ArrayList<>();
+            long count = TransitionJournal.replay(directory, new TransitionJournal.RecordHandler()
+            {
+                @Override
+                public void record(long sequence, long timestampMillis, long machineId, int fromState, int toState, int eventId)
+                {
+                    machines.add(machineId);
+                }
+            });
+            assert count == 2;
+            assert machines.get(0) == 0 && machines.get(1) == 7;
+        }
+        finally
+        {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void CloseShouldMakeEveryClaimedRecordDurable() throws IOException, InterruptedException
+    {
+        Path directory = Files.createTempDirectory("journal");
+        try
+        {
+            final TransitionJournal journal = new TransitionJournal(directory, 64, 1, TimeUnit.MILLISECONDS);
+            final AtomicLong appended = new AtomicLong();
+            List<Thread> appenders = new ArrayList<>();
+            for (int index = 0; index < 4; index++)
+            {
+                final int machineId = index;
+                Thread appender = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            while (true)
+                            {
+                                journal.append(machineId, 0, 1, EVENT_TOGGLE);
+                                appended.incrementAndGet();
+                            }
+                        }
+                        catch (IllegalStateException ex)
+                        {
+                            // The journal has been closed
+                        }
+                    }
+                });
+                appender.start();
+                appenders.add(appender);
+            }
+            Thread.sleep(50);
+            journal.close();
+            for (Thread appender : appenders)
+                appender.join();
+
+            assert journal.getDurableSequence() == journal.getNextSequence();
+            assert journal.getNextSequence() == appended.get();
+            assert TransitionJournal.replay(directory, new TransitionJournal.RecordHandler()
+            {
+                @Override
+                public void record(long sequence, long timestampMillis, long machineId, int fromState, int toState, int eventId)
+                {
+                }
+            }) == appended.get();
+        }
+        finally
+        {
+            deleteDirectory(directory);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+import org.junit.Test;
+import uk.co.tigranetworks.ConcurrencyMode;
+import uk.co.tigranetworks.FalseStartException;
+import uk.co.tigranetworks.LatencyHistogram;
+import uk.co.tigranetworks.StateMachine;
+import uk.co.tigranetworks.StateMachineDefinition;
+import uk.co.tigranetworks.StateMachineInstance;
+import uk.co.tigranetworks.StateTransitionAction;
+import uk.co.tigranetworks.TransitionMetrics;
+import uk.co.tigranetworks.TransitionRule;
+import uk.co.tigranetworks.TriggerOutcome;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+public class TransitionMetricsTests
+{
+    private static final int EVENT_GO      = 0;
+    private static final int EVENT_BLOCKED = 1;
+    private static final int EVENT_NOWHERE = 2;
+
+    @Test
+    public void MachineMetricsShouldCountOutcomesAndTimeActions() throws FalseStartException, JMException
+    {
+        StateMachine machine = new StateMachine();
+        StateMachine.State idle = machine.new State("Idle");
+        StateMachine.State busy = machine.new State("Busy", new StateTransitionAction()
+        {
+            @Override
+            public void action()
+            {
+                final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(2);
+                while (System.nanoTime() < end)
+                    Thread.onSpinWait();
+            }
+        }, null);
+        idle.new Transition(EVENT_GO, busy);
+        idle.new Transition(EVENT_BLOCKED, busy, new TransitionRule()
+        {
+            @Override
+            public boolean transitionIsAllowed()
+            {
+                return false;
+            }
+        });
+        busy.new Transition(EVENT_NOWHERE, busy);
+        TransitionMetrics metrics = machine.enableMetrics();
+        machine.start(idle);
+
+        machine.fire(EVENT_BLOCKED);
+        machine.fire(EVENT_NOWHERE);
+        machine.fire(EVENT_GO);
+        machine.fire(EVENT_GO);
+        assert metrics.getRejectedCount() == 1;
+        assert metrics.getDisarmedCount() == 2;
+        assert metrics.getExecutedCount() == 1;
+        assert metrics.getLockAcquisitionCount() >= 2;      // start() and the executed transition
+        assert metrics.getTransitionCount() == 3;
+        assert metrics.getTransitionName(0).equals("Idle -> Busy");
+        LatencyHistogram latency = metrics.getActionLatency(0);
+        assert latency.getCount() == 1;
+        assert latency.getValueAtPercentile(99) >= TimeUnit.MILLISECONDS.toNanos(2);
+
+        ObjectName name = metrics.register("metrics-test");
+        try
+        {
+            assert (Long) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "ExecutedCount") == 1;
+            long[] counts = (long[]) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "TransitionCounts");
+            assert counts[0] == 1 && counts[1] == 0;
+        }
+        finally
+        {
+            TransitionMetrics.unregister(name);
+        }
+    }
+
+    @Test
+    public void BatchesShouldTakeTheLockOnce() throws FalseStartException
+    {
+        for (ConcurrencyMode mode : new ConcurrencyMode[] {ConcurrencyMode.SYNCHRONIZED, ConcurrencyMode.REENTRANT_LOCK})
+        {
+            StateMachine machine = new StateMachine(mode);
+            StateMachine.State idle = machine.new State("Idle");
+            StateMachine.State busy = machine.new State("Busy");
+            idle.new Transition(EVENT_GO, busy);
+            busy.new Transition(EVENT_GO, idle);
+            TransitionMetrics metrics = machine.enableMetrics();
+            machine.start(idle);
+            long started = metrics.getLockAcquisitionCount();
+
+            machine.fireAll(new int[] {EVENT_GO, EVENT_GO, EVENT_GO});
+            assert metrics.getExecutedCount() == 3;
+            assert metrics.getLockAcquisitionCount() == started + 1 : mode;
+        }
+    }
+
+    @Test
+    public void EachEventShouldBeCountedOnceHoweverManyAlternativesAreTried() throws FalseStartException
+    {
+        final boolean[] open = new boolean[1];
+        TransitionRule whenOpen = new TransitionRule()
+        {
+            @Override
+            public boolean transitionIsAllowed()
+            {
+                return open[0];
+            }
+        };
+        TransitionRule never = new TransitionRule()
+        {
+            @Override
+            public boolean transitionIsAllowed()
+            {
+                return false;
+            }
+        };
+        StateMachine machine = new StateMachine();
+        StateMachine.State idle = machine.new State("Idle");
+        StateMachine.State busy = machine.new State("Busy");
+        idle.new Transition(EVENT_GO, busy, never);
+        idle.new Transition(EVENT_GO, busy, never);
+        idle.new Transition(EVENT_GO, busy, whenOpen);
+        TransitionMetrics metrics = machine.enableMetrics();
+        machine.start(idle);
+
+        assert machine.fire(EVENT_GO) == TriggerOutcome.REJECTED;
+        assert metrics.getRejectedCount() == 1;
+        open[0] = true;
+        assert machine.fire(EVENT_GO) == TriggerOutcome.EXECUTED;
+        assert metrics.getRejectedCount() == 1;
+        assert metrics.getExecutedCount() == 1;
+        assert machine.fire(EVENT_GO) == TriggerOutcome.DISARMED;
+        assert metrics.getDisarmedCount() == 1;
+    }
+
+    @Test
+    public void LockFreeMachinesShouldStartWithMetricsEnabled() throws FalseStartException
+    {
+        StateMachine machine = new StateMachine(ConcurrencyMode.LOCK_FREE);
+        StateMachine.State idle = machine.new State("Idle");
+        StateMachine.State busy = machine.new State("Busy");
+        idle.new Transition(EVENT_GO, busy);
+        TransitionMetrics metrics = machine.enableMetrics();
+        machine.start(idle);        // enters the initial state without a transition to time
+        assert machine.getCurrentState() == idle;
+
+        machine.fire(EVENT_GO);
+        assert metrics.getExecutedCount() == 1;
+        assert metrics.getActionLatency(0).getCount() == 1;
+        assert metrics.getLockAcquisitionCount() == 0;
+    }
+
+    @Test
+    public void DefinitionMetricsShouldBeSharedByEveryInstance()
+    {
+        StateMachineDefinition.Builder<Object> builder = StateMachineDefinition.builder();
+        int off = builder.addState("Off");
+        int on = builder.addState("On");
+        builder.addTransition(off, EVENT_GO, on);
+        StateMachineDefinition<Object> definition = builder.setInitialState(off).setMetricsEnabled(true).build();
+        StateMachineInstance<Object> first = definition.newInstance(null);
+        StateMachineInstance<Object> second = definition.newInstance(null);
+        first.fire(EVENT_GO);
+        first.fire(EVENT_GO);
+        second.fire(EVENT_GO);
+        TransitionMetrics metrics = definition.getMetrics();
+        assert metrics.getCount(TriggerOutcome.EXECUTED) == 2;
+        assert metrics.getCount(TriggerOutcome.DISARMED) == 1;
+        assert metrics.getActionLatency(0).getCount() == 2;
+        assert metrics.getLockAcquisitionCount() == 0;
+    }
+
+    @Test
+    public void HistogramPercentilesShouldBeWithinBucketPrecision()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100000; value++)
+            histogram.record(value);
+        assert histogram.getCount() == 100000;
+        assert histogram.getMaxNanos() == 100000;
+        long median = histogram.getValueAtPercentile(50);
+        long p99 = histogram.getValueAtPercentile(99);
+        assert Math.abs(median - 50000) <= 50000 / 16;
+        assert Math.abs(p99 - 99000) <= 99000 / 16;
+        assert histogram.getValueAtPercentile(100) == 100000;
+    }
+}
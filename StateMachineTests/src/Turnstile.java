@@ -0,0 +1,54 @@
+import uk.co.tigranetworks.ContextStateTransitionAction;
+import uk.co.tigranetworks.ContextTransitionRule;
+import uk.co.tigranetworks.StateMachineDefinition;
+
+/**
+ * The turnstile that the definition tests share, and its context. A coin
+ * unlocks the gate once twenty pence has been paid, and a push locks it again.
+ * Each test supplies the OnEnter actions whose effects it checks.
+ */
+final class Turnstile
+{
+    static final int COIN = 0;
+    static final int PUSH = 1;
+
+    static final ContextTransitionRule<Turnstile> ENOUGH_MONEY = new ContextTransitionRule<Turnstile>()
+    {
+        @Override
+        public boolean transitionIsAllowed(Turnstile context)
+        {
+            return context.money >= 20;
+        }
+    };
+
+    int money;
+    int timesLocked;
+    int timesUnlocked;
+
+    /**
+     * Defines a turnstile whose context is a Turnstile.
+     *
+     * @param onLocked   The OnEnter action of the locked state, or null.
+     * @param onUnlocked The OnEnter action of the unlocked state, or null.
+     */
+    static StateMachineDefinition<Turnstile> define(ContextStateTransitionAction<Turnstile> onLocked, ContextStateTransitionAction<Turnstile> onUnlocked)
+    {
+        return define(StateMachineDefinition.<Turnstile>builder(), ENOUGH_MONEY, onLocked, onUnlocked);
+    }
+
+    /**
+     * Defines a turnstile with some other kind of context, on a builder that may
+     * already have slots declared.
+     *
+     * @param enoughMoney The rule that lets a coin unlock the gate.
+     */
+    static <C> StateMachineDefinition<C> define(StateMachineDefinition.Builder<C> builder, ContextTransitionRule<C> enoughMoney,
+                                                ContextStateTransitionAction<C> onLocked, ContextStateTransitionAction<C> onUnlocked)
+    {
+        int locked = builder.addState("Gate Locked", onLocked, null);
+        int unlocked = builder.addState("Gate Unlocked", onUnlocked, null);
+        builder.addTransition(locked, COIN, unlocked, enoughMoney);
+        builder.addTransition(unlocked, PUSH, locked);
+        return builder.setInitialState(locked).build();
+    }
+}
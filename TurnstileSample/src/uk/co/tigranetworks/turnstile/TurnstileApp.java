@@ -59,6 +59,7 @@ public class TurnstileApp implements TraceListener
     private void moneyInserted(int amount)
     {
         moneyInCoinValidator += amount;
+        turnstile.invalidateRules();
         printMoneyTotal(amount, moneyInCoinValidator);
         // Attempt to trigger the state transition to unlocked.
         // This will only succeed if enough money has been inserted,
@@ -74,6 +75,7 @@ public class TurnstileApp implements TraceListener
     private void clearMoneyTotal()
     {
         moneyInCoinValidator = 0;
+        turnstile.invalidateRules();
         System.out.println("Money total reset to 0.");
     }
 
@@ -121,8 +123,8 @@ public class TurnstileApp implements TraceListener
         StateMachine.State stateUnlocked = turnstile.new State("Gate Unlocked", onEnterUnlocked, null);
         StateMachine.State stateLocked = turnstile.new State("Gate Locked", onEnterLocked, null);
 
-        // Transition validation rules
-        transitionRuleLockedToUnlocked =
+        // Transition validation rules. The result is remembered until the money total changes.
+        transitionRuleLockedToUnlocked = turnstile.memoize(
                 new TransitionRule()
                 {
                     @Override
@@ -130,7 +132,7 @@ public class TurnstileApp implements TraceListener
                     {
                         return (moneyInCoinValidator >= 20);
                     }
-                };
+                });
 
         // State transitions
         transitionUnlockedToLocked = stateUnlocked.new Transition(stateLocked);